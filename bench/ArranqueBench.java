@@ -0,0 +1,101 @@
+import java.io.File;
+import java.util.*;
+
+/**
+ * Compara el arranque desde los archivos de texto con el arranque desde la
+ * instantanea binaria mapeada.
+ *
+ * Uso: java -cp bin:bench-bin ArranqueBench [usuarios] [amigosPorUsuario] [repeticiones]
+ */
+public class ArranqueBench {
+
+    public static void main(String[] args) throws Exception {
+        int usuarios = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int amigosPorUsuario = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int repeticiones = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        File dir = new File(System.getProperty("java.io.tmpdir"), "arranque-bench");
+        dir.mkdirs();
+        String pswd = new File(dir, "pswd").getPath();
+        String amigos = new File(dir, "amigos").getPath();
+        String solicitudes = new File(dir, "solicitudes").getPath();
+        String binario = new File(dir, "instantanea.bin").getPath();
+
+        System.out.println("Generando " + usuarios + " usuarios con " + amigosPorUsuario + " amigos...");
+        generar(usuarios, amigosPorUsuario, pswd, amigos, solicitudes, binario);
+        System.out.printf("Texto: %.1f MB, binario: %.1f MB%n",
+                (new File(pswd).length() + new File(amigos).length() + new File(solicitudes).length()) / 1e6,
+                new File(binario).length() / 1e6);
+
+        for (int r = 0; r < repeticiones; r++) {
+            long t0 = System.nanoTime();
+            int total = cargarTexto(pswd, amigos, solicitudes);
+            long t1 = System.nanoTime();
+            int totalBin = cargarBinario(binario);
+            long t2 = System.nanoTime();
+            System.out.printf("ronda %d: texto %d ms, binario %d ms (%d / %d entradas)%n",
+                    r, (t1 - t0) / 1_000_000, (t2 - t1) / 1_000_000, total, totalBin);
+        }
+    }
+
+    private static void generar(int usuarios, int amigosPorUsuario, String pswd, String amigos,
+            String solicitudes, String binario) throws Exception {
+        Random r = new Random(42);
+        String[] nombres = new String[usuarios];
+        Map<String, String> claves = new HashMap<>(usuarios * 2);
+        for (int i = 0; i < usuarios; i++) {
+            nombres[i] = "usuario" + i;
+            claves.put(nombres[i], Encrypt.sha256(nombres[i]));
+        }
+        Map<String, List<String>> listaAmigos = new HashMap<>(usuarios * 2);
+        Map<String, List<String>> listaSolicitudes = new HashMap<>(usuarios * 2);
+        for (int i = 0; i < usuarios; i++) {
+            List<String> l = new ArrayList<>(amigosPorUsuario);
+            for (int j = 0; j < amigosPorUsuario; j++) {
+                l.add(nombres[r.nextInt(usuarios)]);
+            }
+            listaAmigos.put(nombres[i], l);
+            listaSolicitudes.put(nombres[i], i % 10 == 0
+                    ? Collections.singletonList(nombres[r.nextInt(usuarios)])
+                    : Collections.emptyList());
+        }
+        ManejadorUsuarios.saveUsersToFile(claves, pswd);
+        ManejadorUsuarios.saveFriendsToFile(listaAmigos, amigos);
+        ManejadorUsuarios.saveFriendsToFile(listaSolicitudes, solicitudes);
+        InstantaneaBinaria.guardar(claves, listaAmigos, listaSolicitudes, binario);
+    }
+
+    private static int cargarTexto(String pswd, String amigos, String solicitudes) {
+        Map<String, String> claves = ManejadorUsuarios.loadUsersFromFile(pswd);
+        Map<String, List<String>> a = ManejadorUsuarios.loadFriendsFromFile(amigos);
+        Map<String, List<String>> s = ManejadorUsuarios.loadFriendsFromFile(solicitudes);
+        return claves.size() + a.size() + s.size();
+    }
+
+    /* Mismo trabajo que Servidor.loadSnapshot: nombres decodificados una vez y listas compartiendolos */
+    private static int cargarBinario(String binario) throws Exception {
+        InstantaneaBinaria inst = InstantaneaBinaria.cargar(binario);
+        int n = inst.getNumUsuarios();
+        String[] nombres = new String[n];
+        for (int id = 0; id < n; id++) {
+            nombres[id] = inst.getNombre(id);
+        }
+        Map<String, String> claves = new HashMap<>(n * 2);
+        Map<String, List<String>> a = new HashMap<>(n * 2);
+        Map<String, List<String>> s = new HashMap<>(n * 2);
+        for (int id = 0; id < n; id++) {
+            claves.put(nombres[id], inst.getClave(id));
+            String[] lista = new String[inst.getNumAmigos(id)];
+            for (int i = 0; i < lista.length; i++) {
+                lista[i] = nombres[inst.getAmigo(id, i)];
+            }
+            a.put(nombres[id], Arrays.asList(lista));
+            lista = new String[inst.getNumSolicitudes(id)];
+            for (int i = 0; i < lista.length; i++) {
+                lista[i] = nombres[inst.getSolicitud(id, i)];
+            }
+            s.put(nombres[id], Arrays.asList(lista));
+        }
+        return claves.size() + a.size() + s.size();
+    }
+}
@@ -0,0 +1,82 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Busqueda por prefijo de TablaUsuarios (la de buscarUsuarios), en este
+ * proceso y sin RMI.
+ *
+ * Registra el 90% de los nombres, ordena el indice con prepararBusqueda y
+ * registra el resto con el indice ya hecho, como el servidor tras arrancar.
+ * Comprueba las paginas de 20 de cada prefijo y desplazamiento contra un
+ * TreeSet con los mismos nombres y despues da el tiempo por consulta de
+ * cada prefijo (1000 consultas con desplazamientos de 0 a 80, la ultima de
+ * tres pasadas).
+ *
+ * Uso: java -cp bin:bench-bin BusquedaBench [usuarios]
+ */
+public class BusquedaBench {
+
+    private static final String[] PREFIJOS = { "user", "usera", "userab", "userzz", "u", "nada", "user1", "" };
+
+    public static void main(String[] args) {
+        int usuarios = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        Random r = new Random(1);
+        String[] nombres = new String[usuarios];
+        for (int i = 0; i < usuarios; i++) {
+            nombres[i] = "user" + Integer.toString(r.nextInt(Integer.MAX_VALUE), 36) + i;
+        }
+        TablaUsuarios tabla = new TablaUsuarios();
+        int antes = usuarios / 10 * 9;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < antes; i++) {
+            tabla.registrar(nombres[i], "x");
+        }
+        long t1 = System.nanoTime();
+        tabla.prepararBusqueda();
+        long t2 = System.nanoTime();
+        for (int i = antes; i < usuarios; i++) {
+            tabla.registrar(nombres[i], "x");
+        }
+        long t3 = System.nanoTime();
+        System.out.printf("registro de %d: %d ms, ordenar: %d ms, %d mas con indice: %d ms%n",
+                antes, (t1 - t0) / 1_000_000, (t2 - t1) / 1_000_000, usuarios - antes, (t3 - t2) / 1_000_000);
+
+        TreeSet<String> referencia = new TreeSet<>(Arrays.asList(nombres));
+        int distintas = 0;
+        for (String p : PREFIJOS) {
+            for (int offset : new int[] { 0, 7, 40 }) {
+                List<String> esperado = new ArrayList<>();
+                for (String s : referencia.tailSet(p)) {
+                    if (!s.startsWith(p) || esperado.size() >= offset + 20) {
+                        break;
+                    }
+                    esperado.add(s);
+                }
+                esperado = esperado.subList(Math.min(offset, esperado.size()), esperado.size());
+                if (!esperado.equals(tabla.buscar(p, offset, 20))) {
+                    System.out.println("DISTINTO prefijo=\"" + p + "\" offset=" + offset);
+                    distintas++;
+                }
+            }
+        }
+        System.out.println(distintas == 0 ? "Paginas iguales que el TreeSet" : distintas + " paginas distintas");
+
+        for (int pasada = 0; pasada < 3; pasada++) {
+            for (String p : PREFIJOS) {
+                long inicio = System.nanoTime();
+                int encontrados = 0;
+                for (int k = 0; k < 1000; k++) {
+                    encontrados += tabla.buscar(p, k % 5 * 20, 20).size();
+                }
+                if (pasada == 2) {
+                    System.out.printf("%-8s %8.1f us/consulta (%d nombres)%n", "\"" + p + "\"",
+                            (System.nanoTime() - inicio) / 1000.0 / 1000, encontrados);
+                }
+            }
+        }
+    }
+}
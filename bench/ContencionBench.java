@@ -0,0 +1,78 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lecturas concurrentes de Servidor mientras se registran usuarios, en este
+ * proceso y sin RMI: cuanto frena una escritura a los lectores.
+ *
+ * Cada hilo llama sin pausa a getAmigos, getAmigosConectados y existeUsuario
+ * de un usuario al azar (una operacion son las tres); el hilo 0 hace ademas
+ * un registrarUsuario cada 50 operaciones. Da operaciones por segundo.
+ *
+ * Solo usa metodos de IServidor que ya estaban antes de quitar el monitor
+ * global, asi que la misma clase mide las dos versiones. Se ejecuta en un
+ * directorio vacio: el servidor guarda sus datos en ./data. Para el antes:
+ *   git worktree add /tmp/antes f230f3b~1
+ *   javac -encoding UTF-8 -d /tmp/antes/bin /tmp/antes/src/*.java
+ *   javac -encoding UTF-8 -cp /tmp/antes/bin -d /tmp/antes/bench-bin bench/ContencionBench.java
+ *   (cd $(mktemp -d) && java -cp /tmp/antes/bin:/tmp/antes/bench-bin ContencionBench)
+ *
+ * Uso: java -cp bin:bench-bin ContencionBench [usuarios] [hilos] [segundos]
+ */
+public class ContencionBench {
+
+    public static void main(String[] args) throws Exception {
+        int usuarios = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int hilos = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int segundos = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        // Algunas versiones escriben una linea por llamada: fuera de la medida
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Servidor servidor = new Servidor();
+        for (int i = 0; i < usuarios; i++) {
+            servidor.registrarUsuario("u" + i, "x");
+        }
+
+        LongAdder operaciones = new LongAdder();
+        AtomicBoolean parar = new AtomicBoolean(false);
+        Thread[] ts = new Thread[hilos];
+        for (int t = 0; t < hilos; t++) {
+            int id = t;
+            ts[t] = new Thread(() -> {
+                ThreadLocalRandom r = ThreadLocalRandom.current();
+                try {
+                    for (int n = 0; !parar.get(); n++) {
+                        if (id == 0 && n % 50 == 0) {
+                            servidor.registrarUsuario("nuevo" + n, "x");
+                        } else {
+                            String u = "u" + r.nextInt(usuarios);
+                            servidor.getAmigos(u);
+                            servidor.getAmigosConectados(u);
+                            servidor.existeUsuario(u);
+                        }
+                        operaciones.increment();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+        long t0 = System.nanoTime();
+        for (Thread t : ts) {
+            t.start();
+        }
+        Thread.sleep(segundos * 1000L);
+        parar.set(true);
+        for (Thread t : ts) {
+            t.join();
+        }
+        double transcurrido = (System.nanoTime() - t0) / 1e9;
+        out.printf("%d hilos: %.0f operaciones/s%n", hilos, operaciones.sum() / transcurrido);
+        System.exit(0);
+    }
+}
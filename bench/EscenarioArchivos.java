@@ -0,0 +1,73 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Archivos de texto de usuarios y amigos con datos sinteticos, en el formato
+ * de ManejadorUsuarios, para medir su carga y su guardado desde JMH.
+ */
+public class EscenarioArchivos implements Function<String, Supplier<Object>>, AutoCloseable {
+
+    private final File directorio;
+    private final String pswd;
+    private final String listaAmigos;
+    private final String destino;
+    private final Map<String, String> claves;
+    private final Map<String, List<String>> amistades;
+
+    public EscenarioArchivos(int usuarios, int amigos) throws IOException {
+        directorio = Files.createTempDirectory("chat-bench").toFile();
+        pswd = new File(directorio, "pswd").getPath();
+        listaAmigos = new File(directorio, "amigos").getPath();
+        destino = new File(directorio, "guardado").getPath();
+
+        Random r = new Random(42);
+        claves = new HashMap<>(usuarios * 2);
+        amistades = new HashMap<>(usuarios * 2);
+        for (int i = 0; i < usuarios; i++) {
+            claves.put("usuario" + i, Encrypt.sha256("usuario" + i));
+        }
+        for (int i = 0; i < usuarios; i++) {
+            List<String> l = new ArrayList<>(amigos);
+            for (int j = 0; j < amigos; j++) {
+                l.add("usuario" + r.nextInt(usuarios));
+            }
+            amistades.put("usuario" + i, l);
+        }
+        ManejadorUsuarios.saveUsersToFile(claves, pswd);
+        ManejadorUsuarios.saveFriendsToFile(amistades, listaAmigos);
+    }
+
+    @Override
+    public Supplier<Object> apply(String operacion) {
+        switch (operacion) {
+            case "cargarUsuarios":
+                return () -> ManejadorUsuarios.loadUsersFromFile(pswd);
+            case "cargarAmigos":
+                return () -> ManejadorUsuarios.loadFriendsFromFile(listaAmigos);
+            case "guardarUsuarios":
+                return () -> {
+                    ManejadorUsuarios.saveUsersToFile(claves, destino);
+                    return destino;
+                };
+            case "guardarAmigos":
+                return () -> {
+                    ManejadorUsuarios.saveFriendsToFile(amistades, destino);
+                    return destino;
+                };
+            default:
+                throw new IllegalArgumentException("Operacion desconocida: " + operacion);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (File f : Objects.requireNonNull(directorio.listFiles())) {
+            f.delete();
+        }
+        directorio.delete();
+    }
+}
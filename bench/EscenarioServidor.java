@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Servidor con datos sinteticos para los benchmarks, en un directorio temporal.
+ *
+ * Cada usuario i es amigo de los amigos/2 usuarios anteriores y siguientes
+ * (en anillo) y la mitad de los usuarios esta conectada. Las operaciones se
+ * piden por nombre y reciben el indice del usuario, para poder usarlas desde
+ * los benchmarks JMH, que no pueden estar en el paquete por defecto.
+ */
+public class EscenarioServidor implements Function<String, IntFunction<Object>>, AutoCloseable {
+
+    private final int usuarios;
+    private final int amigos;
+    private final Path directorio;
+    private final Servidor servidor;
+    private final String[] nombres;
+    private final String[] claves;
+    private final AtomicLong siguientePar = new AtomicLong();
+    private final IClienteCallback callback = new CallbackVacio();
+
+    public EscenarioServidor(int usuarios, int amigos) throws IOException {
+        this.usuarios = usuarios;
+        this.amigos = amigos;
+        // Antes de usar Servidor: sus rutas se fijan al inicializar la clase
+        directorio = Files.createTempDirectory("chat-bench");
+        System.setProperty("chat.datos", directorio.toString());
+
+        nombres = new String[usuarios];
+        claves = new String[usuarios];
+        Map<String, String> passwords = new HashMap<>(usuarios * 2);
+        for (int i = 0; i < usuarios; i++) {
+            nombres[i] = "usuario" + i;
+            claves[i] = Encrypt.sha256(nombres[i]);
+            passwords.put(nombres[i], claves[i]);
+        }
+        Map<String, List<String>> listaAmigos = new HashMap<>(usuarios * 2);
+        for (int i = 0; i < usuarios; i++) {
+            List<String> l = new ArrayList<>(amigos);
+            for (int d = 1; d <= amigos / 2; d++) {
+                l.add(nombres[(i + d) % usuarios]);
+                l.add(nombres[(i - d + usuarios) % usuarios]);
+            }
+            listaAmigos.put(nombres[i], l);
+        }
+        InstantaneaBinaria.guardar(passwords, listaAmigos, new HashMap<>(), Servidor.SNAPSHOT_FILE);
+
+        // El servidor escribe una linea por llamada: fuera de la medida
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        servidor = new Servidor();
+        for (int i = 0; i < usuarios; i += 2) {
+            servidor.login(nombres[i], claves[i], "localhost:" + (5000 + i % 1000));
+        }
+    }
+
+    public int getUsuarios() {
+        return usuarios;
+    }
+
+    public Servidor getServidor() {
+        return servidor;
+    }
+
+    @Override
+    public IntFunction<Object> apply(String operacion) {
+        return apply(operacion, servidor);
+    }
+
+    /* La misma operacion contra otro IServidor (un stub RMI o un ClienteBinario de este servidor) */
+    public IntFunction<Object> apply(String operacion, IServidor destino) {
+        switch (operacion) {
+            case "login":
+                return i -> llamar(() -> destino.login(nombres[i], claves[i], "localhost:5000"));
+            case "iniciarSesion":
+                return i -> llamar(() -> destino.iniciarSesion(nombres[i], claves[i], "localhost:5000", callback, null));
+            case "getAmigosConectados":
+                return i -> llamar(() -> destino.getAmigosConectados(nombres[i]));
+            case "solicitarYAceptar":
+                return i -> llamar(() -> solicitarYAceptar(destino));
+            default:
+                throw new IllegalArgumentException("Operacion desconocida: " + operacion);
+        }
+    }
+
+    /*
+     * Un par distinto en cada llamada que no sea ya de amigos: a con un usuario mas alla
+     * de sus amigos iniciales. Cada llamada añade una amistad, asi que las listas crecen
+     * durante la medida (unas pocas por usuario y iteracion).
+     */
+    private boolean solicitarYAceptar(IServidor destino) throws RemoteException {
+        long k = siguientePar.getAndIncrement();
+        int a = (int) (k % usuarios);
+        int b = (int) ((a + amigos / 2 + 1 + k / usuarios) % usuarios);
+        destino.solicitarAmistad(nombres[a], nombres[b]);
+        return destino.aceptarSolicitudAmistad(nombres[b], nombres[a]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (var rutas = Files.walk(directorio)) {
+            rutas.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private interface Llamada {
+        Object hacer() throws RemoteException;
+    }
+
+    private static Object llamar(Llamada llamada) {
+        try {
+            return llamada.hacer();
+        } catch (RemoteException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* Callback local que no hace nada: iniciarSesion solo lo guarda */
+    private static class CallbackVacio implements IClienteCallback {
+        @Override
+        public void notificarConexionAmigo(String amigo, String direccion, IBuzon buzon) {
+        }
+
+        @Override
+        public void notificarDesconexionAmigo(String amigo) {
+        }
+
+        @Override
+        public void notificarSolicitudAmistad(String deUsuario) {
+        }
+
+        @Override
+        public void notificarAmistadAceptada(String amigo) {
+        }
+
+        @Override
+        public void notificarEventos(List<Evento> eventos) {
+        }
+    }
+}
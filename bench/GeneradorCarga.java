@@ -0,0 +1,313 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Generador de carga: simula muchos clientes de chat contra un Servidor en
+ * localhost, repartidos en varios procesos.
+ *
+ * Cada cliente simulado es un Cliente de verdad (con su ClienteCallback y sus
+ * Cola) sin consola. El guion de cada proceso es: registro, login de todos,
+ * solicitudes de amistad en anillo (cada cliente con los amigos/2 siguientes)
+ * y aceptarlas, y despues durante los segundos pedidos cada cliente cada
+ * segundo aprox. manda un mensaje a un amigo conectado, sincroniza su estado
+ * o (con poca probabilidad) cierra sesion y vuelve a entrar.
+ *
+ * Mide, y al final junta los histogramas de todos los procesos:
+ *   - rpc.*      latencia de cada llamada al servidor vista por el cliente
+ *   - callback.* desde que un cliente vuelve a hacer login o pide amistad hasta que
+ *                la notificacion llega al amigo (solo entre clientes del mismo proceso)
+ *   - mensaje    de extremo a extremo, desde enviar hasta que llega al
+ *                MessageListener del receptor
+ *
+ * Uso: java -cp bin:bench-bin GeneradorCarga [clientes] [procesos] [segundos] [amigos]
+ * (con el servidor ya arrancado)
+ */
+public class GeneradorCarga {
+
+    private static final String TRABAJADOR = "--trabajador";
+    private static final String PREFIJO_RESULTADO = "HIST ";
+    private static final int PUERTO_BASE = 20000;
+    private static final double PROB_RECONEXION = 0.02;
+    private static final double PROB_SINCRONIZAR = 0.3;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals(TRABAJADOR)) {
+            trabajador(args);
+            return;
+        }
+        int clientes = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int procesos = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int segundos = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+        int amigos = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        coordinador(clientes, procesos, segundos, amigos);
+    }
+
+    // =======================
+    // ===== COORDINADOR =====
+    // =======================
+
+    private static void coordinador(int clientes, int procesos, int segundos, int amigos) throws Exception {
+        System.out.println("Lanzando " + clientes + " clientes en " + procesos + " procesos durante "
+                + segundos + " s (" + amigos + " amigos cada uno)...");
+        String java = System.getProperty("java.home") + "/bin/java";
+        String classpath = System.getProperty("java.class.path");
+        List<Process> hijos = new ArrayList<>();
+        int porProceso = (clientes + procesos - 1) / procesos;
+        for (int p = 0; p < procesos; p++) {
+            int n = Math.min(porProceso, clientes - p * porProceso);
+            if (n <= 0) {
+                break;
+            }
+            ProcessBuilder pb = new ProcessBuilder(java, "-cp", classpath, "GeneradorCarga", TRABAJADOR,
+                    String.valueOf(p), String.valueOf(n), String.valueOf(amigos), String.valueOf(segundos),
+                    String.valueOf(PUERTO_BASE + p * porProceso));
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            hijos.add(pb.start());
+        }
+
+        Map<String, HistogramaLatencias> total = new TreeMap<>();
+        for (Process hijo : hijos) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(hijo.getInputStream()))) {
+                String linea;
+                while ((linea = br.readLine()) != null) {
+                    if (!linea.startsWith(PREFIJO_RESULTADO)) {
+                        System.out.println(linea);
+                        continue;
+                    }
+                    String[] partes = linea.substring(PREFIJO_RESULTADO.length()).split(" ", 2);
+                    total.computeIfAbsent(partes[0], k -> new HistogramaLatencias()).sumar(partes[1]);
+                }
+            }
+            hijo.waitFor();
+        }
+        informe(total, segundos);
+    }
+
+    private static void informe(Map<String, HistogramaLatencias> total, int segundos) {
+        System.out.printf("%n%-32s %9s %9s %10s %10s %10s %10s%n",
+                "medida", "n", "n/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        for (Map.Entry<String, HistogramaLatencias> e : total.entrySet()) {
+            HistogramaLatencias h = e.getValue();
+            System.out.printf("%-32s %9d %9.1f %10.3f %10.3f %10.3f %10.3f%n", e.getKey(), h.getTotal(),
+                    h.getTotal() / (double) segundos, h.getPercentil(50) / 1e6, h.getPercentil(99) / 1e6,
+                    h.getPercentil(99.9) / 1e6, h.getMaximo() / 1e6);
+        }
+        System.out.println("(n/s sobre la fase estable; registro, login inicial y amistades van antes)");
+    }
+
+    // ======================
+    // ===== TRABAJADOR =====
+    // ======================
+
+    private static final Map<String, HistogramaLatencias> medidas = new ConcurrentHashMap<>();
+    // Ultimo login y ultima solicitud de cada cliente, para medir lo que tardan sus callbacks
+    private static final Map<String, Long> conexiones = new ConcurrentHashMap<>();
+    private static final Map<String, Long> solicitudes = new ConcurrentHashMap<>();
+
+    private static void trabajador(String[] args) throws Exception {
+        int proceso = Integer.parseInt(args[1]);
+        int n = Integer.parseInt(args[2]);
+        int amigos = Integer.parseInt(args[3]);
+        int segundos = Integer.parseInt(args[4]);
+        int puertoBase = Integer.parseInt(args[5]);
+
+        // Los clientes escriben mucho por consola; la salida real es solo el resultado
+        PrintStream salida = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        ClienteSimulado[] clientes = new ClienteSimulado[n];
+        for (int i = 0; i < n; i++) {
+            clientes[i] = new ClienteSimulado("carga-" + proceso + "-" + i, puertoBase + i);
+        }
+        ExecutorService hilos = Executors.newFixedThreadPool(Math.min(n, 64));
+
+        paraTodos(hilos, clientes, c -> {
+            medir("rpc.registrarUsuario", () -> c.signUp(c.nombre, c.nombre));
+            c.entrar();
+        });
+        int mitad = Math.max(1, amigos / 2);
+        paraTodos(hilos, clientes, c -> {
+            for (int d = 1; d <= mitad && d < n; d++) {
+                String otro = clientes[(c.indice + d) % n].nombre;
+                solicitudes.put(c.nombre + ">" + otro, ahora());
+                medir("rpc.solicitarAmistad", () -> c.sendFriendRequest(otro));
+            }
+        });
+        paraTodos(hilos, clientes, c -> {
+            for (int d = 1; d <= mitad && d < n; d++) {
+                String otro = clientes[(c.indice - d + n) % n].nombre;
+                medir("rpc.aceptarSolicitudAmistad", () -> c.acceptFriendRequest(otro));
+            }
+        });
+        // Las medidas de arranque se quedan; los n/s del informe son de la fase estable
+        AtomicBoolean parar = new AtomicBoolean(false);
+        ScheduledExecutorService actividad = Executors.newScheduledThreadPool(Math.min(n, 64));
+        for (ClienteSimulado c : clientes) {
+            actividad.scheduleWithFixedDelay(() -> {
+                if (!parar.get()) {
+                    c.actuar();
+                }
+            }, ThreadLocalRandom.current().nextLong(1000), 1000, TimeUnit.MILLISECONDS);
+        }
+        Thread.sleep(segundos * 1000L);
+        parar.set(true);
+        actividad.shutdown();
+        actividad.awaitTermination(30, TimeUnit.SECONDS);
+        // Un poco mas para que lleguen los ultimos mensajes
+        Thread.sleep(500);
+
+        paraTodos(hilos, clientes, c -> medir("rpc.logout", () -> {
+            c.logout();
+            return true;
+        }));
+        hilos.shutdown();
+
+        for (Map.Entry<String, HistogramaLatencias> e : medidas.entrySet()) {
+            salida.println(PREFIJO_RESULTADO + e.getKey() + " " + e.getValue().codificar());
+        }
+        salida.flush();
+        System.exit(0);
+    }
+
+    private interface Paso {
+        void hacer(ClienteSimulado c) throws Exception;
+    }
+
+    /* Ejecuta el paso para todos los clientes en paralelo y espera a que acaben */
+    private static void paraTodos(ExecutorService hilos, ClienteSimulado[] clientes, Paso paso)
+            throws InterruptedException {
+        CountDownLatch fin = new CountDownLatch(clientes.length);
+        for (ClienteSimulado c : clientes) {
+            hilos.execute(() -> {
+                try {
+                    paso.hacer(c);
+                } catch (Exception e) {
+                    System.err.println("Error en " + c.nombre + ": " + e);
+                } finally {
+                    fin.countDown();
+                }
+            });
+        }
+        fin.await();
+    }
+
+    private static <T> T medir(String nombre, Callable<T> llamada) throws Exception {
+        long inicio = System.nanoTime();
+        try {
+            return llamada.call();
+        } finally {
+            registrar(nombre, System.nanoTime() - inicio);
+        }
+    }
+
+    private static void registrar(String nombre, long nanos) {
+        medidas.computeIfAbsent(nombre, k -> new HistogramaLatencias()).registrar(nanos);
+    }
+
+    /* Reloj de pared en ns: el envio y la lectura de un mensaje pueden ser de hilos distintos */
+    private static long ahora() {
+        Instant i = Instant.now();
+        return i.getEpochSecond() * 1_000_000_000L + i.getNano();
+    }
+
+    // ============================
+    // ===== CLIENTE SIMULADO =====
+    // ============================
+
+    private static final String MARCA = "carga ";
+    private static int siguienteIndice = 0;
+
+    static class ClienteSimulado extends Cliente {
+        // true mientras el cliente aplica estado que ha pedido el (login o sincronizar):
+        // esas altas de amigos no son callbacks
+        private static final ThreadLocal<Boolean> propio = ThreadLocal.withInitial(() -> false);
+
+        final String nombre;
+        final int puerto;
+        final int indice;
+
+        ClienteSimulado(String nombre, int puerto) {
+            this.nombre = nombre;
+            this.puerto = puerto;
+            this.indice = siguienteIndice++;
+            setMessageListener(this::recibir);
+        }
+
+        void entrar() throws Exception {
+            propio.set(true);
+            try {
+                if (!medir("rpc.login", () -> login(nombre, nombre, puerto))) {
+                    System.err.println("Login fallido: " + nombre);
+                }
+            } finally {
+                propio.set(false);
+            }
+        }
+
+        /* Un paso de la fase estable */
+        void actuar() {
+            try {
+                double r = ThreadLocalRandom.current().nextDouble();
+                if (r < PROB_RECONEXION) {
+                    medir("rpc.logout", () -> {
+                        logout();
+                        return true;
+                    });
+                    // Solo en las reconexiones: en el arranque las altas llegan por amistad aceptada
+                    conexiones.put(nombre, ahora());
+                    entrar();
+                } else if (r < PROB_RECONEXION + PROB_SINCRONIZAR) {
+                    propio.set(true);
+                    try {
+                        medir("rpc.getCambiosDesde", this::getOnlineFriends);
+                    } finally {
+                        propio.set(false);
+                    }
+                } else {
+                    List<String> chats = getActiveChats();
+                    if (!chats.isEmpty()) {
+                        String amigo = chats.get(ThreadLocalRandom.current().nextInt(chats.size()));
+                        medir("p2p.enviarMensaje", () -> sendMessage(amigo, MARCA + ahora()));
+                    }
+                }
+            } catch (Exception e) {
+                System.err.println("Error en " + nombre + ": " + e);
+            }
+        }
+
+        private void recibir(String amigo, List<String> mensajes) {
+            long llegada = ahora();
+            for (String m : mensajes) {
+                int i = m.indexOf(MARCA);
+                if (i >= 0) {
+                    registrar("mensaje", llegada - Long.parseLong(m.substring(i + MARCA.length()).trim()));
+                }
+            }
+        }
+
+        @Override
+        public synchronized void addAmigoConectado(String amigo, String direccion, IBuzon buzon) throws Exception {
+            if (!propio.get()) {
+                Long desde = conexiones.get(amigo);
+                if (desde != null) {
+                    registrar("callback.conexion", ahora() - desde);
+                }
+            }
+            super.addAmigoConectado(amigo, direccion, buzon);
+        }
+
+        @Override
+        public void mostrarSolicitudAmistad(String deUsuario) {
+            Long desde = solicitudes.remove(deUsuario + ">" + nombre);
+            if (desde != null) {
+                registrar("callback.solicitud", ahora() - desde);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.rmi.server.RemoteObject;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Tiempo de entrar en sesion por RMI (loopback, en este proceso) con todos
+ * los amigos conectados: la secuencia de llamadas que hacia el cliente antes
+ * frente a un solo iniciarSesion.
+ *
+ * La secuencia vieja es login, registrarCallback, getAmigos,
+ * getAmigosConectados, getDireccion de cada amigo conectado y
+ * getSolicitudesPendientes. Para cada numero de amigos se hacen 5 rondas de
+ * calentamiento y se promedian las siguientes; entre una y otra, logout.
+ *
+ * Uso: java -cp bin:bench-bin SesionBench [amigos] [rondas]
+ *   amigos separados por comas, por ejemplo "50,500,5000"
+ */
+public class SesionBench {
+
+    public static void main(String[] args) throws Exception {
+        String[] amigos = (args.length > 0 ? args[0] : "50,500,5000").split(",");
+        int rondas = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        // Antes de usar Servidor: sus rutas se fijan al inicializar la clase
+        Path directorio = Files.createTempDirectory("chat-bench");
+        System.setProperty("chat.datos", directorio.toString());
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Servidor servidor = new Servidor();
+        IServidor rmi = (IServidor) RemoteObject.toStub(servidor);
+        CallbackVacio callback = new CallbackVacio();
+
+        out.printf("%8s %16s %18s%n", "amigos", "secuencia ms", "iniciarSesion ms");
+        for (String a : amigos) {
+            int n = Integer.parseInt(a);
+            String yo = "yo" + n;
+            servidor.registrarUsuario(yo, "x");
+            for (int i = 0; i < n; i++) {
+                String amigo = "amigo" + n + "_" + i;
+                servidor.registrarUsuario(amigo, "x");
+                servidor.solicitarAmistad(amigo, yo);
+                servidor.aceptarSolicitudAmistad(yo, amigo);
+                servidor.login(amigo, "x", "localhost:" + (5000 + i % 1000));
+            }
+
+            long secuencia = 0;
+            long unaLlamada = 0;
+            for (int r = 0; r < rondas + 5; r++) {
+                long t0 = System.nanoTime();
+                rmi.login(yo, "x", "localhost:4999");
+                rmi.registrarCallback(yo, callback);
+                rmi.getAmigos(yo);
+                List<String> conectados = rmi.getAmigosConectados(yo);
+                for (String c : conectados) {
+                    rmi.getDireccion(c);
+                }
+                rmi.getSolicitudesPendientes(yo);
+                long t1 = System.nanoTime();
+                rmi.logout(yo);
+
+                long t2 = System.nanoTime();
+                rmi.iniciarSesion(yo, "x", "localhost:4999", callback, null);
+                long t3 = System.nanoTime();
+                rmi.logout(yo);
+                if (r >= 5) {
+                    secuencia += t1 - t0;
+                    unaLlamada += t3 - t2;
+                }
+            }
+            out.printf("%8d %16.1f %18.1f%n", n, secuencia / 1e6 / rondas, unaLlamada / 1e6 / rondas);
+        }
+
+        try (var rutas = Files.walk(directorio)) {
+            rutas.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+        System.exit(0);
+    }
+
+    /* Exportado, como el del cliente: el servidor lo recibe como stub */
+    private static class CallbackVacio extends UnicastRemoteObject implements IClienteCallback {
+        private static final long serialVersionUID = 1L;
+
+        CallbackVacio() throws RemoteException {
+        }
+
+        @Override
+        public void notificarConexionAmigo(String amigo, String direccion, IBuzon buzon) {
+        }
+
+        @Override
+        public void notificarDesconexionAmigo(String amigo) {
+        }
+
+        @Override
+        public void notificarSolicitudAmistad(String deUsuario) {
+        }
+
+        @Override
+        public void notificarAmistadAceptada(String amigo) {
+        }
+
+        @Override
+        public void notificarEventos(List<Evento> eventos) {
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import java.nio.charset.StandardCharsets;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compara por loopback los sockets de RMI por defecto con SocketsRmi
+ * ajustados y comprimidos.
+ *
+ * Para cada configuracion exporta un objeto eco en este mismo proceso (las
+ * llamadas a un stub pasan igualmente por TCP) y mide:
+ *   - latencia de una llamada con un mensaje de chat corto
+ *   - ancho de banda enviando bloques grandes de texto de chat (comprimible)
+ *     y de bytes aleatorios (no comprimible)
+ *
+ * Uso: java -cp bin:bench-bin SocketsBench [llamadas] [kbPorBloque] [bloques]
+ */
+public class SocketsBench {
+
+    public interface IEco extends Remote {
+        Object eco(Object o) throws RemoteException;
+    }
+
+    private static class Eco implements IEco {
+        @Override
+        public Object eco(Object o) {
+            return o instanceof byte[] ? ((byte[]) o).length : o;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int llamadas = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int kb = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        int bloques = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int buffer = Integer.getInteger("chat.rmi.bufferBytes", 128 * 1024);
+
+        byte[] texto = textoChat(kb * 1024);
+        byte[] aleatorio = new byte[kb * 1024];
+        new Random(42).nextBytes(aleatorio);
+        String corto = "ana: hola, ¿quedamos mañana a las cinco?";
+
+        SocketsRmi[] configuraciones = {
+                null,
+                new SocketsRmi(buffer, -1),
+                new SocketsRmi(buffer, Integer.getInteger("chat.rmi.comprimirDesde", 8 * 1024))
+        };
+        System.out.printf("%-32s %9s %9s %9s %12s %12s%n",
+                "sockets", "p50 us", "p99 us", "p999 us", "texto MB/s", "aleat. MB/s");
+        for (SocketsRmi sockets : configuraciones) {
+            Eco eco = new Eco();
+            IEco stub = (IEco) UnicastRemoteObject.exportObject(eco, 0, sockets, sockets);
+
+            // Calentamiento: JIT y conexiones abiertas
+            for (int i = 0; i < llamadas / 5; i++) {
+                stub.eco(corto);
+            }
+            medirBloques(stub, texto, bloques / 10);
+
+            HistogramaLatencias latencias = new HistogramaLatencias();
+            for (int i = 0; i < llamadas; i++) {
+                long t0 = System.nanoTime();
+                stub.eco(corto);
+                latencias.registrar(System.nanoTime() - t0);
+            }
+            double mbTexto = medirBloques(stub, texto, bloques);
+            double mbAleatorio = medirBloques(stub, aleatorio, bloques);
+
+            System.out.printf("%-32s %9.1f %9.1f %9.1f %12.1f %12.1f%n",
+                    sockets == null ? "defecto" : sockets.toString(),
+                    latencias.getPercentil(50) / 1e3, latencias.getPercentil(99) / 1e3,
+                    latencias.getPercentil(99.9) / 1e3, mbTexto, mbAleatorio);
+            UnicastRemoteObject.unexportObject(eco, true);
+        }
+        System.exit(0);
+    }
+
+    private static double medirBloques(IEco stub, byte[] bloque, int n) throws RemoteException {
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            stub.eco(bloque);
+        }
+        double segundos = (System.nanoTime() - t0) / 1e9;
+        return (double) bloque.length * n / 1e6 / segundos;
+    }
+
+    /* Lineas "usuarioN: palabras..." con un vocabulario pequeno, como un historial de chat */
+    private static byte[] textoChat(int bytes) {
+        String[] palabras = {"hola", "que", "tal", "vale", "nos", "vemos", "luego", "mañana", "clase",
+                "practica", "rmi", "servidor", "cliente", "jaja", "si", "no", "ya", "entrega", "a", "las"};
+        Random r = new Random(7);
+        StringBuilder sb = new StringBuilder(bytes + 64);
+        while (sb.length() < bytes) {
+            sb.append("usuario").append(r.nextInt(50)).append(':');
+            for (int i = 0, n = 3 + r.nextInt(10); i < n; i++) {
+                sb.append(' ').append(palabras[r.nextInt(palabras.length)]);
+            }
+            sb.append('\n');
+        }
+        return Arrays.copyOf(sb.toString().getBytes(StandardCharsets.UTF_8), bytes);
+    }
+}
@@ -0,0 +1,93 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.rmi.server.RemoteObject;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/**
+ * Compara el rendimiento de RMI y del transporte binario (ServidorBinario y
+ * ClienteBinario) sobre el mismo Servidor, por loopback y en este proceso.
+ *
+ * Para cada operacion y numero de hilos, todos los hilos comparten un unico
+ * cliente de cada transporte (un stub RMI, que abre una conexion por llamada
+ * en curso, o un ClienteBinario, que usa una sola conexion con pipelining) y
+ * llaman sin pausa durante los segundos pedidos. Da llamadas por segundo y el
+ * tiempo de CPU del proceso (cliente y servidor juntos) por llamada.
+ *
+ * Uso: java -cp bin:bench-bin TransporteBench [usuarios] [amigos] [segundos] [operaciones] [hilos]
+ *   operaciones e hilos separados por comas, por ejemplo "getAmigosConectados,login" "1,8,32"
+ */
+public class TransporteBench {
+
+    public static void main(String[] args) throws Exception {
+        int usuarios = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int amigos = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int segundos = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        String[] operaciones = (args.length > 3 ? args[3] : "getAmigosConectados,login").split(",");
+        String[] hilos = (args.length > 4 ? args[4] : "1,4,16,64").split(",");
+
+        // EscenarioServidor silencia System.out
+        PrintStream out = System.out;
+        try (EscenarioServidor escenario = new EscenarioServidor(usuarios, amigos)) {
+            Servidor servidor = escenario.getServidor();
+            IServidor rmi = (IServidor) RemoteObject.toStub(servidor);
+            ServidorBinario binario = new ServidorBinario(servidor, 0,
+                    Integer.getInteger("chat.binario.hilos", 4 * Runtime.getRuntime().availableProcessors()));
+            binario.iniciar();
+            ClienteBinario clienteBinario = new ClienteBinario("localhost", binario.getPuerto());
+
+            out.printf("%-22s %6s %14s %14s %12s %12s%n",
+                    "operacion", "hilos", "rmi llam/s", "binario llam/s", "rmi us CPU", "bin us CPU");
+            for (String operacion : operaciones) {
+                for (String h : hilos) {
+                    int n = Integer.parseInt(h);
+                    double[] r = medir(escenario.apply(operacion, rmi), usuarios, n, segundos);
+                    double[] b = medir(escenario.apply(operacion, clienteBinario), usuarios, n, segundos);
+                    out.printf("%-22s %6d %14.0f %14.0f %12.1f %12.1f%n", operacion, n, r[0], b[0], r[1], b[1]);
+                }
+            }
+            clienteBinario.cerrar();
+            binario.cerrar();
+        }
+        System.exit(0);
+    }
+
+    /* Un segundo de calentamiento y despues la medida; devuelve {llamadas/s, us de CPU por llamada} */
+    private static double[] medir(IntFunction<Object> op, int usuarios, int hilos, int segundos)
+            throws InterruptedException {
+        LongAdder llamadas = new LongAdder();
+        AtomicBoolean midiendo = new AtomicBoolean(false);
+        AtomicBoolean parar = new AtomicBoolean(false);
+        Thread[] ts = new Thread[hilos];
+        for (int t = 0; t < hilos; t++) {
+            ts[t] = new Thread(() -> {
+                ThreadLocalRandom r = ThreadLocalRandom.current();
+                while (!parar.get()) {
+                    op.apply(r.nextInt(usuarios));
+                    if (midiendo.get()) {
+                        llamadas.increment();
+                    }
+                }
+            });
+            ts[t].start();
+        }
+        Thread.sleep(1000);
+        com.sun.management.OperatingSystemMXBean so =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long cpu0 = so.getProcessCpuTime();
+        long t0 = System.nanoTime();
+        midiendo.set(true);
+        Thread.sleep(segundos * 1000L);
+        midiendo.set(false);
+        long total = llamadas.sum();
+        long cpu = so.getProcessCpuTime() - cpu0;
+        double transcurrido = (System.nanoTime() - t0) / 1e9;
+        parar.set(true);
+        for (Thread t : ts) {
+            t.join();
+        }
+        return new double[]{total / transcurrido, total == 0 ? 0 : cpu / 1e3 / total};
+    }
+}
@@ -0,0 +1,71 @@
+package jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks JMH de la carga y el guardado de los archivos de texto de
+ * ManejadorUsuarios. Los archivos los prepara EscenarioArchivos.
+ *
+ * Uso: make bench_jmh ARGS="jmh.ManejadorUsuariosBench -p usuarios=100000"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class ManejadorUsuariosBench {
+
+    @Param({"10000", "100000"})
+    int usuarios;
+
+    @Param({"10", "100"})
+    int amigos;
+
+    private AutoCloseable escenario;
+    private Supplier<Object> cargarUsuarios;
+    private Supplier<Object> cargarAmigos;
+    private Supplier<Object> guardarUsuarios;
+    private Supplier<Object> guardarAmigos;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void preparar() throws Exception {
+        Object e = Class.forName("EscenarioArchivos").getConstructor(int.class, int.class)
+                .newInstance(usuarios, amigos);
+        Function<String, Supplier<Object>> operaciones = (Function<String, Supplier<Object>>) e;
+        escenario = (AutoCloseable) e;
+        cargarUsuarios = operaciones.apply("cargarUsuarios");
+        cargarAmigos = operaciones.apply("cargarAmigos");
+        guardarUsuarios = operaciones.apply("guardarUsuarios");
+        guardarAmigos = operaciones.apply("guardarAmigos");
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() throws Exception {
+        escenario.close();
+    }
+
+    @Benchmark
+    public Object cargarUsuarios() {
+        return cargarUsuarios.get();
+    }
+
+    @Benchmark
+    public Object cargarAmigos() {
+        return cargarAmigos.get();
+    }
+
+    @Benchmark
+    public Object guardarUsuarios() {
+        return guardarUsuarios.get();
+    }
+
+    @Benchmark
+    public Object guardarAmigos() {
+        return guardarAmigos.get();
+    }
+}
@@ -0,0 +1,119 @@
+package jmh;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks JMH de los caminos calientes de Servidor, llamados en el mismo
+ * proceso (sin RMI) para medir solo la logica del servidor. Los datos los
+ * prepara EscenarioServidor.
+ *
+ * Cada operacion tiene una version con un hilo y otra con HILOS hilos para ver
+ * la contencion entre ellos.
+ *
+ * Uso: make bench_jmh ARGS="jmh.ServidorBench -p usuarios=100000 -p amigos=100"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class ServidorBench {
+
+    private static final int HILOS = 8;
+
+    @Param({"10000", "100000"})
+    int usuarios;
+
+    @Param({"10", "100"})
+    int amigos;
+
+    private AutoCloseable escenario;
+    private IntFunction<Object> login;
+    private IntFunction<Object> iniciarSesion;
+    private IntFunction<Object> getAmigosConectados;
+    private IntFunction<Object> solicitarYAceptar;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void preparar() throws Exception {
+        // Las clases del chat estan en el paquete por defecto: se crean por reflexion
+        Object e = Class.forName("EscenarioServidor").getConstructor(int.class, int.class)
+                .newInstance(usuarios, amigos);
+        Function<String, IntFunction<Object>> operaciones = (Function<String, IntFunction<Object>>) e;
+        escenario = (AutoCloseable) e;
+        login = operaciones.apply("login");
+        iniciarSesion = operaciones.apply("iniciarSesion");
+        getAmigosConectados = operaciones.apply("getAmigosConectados");
+        solicitarYAceptar = operaciones.apply("solicitarYAceptar");
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() throws Exception {
+        escenario.close();
+    }
+
+    private int aleatorio() {
+        return ThreadLocalRandom.current().nextInt(usuarios);
+    }
+
+    // =================
+    // ===== LOGIN =====
+    // =================
+
+    @Benchmark
+    public Object login() {
+        return login.apply(aleatorio());
+    }
+
+    @Benchmark
+    @Threads(HILOS)
+    public Object loginConcurrente() {
+        return login.apply(aleatorio());
+    }
+
+    @Benchmark
+    public Object iniciarSesion() {
+        return iniciarSesion.apply(aleatorio());
+    }
+
+    @Benchmark
+    @Threads(HILOS)
+    public Object iniciarSesionConcurrente() {
+        return iniciarSesion.apply(aleatorio());
+    }
+
+    // =============================
+    // ===== AMIGOS CONECTADOS =====
+    // =============================
+
+    @Benchmark
+    public Object getAmigosConectados() {
+        return getAmigosConectados.apply(aleatorio());
+    }
+
+    @Benchmark
+    @Threads(HILOS)
+    public Object getAmigosConectadosConcurrente() {
+        return getAmigosConectados.apply(aleatorio());
+    }
+
+    // ===================
+    // ===== AMISTAD =====
+    // ===================
+
+    @Benchmark
+    public Object solicitarYAceptar() {
+        return solicitarYAceptar.apply(0);
+    }
+
+    @Benchmark
+    @Threads(HILOS)
+    public Object solicitarYAceptarConcurrente() {
+        return solicitarYAceptar.apply(0);
+    }
+}
@@ -0,0 +1,46 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Arreglo indexado por id de usuario que crece por segmentos.
+ *
+ * Crecer nunca copia lo ya guardado, asi que lecturas y escrituras de
+ * posiciones distintas no necesitan ningun cerrojo comun.
+ */
+public class ArregloSegmentado<T> {
+
+    private static final int BITS_SEGMENTO = 12;
+    private static final int TAMANIO_SEGMENTO = 1 << BITS_SEGMENTO;
+    private static final int MASCARA = TAMANIO_SEGMENTO - 1;
+    private static final int MAX_SEGMENTOS = 1 << 16;
+
+    private final AtomicReferenceArray<AtomicReferenceArray<T>> segmentos =
+            new AtomicReferenceArray<>(MAX_SEGMENTOS);
+
+    public T get(int i) {
+        AtomicReferenceArray<T> segmento = segmentos.get(i >>> BITS_SEGMENTO);
+        return segmento == null ? null : segmento.get(i & MASCARA);
+    }
+
+    public void set(int i, T valor) {
+        segmento(i).set(i & MASCARA, valor);
+    }
+
+    /* Guarda valor solo si la posicion esta vacia; devuelve el que queda guardado */
+    public T setSiVacio(int i, T valor) {
+        AtomicReferenceArray<T> segmento = segmento(i);
+        if (segmento.compareAndSet(i & MASCARA, null, valor)) {
+            return valor;
+        }
+        return segmento.get(i & MASCARA);
+    }
+
+    private AtomicReferenceArray<T> segmento(int i) {
+        int s = i >>> BITS_SEGMENTO;
+        AtomicReferenceArray<T> segmento = segmentos.get(s);
+        if (segmento == null) {
+            segmentos.compareAndSet(s, null, new AtomicReferenceArray<>(TAMANIO_SEGMENTO));
+            segmento = segmentos.get(s);
+        }
+        return segmento;
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Bloqueos repartidos por usuario (lock striping).
+ *
+ * Cada id de usuario cae siempre en el mismo cerrojo, de modo que las
+ * operaciones sobre usuarios distintos no se bloquean entre sí salvo
+ * colisión de franja.
+ */
+public class BloqueosUsuario {
+
+    private final Object[] bloqueos;
+    private final int mascara;
+
+    public BloqueosUsuario(int franjas) {
+        int n = Integer.highestOneBit(Math.max(1, franjas - 1)) << 1;
+        this.bloqueos = new Object[n];
+        this.mascara = n - 1;
+        for (int i = 0; i < n; i++) {
+            bloqueos[i] = new Object();
+        }
+    }
+
+    public Object de(int id) {
+        return bloqueos[id & mascara];
+    }
+
+    /* Para operaciones sobre dos usuarios: se bloquea siempre primero el de menor indice */
+    public Object primero(int a, int b) {
+        return bloqueos[Math.min(a & mascara, b & mascara)];
+    }
+
+    public Object segundo(int a, int b) {
+        return bloqueos[Math.max(a & mascara, b & mascara)];
+    }
+}
@@ -0,0 +1,211 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.*;
+import java.rmi.server.*;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Buzon de entrada de un cliente, exportado una sola vez por sesion en el
+ * puerto que elija el usuario (0: cualquiera libre). No se publica en ningun
+ * registro: el stub se le da al servidor al iniciar sesion y este se lo
+ * pasa a los amigos en los avisos de conexion.
+ *
+ * Reparte lo que llega en una Cola por emisor, que se crea con el primer
+ * mensaje o al abrir el Chat con ese contacto; asi el coste de entrar no
+ * depende del numero de amigos y los Chat son solo vistas locales.
+ *
+ * Cada contacto entrega con su clave, que se le da la primera vez que falta:
+ * se manda al Buzon que el servidor tiene para el (DirectorioBuzones) y se
+ * le pide que repita. Asi nadie puede escribir en la Cola de otro contacto
+ * aunque ponga su nombre en los Mensaje.
+ *
+ * Los ficheros no pasan por aqui: solo se decide la oferta y los datos van
+ * por el canal de RecepcionFicheros.
+ */
+public class Buzon extends UnicastRemoteObject implements IBuzon {
+
+    // Donde quedan los ficheros recibidos (y los a medias), en una carpeta por usuario
+    private static final String DIR_FICHEROS = System.getProperty("chat.ficheros.dir", "recibidos");
+    private static final SecureRandom aleatorio = new SecureRandom();
+
+    private final String usuario;
+    private final int puerto;
+    private final Map<String, Cola> colas = new ConcurrentHashMap<>();
+    // Clave que presenta cada contacto al entregar; dura lo que este Buzon
+    private final Map<String, Long> claves = new ConcurrentHashMap<>();
+    // Stubs de los contactos segun el servidor, y donde se guardan las claves que nos dan
+    private volatile DirectorioBuzones directorio;
+    // Recibe el emisor cada vez que llegan mensajes nuevos suyos
+    private volatile Consumer<String> oyente;
+    // Se abre con el primer fichero ofrecido
+    private RecepcionFicheros ficheros;
+    private volatile BiConsumer<String, Path> oyenteFicheros;
+    private volatile RecepcionFicheros.Aceptacion aceptacionFicheros;
+
+    public Buzon(String usuario, int puerto) throws RemoteException {
+        super(puerto, SocketsRmi.CONFIGURADOS, SocketsRmi.CONFIGURADOS);
+        this.usuario = usuario;
+        this.puerto = puerto;
+    }
+
+    public String getUsuario() {
+        return usuario;
+    }
+
+    public int getPuerto() {
+        return puerto;
+    }
+
+    public void setDirectorio(DirectorioBuzones directorio) {
+        this.directorio = directorio;
+    }
+
+    @Override
+    public long entregar(long clave, List<Mensaje> mensajes)
+            throws RemoteException, ColaLlenaException, ClaveIncorrectaException {
+        if (mensajes.isEmpty()) {
+            return -1;
+        }
+        String emisor = mensajes.get(0).getEmisor();
+        comprobarClave(emisor, clave);
+        for (Mensaje m : mensajes) {
+            if (!emisor.equals(m.getEmisor())) {
+                throw new RemoteException("Lote con mas de un emisor");
+            }
+        }
+        return cola(emisor).pushAll(mensajes);
+    }
+
+    @Override
+    public void recibirClave(String contacto, long clave) throws RemoteException {
+        DirectorioBuzones d = directorio;
+        if (d != null) {
+            d.guardarClave(contacto, clave);
+        }
+    }
+
+    /* Si no es la clave del emisor, se le manda a su Buzon y se rechaza la entrega */
+    private void comprobarClave(String emisor, long clave) throws ClaveIncorrectaException {
+        Long esperada = claves.get(emisor);
+        if (clave != 0 && esperada != null && esperada == clave) {
+            return;
+        }
+        long suya = claves.computeIfAbsent(emisor, e -> {
+            long c;
+            do {
+                c = aleatorio.nextLong();
+            } while (c == 0);
+            return c;
+        });
+        DirectorioBuzones d = directorio;
+        if (d != null) {
+            try {
+                IBuzon stub = d.obtener(emisor);
+                try {
+                    stub.recibirClave(usuario, suya);
+                } catch (RemoteException e) {
+                    d.fallo(emisor, stub, e);
+                }
+            } catch (ContactoCaidoException e) {
+                // Aun no toca llamarle; la recibira en otro intento
+            }
+        }
+        Log.depuracion("p2p.clave", "emisor", emisor);
+        throw new ClaveIncorrectaException(emisor);
+    }
+
+    @Override
+    public long getConfirmado(String emisor, long conversacion) throws RemoteException {
+        Cola c = colas.get(emisor);
+        return c == null ? -1 : c.getConfirmado(conversacion);
+    }
+
+    @Override
+    public int ofrecerFichero(long clave, String emisor, String id, String nombre, long tamano)
+            throws RemoteException, ClaveIncorrectaException {
+        comprobarClave(emisor, clave);
+        try {
+            return ficheros().ofrecer(emisor, id, nombre, tamano);
+        } catch (IOException e) {
+            Log.error("ficheros.abrir", e);
+            return -1;
+        }
+    }
+
+    private synchronized RecepcionFicheros ficheros() throws IOException {
+        if (ficheros == null) {
+            ficheros = new RecepcionFicheros(Paths.get(DIR_FICHEROS, usuario));
+            ficheros.setOyente((emisor, ruta) -> {
+                BiConsumer<String, Path> o = oyenteFicheros;
+                if (o != null) {
+                    o.accept(emisor, ruta);
+                }
+            });
+            ficheros.setAceptacion((emisor, nombre, tamano) -> {
+                RecepcionFicheros.Aceptacion a = aceptacionFicheros;
+                return a != null && a.aceptar(emisor, nombre, tamano);
+            });
+        }
+        return ficheros;
+    }
+
+    /* Decide que ficheros ofrecidos se reciben; sin ella se rechazan todos */
+    public void setAceptacionFicheros(RecepcionFicheros.Aceptacion aceptacion) {
+        this.aceptacionFicheros = aceptacion;
+    }
+
+    /* Recibe el emisor y la ruta de cada fichero que termina de llegar */
+    public void setOyenteFicheros(BiConsumer<String, Path> oyente) {
+        this.oyenteFicheros = oyente;
+    }
+
+    /* La Cola de un contacto, creandola si aun no hay */
+    public Cola cola(String emisor) {
+        return colas.computeIfAbsent(emisor, e -> {
+            Cola c = new Cola(EstadisticasPar.de(usuario, e));
+            c.setOyente(() -> avisar(e));
+            return c;
+        });
+    }
+
+    /* Olvida la Cola de un contacto que se ha desconectado, con lo que tuviera sin leer */
+    public void quitar(String emisor) {
+        Cola c = colas.remove(emisor);
+        if (c != null) {
+            c.cerrar();
+        }
+    }
+
+    public void setOyente(Consumer<String> oyente) {
+        this.oyente = oyente;
+    }
+
+    private void avisar(String emisor) {
+        Consumer<String> o = oyente;
+        if (o != null) {
+            o.accept(emisor);
+        }
+    }
+
+    /* Deja de recibir y borra lo que hubiera en disco */
+    public void cerrar() {
+        try {
+            unexportObject(this, true);
+        } catch (NoSuchObjectException ignore) {
+        }
+        for (String emisor : colas.keySet()) {
+            quitar(emisor);
+        }
+        synchronized (this) {
+            if (ficheros != null) {
+                ficheros.cerrar();
+            }
+        }
+    }
+}
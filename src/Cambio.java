@@ -0,0 +1,52 @@
+import java.io.Serializable;
+
+/**
+ * Un cambio en el estado de un usuario (amigos, conectados o solicitudes),
+ * tal como se lo devuelve getCambiosDesde.
+ */
+public class Cambio implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Tipo {
+        AMIGO_NUEVO,
+        AMIGO_CONECTADO,
+        AMIGO_DESCONECTADO,
+        SOLICITUD_NUEVA,
+        SOLICITUD_ELIMINADA
+    }
+
+    private final long version;
+    private final Tipo tipo;
+    private final String usuario;
+    // Solo en AMIGO_CONECTADO
+    private final String direccion;
+    private final IBuzon buzon;
+
+    public Cambio(long version, Tipo tipo, String usuario, String direccion, IBuzon buzon) {
+        this.version = version;
+        this.tipo = tipo;
+        this.usuario = usuario;
+        this.direccion = direccion;
+        this.buzon = buzon;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public Tipo getTipo() {
+        return tipo;
+    }
+
+    public String getUsuario() {
+        return usuario;
+    }
+
+    public String getDireccion() {
+        return direccion;
+    }
+
+    public IBuzon getBuzon() {
+        return buzon;
+    }
+}
@@ -0,0 +1,33 @@
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Respuesta de getCambiosDesde: los cambios posteriores a la version que tenia
+ * el cliente o, si ya no estan en el registro, el estado completo.
+ */
+public class CambiosUsuario implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long version;
+    private final List<Cambio> cambios;
+    // No nulo cuando el cliente se ha quedado demasiado atras y debe reemplazar su estado
+    private final SesionUsuario completo;
+
+    public CambiosUsuario(long version, List<Cambio> cambios, SesionUsuario completo) {
+        this.version = version;
+        this.cambios = cambios;
+        this.completo = completo;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<Cambio> getCambios() {
+        return cambios;
+    }
+
+    public SesionUsuario getCompleto() {
+        return completo;
+    }
+}
@@ -0,0 +1,138 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Conexion de EnvioFichero con RecepcionFicheros, con plazo en cada espera.
+ *
+ * En modo bloqueante un SocketChannel no respeta SO_TIMEOUT, y una conexion
+ * medio abierta (el otro se apaga sin FIN ni RST) dejaria el hilo esperando
+ * para siempre. Aqui el canal es no bloqueante y cada lectura o escritura que
+ * no avanza espera en un Selector como mucho PLAZO_MS; pasado ese tiempo lanza
+ * SocketTimeoutException y quien la usa vuelve a conectar. close() desde
+ * otro hilo despierta al que espera con AsynchronousCloseException.
+ */
+class CanalFicheros implements Closeable {
+
+    static final long PLAZO_MS = Long.getLong("chat.ficheros.plazoMs", 30_000);
+    private static final int MAX_CADENA = 1024;
+
+    private final SocketChannel canal;
+    private final Selector selector;
+    private final SelectionKey clave;
+
+    CanalFicheros(SocketChannel canal) throws IOException {
+        this.canal = canal;
+        canal.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        canal.configureBlocking(false);
+        this.selector = Selector.open();
+        this.clave = canal.register(selector, 0);
+    }
+
+    /* Conecta con el mismo plazo */
+    static CanalFicheros conectar(String host, int puerto) throws IOException {
+        SocketChannel canal = SocketChannel.open();
+        try {
+            canal.socket().connect(new InetSocketAddress(host, puerto), (int) PLAZO_MS);
+            return new CanalFicheros(canal);
+        } catch (IOException e) {
+            canal.close();
+            throw e;
+        }
+    }
+
+    void leer(ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            int n = canal.read(b);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            if (n == 0) {
+                esperar(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    void escribir(ByteBuffer... bs) throws IOException {
+        while (bs[bs.length - 1].hasRemaining()) {
+            if (canal.write(bs) == 0) {
+                esperar(SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void esperar(int operacion) throws IOException {
+        int listos;
+        try {
+            clave.interestOps(operacion);
+            listos = selector.select(PLAZO_MS);
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException | CancelledKeyException e) {
+            throw new AsynchronousCloseException();
+        }
+        if (!canal.isOpen()) {
+            throw new AsynchronousCloseException();
+        }
+        if (listos == 0) {
+            throw new SocketTimeoutException("Sin respuesta en " + PLAZO_MS + " ms");
+        }
+    }
+
+    int leerEntero(ByteBuffer cab) throws IOException {
+        cab.clear().limit(4);
+        leer(cab);
+        return cab.getInt(0);
+    }
+
+    long leerLargo(ByteBuffer cab) throws IOException {
+        cab.clear().limit(8);
+        leer(cab);
+        return cab.getLong(0);
+    }
+
+    void escribirLargo(ByteBuffer cab, long valor) throws IOException {
+        cab.clear();
+        cab.putLong(valor).flip();
+        escribir(cab);
+    }
+
+    String leerCadena(ByteBuffer cab) throws IOException {
+        int n = leerEntero(cab);
+        if (n < 0 || n > MAX_CADENA) {
+            throw new IOException("Cadena de " + n + " bytes");
+        }
+        ByteBuffer b = ByteBuffer.allocate(n);
+        leer(b);
+        return new String(b.array(), StandardCharsets.UTF_8);
+    }
+
+    static void escribirCadena(ByteBuffer b, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        b.putInt(bytes.length).put(bytes);
+    }
+
+    /* Se puede llamar desde otro hilo para cortar una conexion vieja */
+    @Override
+    public void close() {
+        try {
+            canal.close();
+        } catch (IOException ignore) {
+        }
+        selector.wakeup();
+        try {
+            selector.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
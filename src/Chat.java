@@ -1,53 +1,226 @@
-import java.rmi.Naming;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
 
+/**
+ * Conversacion con un contacto: vista local de su Cola en el Buzon propio
+ * para leer, y stub del Buzon del contacto (del DirectorioBuzones) para enviar.
+ */
 public class Chat {
-    private ICola ecola;
-    private Cola lcola;
-    private String direccion_enviar;
-    private Integer puerto_enviar;
-    private Integer puerto_creador;
+    // Mensajes como mucho por llamada a drain
+    private static final int MAX_LECTURA = 256;
+    // Enviados sin confirmar que se guardan para reenviar; al pasar se descarta el mas antiguo
+    private static final int MAX_SIN_CONFIRMAR = 10_000;
+    // Reintentos de un envio fallido, cada uno tras volver a preguntar al Buzon del otro
+    private static final int REINTENTOS = 1;
+
+    // Stubs y salud de los contactos; ecola es el ultimo stub con el que se sincronizo esta conversacion
+    private final DirectorioBuzones directorio;
+    private IBuzon ecola;
+    private final Buzon buzon;
+    private final Cola lcola;
     private String creador;
+    private final String otro;
+    private final EstadisticasPar estadisticas;
+
+    // Envio: numeracion de la conversacion actual y lo que el otro aun no ha confirmado (cerrojo: this)
+    private long conversacion = ThreadLocalRandom.current().nextLong();
+    private long secuencia = 0;
+    private final TreeMap<Long, Mensaje> sinConfirmar = new TreeMap<>();
+    // Tras un fallo o una conversacion nueva el siguiente envio lleva todo lo pendiente
+    private boolean reenviarTodo = false;
+
+    public Chat(String yo, String otro, Buzon buzon, DirectorioBuzones directorio) {
+        estadisticas = EstadisticasPar.de(yo, otro);
+        this.directorio = directorio;
+        // Conversacion nueva: el otro la empieza en 1 sin necesidad de preguntarle
+        this.ecola = directorio.actual(otro);
+        creador = yo;
+        this.otro = otro;
+        this.buzon = buzon;
+        // Puede existir ya si el contacto escribio antes de que llegara su conexion
+        this.lcola = buzon.cola(otro);
+    }
+
+    public void enviar(String msj) throws Exception {
+        enviar(List.of(msj));
+    }
 
-    public Chat(String yo, String otro, String d, Integer p, Integer mip) {
+    /*
+     * Varios mensajes en una sola llamada remota. Si falla se reintenta una vez
+     * (RMI abre otra conexion, o el directorio pide un stub nuevo); si tampoco, los
+     * mensajes quedan sin confirmar y se reenvian con el siguiente envio (la Cola
+     * descarta los que ya tuviera). Si la Cola del otro esta llena lanza
+     * ColaLlenaException sin reintentar, y si el contacto esta caido
+     * ContactoCaidoException sin llamada remota.
+     */
+    public void enviar(List<String> mensajes) throws Exception {
+        if (mensajes.isEmpty()) {
+            return;
+        }
+        List<Mensaje> nuevos = numerar(mensajes);
+        for (int intento = 0; ; intento++) {
+            IBuzon stub = directorio.obtener(otro);
+            List<Mensaje> lote = null;
+            long inicio = 0;
+            try {
+                conectar(stub);
+                lote = lote(nuevos);
+                if (lote.isEmpty()) {
+                    return;
+                }
+                inicio = System.nanoTime();
+                long confirmado = stub.entregar(directorio.clave(otro), lote);
+                directorio.exito(otro);
+                confirmar(lote.get(0).getConversacion(), confirmado, System.nanoTime() - inicio);
+                return;
+            } catch (ColaLlenaException e) {
+                // Contrapresion: no se reintenta, lo que no entro sale con el siguiente envio
+                directorio.exito(otro);
+                confirmar(lote.get(0).getConversacion(), e.getConfirmado(), System.nanoTime() - inicio);
+                estadisticas.rechazado();
+                synchronized (this) {
+                    reenviarTodo = true;
+                }
+                Log.aviso("chat.colaLlena", "destino", otro,
+                        "sinConfirmar", estadisticas.getSinConfirmar());
+                throw e;
+            } catch (ClaveIncorrectaException e) {
+                // Su Buzon acaba de mandar la clave al nuestro: se repite sin contar como fallo suyo
+                if (intento >= REINTENTOS) {
+                    Log.aviso("chat.clave", "destino", otro);
+                    throw e;
+                }
+            } catch (RemoteException e) {
+                estadisticas.falloEnvio();
+                directorio.fallo(otro, stub, e);
+                synchronized (this) {
+                    reenviarTodo = true;
+                    // Antes de reintentar se vuelve a preguntar que tiene
+                    ecola = null;
+                }
+                if (intento >= REINTENTOS) {
+                    Log.error("chat.enviar", "destino", otro, e);
+                    throw new Exception(e);
+                }
+            }
+        }
+    }
+
+    private synchronized List<Mensaje> numerar(List<String> textos) {
+        long ahora = Mensaje.ahora();
+        List<Mensaje> nuevos = new ArrayList<>(textos.size());
+        for (String texto : textos) {
+            Mensaje m = new Mensaje(creador, conversacion, ++secuencia, ahora, texto);
+            sinConfirmar.put(m.getSecuencia(), m);
+            nuevos.add(m);
+        }
+        while (sinConfirmar.size() > MAX_SIN_CONFIRMAR) {
+            sinConfirmar.pollFirstEntry();
+            estadisticas.descartado();
+        }
+        return nuevos;
+    }
+
+    /* Lo que hay que mandar: los nuevos que siguen sin confirmar, o todo lo pendiente si toca */
+    private synchronized List<Mensaje> lote(List<Mensaje> nuevos) {
+        List<Mensaje> lote;
+        if (reenviarTodo) {
+            reenviarTodo = false;
+            lote = new ArrayList<>(sinConfirmar.values());
+            estadisticas.enviado(0, lote.size());
+        } else {
+            lote = new ArrayList<>(nuevos.size());
+            for (Mensaje m : nuevos) {
+                // Otro envio pudo confirmarlo, descartarlo o renumerarlo ya
+                if (sinConfirmar.get(m.getSecuencia()) == m) {
+                    lote.add(m);
+                }
+            }
+            estadisticas.enviado(lote.size(), 0);
+        }
+        return lote;
+    }
+
+    private synchronized void confirmar(long conv, long confirmado, long nanos) {
+        if (conv == conversacion) {
+            sinConfirmar.headMap(confirmado, true).clear();
+        }
+        estadisticas.confirmado(nanos, sinConfirmar.size());
+    }
+
+    /*
+     * Tras un fallo, o con un stub distinto (el otro ha vuelto a entrar), se
+     * pregunta al Buzon del otro que tiene de esta conversacion. Si no la
+     * conoce (no ha recibido nada de ella, o ha cerrado la Cola) lo pendiente
+     * se renumera desde 1 en una conversacion nueva.
+     */
+    private synchronized void conectar(IBuzon stub) throws RemoteException {
+        if (stub.equals(ecola)) {
+            return;
+        }
         try {
-            direccion_enviar = d;
-            puerto_enviar = p;
-            puerto_creador = mip;
-            creador = yo;
-            this.lcola = new Cola();
-            this.lcola.servir(this.lcola, puerto_creador, otro);
+            long confirmado = stub.getConfirmado(creador, conversacion);
+            if (confirmado < 0) {
+                nuevaConversacion();
+            } else {
+                sinConfirmar.headMap(confirmado, true).clear();
+            }
+            ecola = stub;
         } catch (RemoteException e) {
-            System.out.println("You are coocked! RMI fails with: " + e);
-            System.exit(124);
+            reenviarTodo = true;
+            Log.error("chat.conectar", "destino", otro, e);
+            throw e;
         }
     }
 
-    public void enviar(String msj) throws Exception {
+    private void nuevaConversacion() {
+        conversacion = ThreadLocalRandom.current().nextLong();
+        secuencia = 0;
+        List<Mensaje> pendientes = new ArrayList<>(sinConfirmar.values());
+        sinConfirmar.clear();
+        for (Mensaje m : pendientes) {
+            Mensaje r = m.renumerar(conversacion, ++secuencia);
+            sinConfirmar.put(r.getSecuencia(), r);
+        }
+        reenviarTodo = !sinConfirmar.isEmpty();
+    }
+
+    public String leer() throws Exception {
         try {
-            if (ecola == null) {
-                if (creador == null)
-                    throw new Exception("Creador is null");
-                String regurl = "rmi://" + direccion_enviar + ":" + puerto_enviar + "/" + creador;
-                System.out.println(regurl);
-                ecola = (ICola) Naming.lookup(regurl);
-            }
+            return lcola.pop();
         } catch (Exception e) {
-            System.out.println("enviar: " + e);
+            Log.error("chat.leer", e);
             throw new Exception(e);
         }
-        ecola.push(msj);
     }
 
-    public String leer() throws Exception {
+    /* Todo lo que hay en la cola, en orden; una llamada por cada MAX_LECTURA mensajes */
+    public List<String> leerTodos() throws Exception {
         try {
-            return lcola.pop();
+            List<String> res = lcola.drain(MAX_LECTURA);
+            if (res.size() == MAX_LECTURA) {
+                res = new ArrayList<>(res);
+                List<String> mas;
+                do {
+                    mas = lcola.drain(MAX_LECTURA);
+                    res.addAll(mas);
+                } while (mas.size() == MAX_LECTURA);
+            }
+            return res;
         } catch (Exception e) {
-            System.out.println("leer: " + e);
+            Log.error("chat.leer", e);
             throw new Exception(e);
         }
     }
 
+    /* Olvida la Cola local del contacto (se ha desconectado) */
+    public void cerrar() {
+        buzon.quitar(otro);
+    }
+
     public boolean isEmpty() throws Exception {
         return lcola.get() == null;
     }
@@ -77,6 +77,12 @@ public interface ChatClientInterface {
      */
     List<String> searchUsers(String query);
     
+    /**
+     * Obtiene la lista de amigos conectados ahora
+     * @return Lista de nombres de amigos conectados
+     */
+    List<String> getOnlineFriends();
+    
     /**
      * Envía una solicitud de amistad
      * @param username Usuario al que se envía la solicitud
@@ -109,4 +115,25 @@ public interface ChatClientInterface {
      * @return true si se rechazó correctamente
      */
     boolean rejectFriendRequest(String username);
+
+
+    // ============ NOTIFICACIONES ============
+
+    /**
+     * Receptor de los mensajes que van llegando, para no tener que consultar con getNewMessages
+     */
+    interface MessageListener {
+        /**
+         * @param contact Contacto que envía los mensajes
+         * @param messages Mensajes nuevos, en el mismo formato que devuelve getNewMessages
+         */
+        void onMessages(String contact, List<String> messages);
+    }
+
+    /**
+     * Registra el receptor de mensajes nuevos; con null se vuelve a consultar con getNewMessages.
+     * Se llama desde un hilo del cliente, nunca desde el de la UI
+     * @param listener Receptor, o null para quitarlo
+     */
+    void setMessageListener(MessageListener listener);
 }
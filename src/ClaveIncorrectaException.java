@@ -0,0 +1,14 @@
+/**
+ * El emisor ha entregado sin la clave que el Buzon le dio, o con una vieja.
+ *
+ * Antes de lanzarla el Buzon manda la clave al Buzon del emisor que tiene el
+ * servidor, asi que el emisor de verdad puede repetir en seguida; quien se
+ * haga pasar por otro no la recibe nunca.
+ */
+public class ClaveIncorrectaException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public ClaveIncorrectaException(String emisor) {
+        super("Clave incorrecta para " + emisor);
+    }
+}
@@ -1,19 +1,53 @@
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Cliente implements ChatClientInterface {
 
-    private HashMap<String, Chat> chats;
+    private ConcurrentHashMap<String, Chat> chats;
     private String nombre;
     private String clave;
     private Integer puerto;
     private ClienteCallback cb;
+    // Un solo objeto remoto para recibir de todos los amigos
+    private Buzon buzon;
+    // Stubs de los Buzones de los amigos, con el mismo ciclo de vida que buzon
+    private DirectorioBuzones directorio;
     private ArrayList<String> amigosConectados;
     private boolean conectado = false;
 
+    // Copia local de amigos y solicitudes, al dia con la version del servidor
+    private final Set<String> amigos = new LinkedHashSet<>();
+    private final List<String> solicitudes = new ArrayList<>();
+    private long version = 0;
+
+    private static final int RESULTADOS_BUSQUEDA = 20;
+
+    // Entrega de mensajes nuevos al oyente; un solo hilo para todos los clientes del proceso
+    private static final ExecutorService entregas = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "cliente-mensajes");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile MessageListener oyenteMensajes;
+
+    // Envios de ficheros en curso, uno por hilo
+    private static final ExecutorService ficheros = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "cliente-ficheros");
+        t.setDaemon(true);
+        return t;
+    });
+
     public Integer setPuerto(Integer puerto) {
         return this.puerto = puerto;
     }
@@ -27,7 +61,7 @@ public class Cliente implements ChatClientInterface {
     }
 
     public Cliente() {
-        chats = new HashMap<>();
+        chats = new ConcurrentHashMap<>();
         amigosConectados = new ArrayList<>();
     }
 
@@ -78,17 +112,45 @@ public class Cliente implements ChatClientInterface {
         }
     }
 
-    /* NOMBRE es el nombre del receptor */
-    public void nuevoChat(String nombre, String direccion, Integer puerto) throws Exception {
+    /* NOMBRE es el nombre del receptor; destino es el stub de su Buzon que dio el servidor */
+    public void nuevoChat(String nombre, IBuzon destino) throws Exception {
         try {
-            System.out.println("New Chat :: " + this.nombre + " -> " + nombre + " @ " + direccion + ":" + puerto);
-            chats.put(nombre, new Chat(this.nombre, nombre, direccion, puerto, this.puerto));
+            System.out.println("New Chat :: " + this.nombre + " -> " + nombre);
+            Buzon propio = buzon();
+            directorio.actualizar(nombre, destino);
+            chats.put(nombre, new Chat(this.nombre, nombre, propio, directorio));
+            // Lo que hubiera escrito antes de que llegara su conexion
+            avisarMensajes(nombre);
         } catch (Exception e) {
             System.out.println("nuevoChat exception: " + e);
             throw e;
         }
     }
 
+    /* El Buzon de este usuario y puerto; se exporta la primera vez, antes del login */
+    synchronized Buzon buzon() throws Exception {
+        if (buzon == null || !buzon.getUsuario().equals(nombre) || buzon.getPuerto() != puerto) {
+            if (buzon != null) {
+                buzon.cerrar();
+            }
+            buzon = new Buzon(nombre, puerto);
+            buzon.setOyente(this::avisarMensajes);
+            buzon.setOyenteFicheros((amigo, ruta) -> System.out.println("Fichero de " + amigo + " recibido en " + ruta));
+            // Solo de amigos conectados (con chat abierto)
+            buzon.setAceptacionFicheros((amigo, fichero, bytes) -> {
+                if (!chats.containsKey(amigo)) {
+                    return false;
+                }
+                System.out.println("Recibiendo " + fichero + " (" + bytes + " bytes) de " + amigo);
+                return true;
+            });
+            // Tras un fallo el stub de un amigo se vuelve a pedir al servidor
+            directorio = new DirectorioBuzones(nombre, amigo -> cb == null ? null : cb.getBuzon(amigo));
+            buzon.setDirectorio(directorio);
+        }
+        return buzon;
+    }
+
     public void mostrarSolicitudAmistad(String deUsuario) {
         System.out.println("=== SOLICITUD DE AMISTAD ===");
         System.out.println("El usuario " + deUsuario + " quiere ser tu amigo");
@@ -104,7 +166,7 @@ public class Cliente implements ChatClientInterface {
                     pedirClave(br);
                     pedirPuerto(br);
 
-                    if (cb.login(this.nombre, this.clave, this.puerto)) {
+                    if (cb.login(this.nombre, this.clave, this.puerto, buzon())) {
                         break;
                     } else {
                         System.out.println("Error! Invalid login");
@@ -122,29 +184,23 @@ public class Cliente implements ChatClientInterface {
                 }
             }
 
+            // El login ya trae amigos, conectados con su dirección y solicitudes
+            SesionUsuario sesion = cb.getSesion();
+            aplicarSesion(sesion);
+
             System.out.println("=== MIS AMIGOS ===");
-            List<String> amigos = cb.getAmigos();
-            if (amigos != null) {
-                for (String a : amigos) {
-                    System.out.println("Amigo: " + a);
-                }
+            for (String a : sesion.getAmigos()) {
+                System.out.println("Amigo: " + a);
             }
 
             System.out.println("=== AMIGOS CONECTADOS ===");
-            List<String> amigosConectadosList = cb.getAmigosConectados();
-            if (amigosConectadosList != null) {
-                for (String a : amigosConectadosList) {
-                    System.out.println("Amigo Conectado: " + a);
-                    String direccion = cb.getDireccion(a);
-                    if (direccion != null) {
-                        addAmigoConectado(a, direccion);
-                    }
-                }
+            for (String a : sesion.getAmigosConectados().keySet()) {
+                System.out.println("Amigo Conectado: " + a);
             }
 
             // Mostrar solicitudes pendientes
-            List<String> solicitudes = cb.getSolicitudesPendientes();
-            if (solicitudes != null && !solicitudes.isEmpty()) {
+            List<String> solicitudes = sesion.getSolicitudesPendientes();
+            if (!solicitudes.isEmpty()) {
                 System.out.println("=== SOLICITUDES PENDIENTES ===");
                 for (String solicitud : solicitudes) {
                     System.out.println("Solicitud de: " + solicitud);
@@ -153,6 +209,7 @@ public class Cliente implements ChatClientInterface {
 
             System.out.println("\nComandos disponibles:");
             System.out.println("  mensaje <amigo> <texto> - Enviar mensaje");
+            System.out.println("  fichero <amigo> <ruta> - Enviar fichero");
             System.out.println("  solicitar <usuario> - Enviar solicitud de amistad");
             System.out.println("  aceptar <usuario> - Aceptar solicitud de amistad");
             System.out.println("  rechazar <usuario> - Rechazar solicitud de amistad");
@@ -184,6 +241,23 @@ public class Cliente implements ChatClientInterface {
                         }
                         break;
 
+                    case "fichero":
+                        if (partes.length >= 3) {
+                            String amigo = partes[1];
+                            if (!chats.containsKey(amigo)) {
+                                System.out.println("No tienes chat con " + amigo);
+                                break;
+                            }
+                            // Un error aqui no debe sacar del bucle sin cerrar sesion
+                            try {
+                                enviarFichero(amigo, Paths.get(partes[2])).getResultado().whenComplete((r, e) ->
+                                        System.out.println(e == null ? "Fichero enviado: " + r : "Error enviando fichero: " + e));
+                            } catch (Exception e) {
+                                System.out.println("Error enviando fichero: " + e.getMessage());
+                            }
+                        }
+                        break;
+
                     case "solicitar":
                         if (partes.length >= 2) {
                             cb.solicitarAmistad(partes[1]);
@@ -235,11 +309,8 @@ public class Cliente implements ChatClientInterface {
                 // Leer mensajes de todos los chats
                 for (String amigo : chats.keySet()) {
                     Chat chat = chats.get(amigo);
-                    while (!chat.isEmpty()) {
-                        String mensaje = chat.leer();
-                        if (mensaje != null) {
-                            System.out.println("[" + amigo + "]: " + mensaje);
-                        }
+                    for (String mensaje : chat.leerTodos()) {
+                        System.out.println("[" + amigo + "]: " + mensaje);
                     }
                 }
             }
@@ -252,21 +323,98 @@ public class Cliente implements ChatClientInterface {
         }
     }
 
-    public void addAmigoConectado(String nombre, String direccion) throws Exception {
+    public synchronized void addAmigoConectado(String nombre, String direccion, IBuzon destino) throws Exception {
         if (!amigosConectados.contains(nombre)) {
             amigosConectados.add(nombre);
-            String[] host_port = direccion.split(":");
-            if (host_port.length == 2) {
-                nuevoChat(nombre, host_port[0], Integer.parseInt(host_port[1]));
-            } else {
-                System.out.println("Dirección inválida: " + direccion);
+        }
+        Chat actual = chats.get(nombre);
+        if (destino == null) {
+            System.out.println("Sin buzón para " + nombre + " (" + direccion + ")");
+        } else if (actual == null) {
+            nuevoChat(nombre, destino);
+        } else {
+            // Un Buzon distinto es otra sesion del amigo (la desconexion pudo fusionarse con la
+            // conexion): el Chat sigue y lo pendiente se reenvia por el nuevo
+            directorio.actualizar(nombre, destino);
+        }
+    }
+
+    /* Reemplaza el estado local por el de la sesión y abre los chats con los amigos conectados */
+    synchronized void aplicarSesion(SesionUsuario sesion) {
+        amigos.clear();
+        amigos.addAll(sesion.getAmigos());
+        solicitudes.clear();
+        solicitudes.addAll(sesion.getSolicitudesPendientes());
+        version = sesion.getVersion();
+
+        for (String amigo : new ArrayList<>(amigosConectados)) {
+            if (!sesion.getAmigosConectados().containsKey(amigo)) {
+                try {
+                    removeAmigoConectado(amigo);
+                } catch (Exception e) {
+                    System.out.println("Error cerrando chat con " + amigo + ": " + e);
+                }
+            }
+        }
+        for (Map.Entry<String, String> a : sesion.getAmigosConectados().entrySet()) {
+            try {
+                addAmigoConectado(a.getKey(), a.getValue(), sesion.getBuzones().get(a.getKey()));
+            } catch (Exception e) {
+                System.out.println("Error abriendo chat con " + a.getKey() + ": " + e);
+            }
+        }
+    }
+
+    /* Trae del servidor solo lo que ha cambiado desde la última versión conocida */
+    private synchronized void sincronizar() {
+        if (cb == null || !conectado) {
+            return;
+        }
+        CambiosUsuario cambios = cb.getCambiosDesde(version);
+        if (cambios == null) {
+            return;
+        }
+        if (cambios.getCompleto() != null) {
+            aplicarSesion(cambios.getCompleto());
+            return;
+        }
+        for (Cambio c : cambios.getCambios()) {
+            try {
+                switch (c.getTipo()) {
+                    case AMIGO_NUEVO:
+                        amigos.add(c.getUsuario());
+                        break;
+                    case AMIGO_CONECTADO:
+                        addAmigoConectado(c.getUsuario(), c.getDireccion(), c.getBuzon());
+                        break;
+                    case AMIGO_DESCONECTADO:
+                        if (amigosConectados.contains(c.getUsuario())) {
+                            removeAmigoConectado(c.getUsuario());
+                        }
+                        break;
+                    case SOLICITUD_NUEVA:
+                        if (!solicitudes.contains(c.getUsuario())) {
+                            solicitudes.add(c.getUsuario());
+                        }
+                        break;
+                    case SOLICITUD_ELIMINADA:
+                        solicitudes.remove(c.getUsuario());
+                        break;
+                }
+            } catch (Exception e) {
+                System.out.println("Error aplicando cambio " + c.getTipo() + " de " + c.getUsuario() + ": " + e);
             }
         }
+        version = cambios.getVersion();
     }
 
-    public void removeAmigoConectado(String nombre) throws Exception {
+    public synchronized void removeAmigoConectado(String nombre) throws Exception {
         amigosConectados.remove(nombre);
-        chats.remove(nombre);
+        Chat chat = chats.remove(nombre);
+        if (chat != null) {
+            chat.cerrar();
+            directorio.olvidar(nombre);
+        }
         System.out.println("Chat con " + nombre + " eliminado");
     }
 
@@ -280,8 +428,11 @@ public class Cliente implements ChatClientInterface {
             this.clave = password;
             this.puerto = port;
 
-            boolean ok = cb.login(username, password, port);
+            boolean ok = cb.login(username, password, port, buzon());
             this.conectado = ok;
+            if (ok) {
+                aplicarSesion(cb.getSesion());
+            }
             return ok;
         } catch (Exception e) {
             return false;
@@ -328,6 +479,40 @@ public class Cliente implements ChatClientInterface {
         return getNuevosMensajesChat(contact); // existente en tu clase
     }
 
+    @Override
+    public void setMessageListener(MessageListener listener) {
+        this.oyenteMensajes = listener;
+        // Lo que llego antes de registrarlo
+        if (listener != null) {
+            for (String contacto : chats.keySet()) {
+                avisarMensajes(contacto);
+            }
+        }
+    }
+
+    /* Lo llama la Cola del chat al recibir: se drena y entrega en el hilo de entregas */
+    private void avisarMensajes(String contacto) {
+        if (oyenteMensajes == null) {
+            return;
+        }
+        entregas.execute(() -> {
+            MessageListener oyente = oyenteMensajes;
+            if (oyente == null) {
+                return;
+            }
+            // Si ya se drenaron con un aviso anterior no hay nada que entregar
+            List<String> nuevos = getNuevosMensajesChat(contacto);
+            if (nuevos.isEmpty()) {
+                return;
+            }
+            try {
+                oyente.onMessages(contacto, nuevos);
+            } catch (RuntimeException e) {
+                Log.error("mensajes.oyente", "contacto", contacto, e);
+            }
+        });
+    }
+
     @Override
     public java.util.Map<String, Integer> checkNewMessages() {
         java.util.Map<String, Integer> res = new java.util.HashMap<>();
@@ -358,16 +543,22 @@ public class Cliente implements ChatClientInterface {
 
     @Override
     public List<String> searchUsers(String query) {
-        // Si tienes búsqueda en el servidor, delega:
-        // return cb.buscarUsuarios(query);
+        return searchUsers(query, 0, RESULTADOS_BUSQUEDA);
+    }
 
-        // Fallback mínimo: si el usuario existe exactamente, devuélvelo.
-        java.util.List<String> out = new java.util.ArrayList<>();
-        try {
-            if (cb != null && cb.existeUsuario(query) && !query.equals(nombre)) {
-                out.add(query);
+    /* Busqueda por prefijo en el servidor, paginada; no incluye al propio usuario */
+    public List<String> searchUsers(String query, int offset, int limit) {
+        List<String> out = new ArrayList<>();
+        if (cb == null || query == null) {
+            return out;
+        }
+        List<String> encontrados = cb.buscarUsuarios(query, offset, limit);
+        if (encontrados != null) {
+            for (String usuario : encontrados) {
+                if (!usuario.equals(nombre)) {
+                    out.add(usuario);
+                }
             }
-        } catch (Exception ignore) {
         }
         return out;
     }
@@ -379,12 +570,26 @@ public class Cliente implements ChatClientInterface {
 
     @Override
     public List<String> getFriends() {
-        return cb.getAmigos(); // ya lo usas en tu mainloop
+        sincronizar();
+        synchronized (this) {
+            return new ArrayList<>(amigos);
+        }
     }
 
     @Override
     public List<String> getPendingFriendRequests() {
-        return cb.getSolicitudesPendientes(); // ya existe
+        sincronizar();
+        synchronized (this) {
+            return new ArrayList<>(solicitudes);
+        }
+    }
+
+    @Override
+    public List<String> getOnlineFriends() {
+        sincronizar();
+        synchronized (this) {
+            return new ArrayList<>(amigosConectados);
+        }
     }
 
     @Override
@@ -399,9 +604,13 @@ public class Cliente implements ChatClientInterface {
 
     public List<String> getNuevosMensajesChat(String contact) {
         ArrayList<String> mensaje = new ArrayList<>();
+        Chat chat = chats.get(contact);
+        if (chat == null) {
+            return mensaje;
+        }
         try {
-            while (chats.get(contact) != null && !chats.get(contact).isEmpty()) {
-                mensaje.add(contact + ": " + chats.get(contact).leer());
+            for (String m : chat.leerTodos()) {
+                mensaje.add(contact + ": " + m);
             }
         } catch (Exception e) {
             return mensaje;
@@ -423,6 +632,33 @@ public class Cliente implements ChatClientInterface {
 
     }
 
+    /* Varios mensajes al mismo contacto en una sola llamada remota */
+    public boolean enviarMensajes(String contacto, List<String> mensajes) {
+        Chat chat = chats.get(contacto);
+        if (chat == null) {
+            return false;
+        }
+        try {
+            chat.enviar(mensajes);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /* Envia un fichero al amigo en segundo plano; se reanuda solo si se corta */
+    public EnvioFichero enviarFichero(String contacto, Path ruta) throws Exception {
+        if (!chats.containsKey(contacto)) {
+            throw new Exception("No tienes chat con " + contacto);
+        }
+        if (!Files.isRegularFile(ruta)) {
+            throw new Exception("No existe el fichero " + ruta);
+        }
+        EnvioFichero envio = new EnvioFichero(nombre, contacto, ruta, directorio, cb::getDireccion);
+        ficheros.execute(envio);
+        return envio;
+    }
+
     public static void main(String[] args) {
         BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
         Cliente yo = new Cliente();
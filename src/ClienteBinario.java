@@ -0,0 +1,395 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * IServidor sobre ProtocoloBinario: lo que usa ClienteCallback en lugar del
+ * stub RMI cuando se arranca con -Dchat.transporte=binario.
+ *
+ * Una sola conexion para todos los hilos. Cada llamada escribe su peticion con
+ * un id nuevo y espera su respuesta, que separa un hilo lector, asi que varias
+ * llamadas pueden estar en curso a la vez (pipelining). Los eventos que manda
+ * el servidor se pasan al callback registrado en otro hilo, en orden, para que
+ * el callback pueda volver a llamar al servidor sin bloquear al lector.
+ *
+ * Si la conexion se cae, las llamadas en curso fallan con ConnectException y
+ * la siguiente abre una conexion nueva. Conectar y esperar cada respuesta
+ * tienen plazo (-Dchat.binario.plazoMs): una conexion medio abierta no da
+ * error por si sola, asi que la llamada que se pasa del plazo la cierra. Los callbacks registrados en la vieja
+ * se pierden; el servidor los da por caidos y el latido vuelve a iniciar sesion.
+ */
+public class ClienteBinario implements IServidor {
+
+    static final long PLAZO_MS = Long.getLong("chat.binario.plazoMs", 30_000);
+
+    private final String host;
+    private final int puerto;
+    private final AtomicInteger siguienteId = new AtomicInteger(1);
+    private final Map<Integer, CompletableFuture<DataInputStream>> enCurso = new ConcurrentHashMap<>();
+    private final ExecutorService eventos = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "binario-eventos");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile IClienteCallback callback;
+
+    // Protegidos por this
+    private Socket socket;
+    private OutputStream salida;
+
+    public ClienteBinario(String host, int puerto) throws IOException {
+        this.host = host;
+        this.puerto = puerto;
+        conectar();
+    }
+
+    // ====================
+    // ===== CONEXION =====
+    // ====================
+
+    private synchronized OutputStream conectar() throws IOException {
+        if (socket != null && !socket.isClosed()) {
+            return salida;
+        }
+        Socket s = new Socket();
+        s.setTcpNoDelay(true);
+        s.connect(new InetSocketAddress(host, puerto), (int) PLAZO_MS);
+        socket = s;
+        salida = new BufferedOutputStream(s.getOutputStream(), 8 * 1024);
+        DataInputStream entrada = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+        Thread lector = new Thread(() -> leer(s, entrada), "binario-lector");
+        lector.setDaemon(true);
+        lector.start();
+        return salida;
+    }
+
+    private void leer(Socket s, DataInputStream in) {
+        try {
+            while (true) {
+                int longitud = in.readInt();
+                if (longitud < ProtocoloBinario.CABECERA || longitud > ProtocoloBinario.MAX_TRAMA) {
+                    throw new IOException("Trama de longitud invalida: " + longitud);
+                }
+                byte tipo = in.readByte();
+                int id = in.readInt();
+                byte[] datos = new byte[longitud - ProtocoloBinario.CABECERA];
+                in.readFully(datos);
+                DataInputStream resultado = new DataInputStream(new ByteArrayInputStream(datos));
+                if (tipo == ProtocoloBinario.EVENTOS) {
+                    entregar(ProtocoloBinario.leerEventos(resultado));
+                    continue;
+                }
+                CompletableFuture<DataInputStream> llamada = enCurso.remove(id);
+                if (llamada == null) {
+                    continue;
+                }
+                if (tipo == ProtocoloBinario.ERROR) {
+                    llamada.completeExceptionally(new ServerException(ProtocoloBinario.leerTexto(resultado)));
+                } else {
+                    llamada.complete(resultado);
+                }
+            }
+        } catch (IOException e) {
+            cerrar(s, e);
+        }
+    }
+
+    private void entregar(List<Evento> lote) {
+        IClienteCallback cb = callback;
+        if (cb == null) {
+            return;
+        }
+        eventos.execute(() -> {
+            try {
+                cb.notificarEventos(lote);
+            } catch (Exception e) {
+                Log.error("binario.eventos", "eventos", lote.size(), e);
+            }
+        });
+    }
+
+    /* Solo si s sigue siendo la conexion actual; falla lo que estaba en curso */
+    private void cerrar(Socket s, IOException causa) {
+        synchronized (this) {
+            if (socket != s) {
+                return;
+            }
+            socket = null;
+        }
+        try {
+            s.close();
+        } catch (IOException e) {
+            // Ya estaba cerrada
+        }
+        ConnectException error = new ConnectException("Conexion binaria cerrada", causa);
+        for (Integer id : enCurso.keySet()) {
+            CompletableFuture<DataInputStream> llamada = enCurso.remove(id);
+            if (llamada != null) {
+                llamada.completeExceptionally(error);
+            }
+        }
+    }
+
+    public void cerrar() {
+        Socket s;
+        synchronized (this) {
+            s = socket;
+        }
+        if (s != null) {
+            cerrar(s, new EOFException("Cerrada por el cliente"));
+        }
+        eventos.shutdown();
+    }
+
+    private DataInputStream llamar(ProtocoloBinario.Operacion op, ProtocoloBinario.Escritura args)
+            throws RemoteException {
+        int id = siguienteId.getAndIncrement();
+        CompletableFuture<DataInputStream> llamada = new CompletableFuture<>();
+        enCurso.put(id, llamada);
+        Socket usado;
+        try {
+            ByteBuffer trama = ProtocoloBinario.trama(ProtocoloBinario.PETICION, id, out -> {
+                out.writeByte(op.ordinal());
+                args.escribir(out);
+            });
+            synchronized (this) {
+                OutputStream out = conectar();
+                usado = socket;
+                out.write(trama.array(), 0, trama.limit());
+                out.flush();
+            }
+        } catch (IOException e) {
+            enCurso.remove(id);
+            synchronized (this) {
+                if (socket != null) {
+                    cerrar(socket, e);
+                }
+            }
+            throw new ConnectException("No se pudo enviar " + op, e);
+        }
+        try {
+            return llamada.get(PLAZO_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            enCurso.remove(id);
+            SocketTimeoutException causa = new SocketTimeoutException(
+                    "Sin respuesta a " + op + " en " + PLAZO_MS + " ms");
+            cerrar(usado, causa);
+            throw new ConnectException("Conexion binaria sin respuesta", causa);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            }
+            throw new RemoteException("Error en " + op, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            enCurso.remove(id);
+            throw new RemoteException("Interrumpido esperando " + op, e);
+        }
+    }
+
+    /* Lo que ya viene de llamar (conexion caida, sin respuesta) se pasa tal cual */
+    private static RemoteException error(IOException e) {
+        if (e instanceof RemoteException) {
+            return (RemoteException) e;
+        }
+        return new RemoteException("Respuesta mal formada", e);
+    }
+
+    // =====================
+    // ===== IServidor =====
+    // =====================
+
+    @Override
+    public boolean login(String user, String password, String direccion) throws RemoteException {
+        try {
+            return llamar(ProtocoloBinario.Operacion.LOGIN, out -> {
+                ProtocoloBinario.escribirTexto(out, user);
+                ProtocoloBinario.escribirTexto(out, password);
+                ProtocoloBinario.escribirTexto(out, direccion);
+            }).readBoolean();
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    /* El callback se queda en este cliente; el servidor usa la conexion para avisar */
+    @Override
+    public SesionUsuario iniciarSesion(String user, String password, String direccion,
+            IClienteCallback callback, IBuzon buzon) throws RemoteException {
+        this.callback = callback;
+        try {
+            return ProtocoloBinario.leerSesion(llamar(ProtocoloBinario.Operacion.INICIAR_SESION, out -> {
+                ProtocoloBinario.escribirTexto(out, user);
+                ProtocoloBinario.escribirTexto(out, password);
+                ProtocoloBinario.escribirTexto(out, direccion);
+                ProtocoloBinario.escribirBuzon(out, buzon);
+            }));
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    @Override
+    public void logout(String user) throws RemoteException {
+        llamar(ProtocoloBinario.Operacion.LOGOUT, out -> ProtocoloBinario.escribirTexto(out, user));
+    }
+
+    @Override
+    public boolean renovarSesion(String user) throws RemoteException {
+        try {
+            return llamar(ProtocoloBinario.Operacion.RENOVAR_SESION,
+                    out -> ProtocoloBinario.escribirTexto(out, user)).readBoolean();
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    @Override
+    public boolean registrarUsuario(String user, String password) throws RemoteException {
+        try {
+            return llamar(ProtocoloBinario.Operacion.REGISTRAR_USUARIO, out -> {
+                ProtocoloBinario.escribirTexto(out, user);
+                ProtocoloBinario.escribirTexto(out, password);
+            }).readBoolean();
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    @Override
+    public void solicitarAmistad(String deUsuario, String aUsuario) throws RemoteException {
+        llamar(ProtocoloBinario.Operacion.SOLICITAR_AMISTAD, out -> {
+            ProtocoloBinario.escribirTexto(out, deUsuario);
+            ProtocoloBinario.escribirTexto(out, aUsuario);
+        });
+    }
+
+    @Override
+    public List<String> getSolicitudesPendientes(String usuario) throws RemoteException {
+        return textos(ProtocoloBinario.Operacion.GET_SOLICITUDES_PENDIENTES, usuario);
+    }
+
+    @Override
+    public boolean aceptarSolicitudAmistad(String usuario, String amigo) throws RemoteException {
+        return siNo(ProtocoloBinario.Operacion.ACEPTAR_SOLICITUD, usuario, amigo);
+    }
+
+    @Override
+    public boolean rechazarSolicitudAmistad(String usuario, String amigo) throws RemoteException {
+        return siNo(ProtocoloBinario.Operacion.RECHAZAR_SOLICITUD, usuario, amigo);
+    }
+
+    @Override
+    public List<String> getAmigos(String user) throws RemoteException {
+        return textos(ProtocoloBinario.Operacion.GET_AMIGOS, user);
+    }
+
+    @Override
+    public List<String> getAmigosConectados(String user) throws RemoteException {
+        return textos(ProtocoloBinario.Operacion.GET_AMIGOS_CONECTADOS, user);
+    }
+
+    @Override
+    public int getNumAmigosConectados(String user) throws RemoteException {
+        try {
+            return llamar(ProtocoloBinario.Operacion.GET_NUM_AMIGOS_CONECTADOS,
+                    out -> ProtocoloBinario.escribirTexto(out, user)).readInt();
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    @Override
+    public String getDireccion(String usuario) throws RemoteException {
+        try {
+            return ProtocoloBinario.leerTexto(llamar(ProtocoloBinario.Operacion.GET_DIRECCION,
+                    out -> ProtocoloBinario.escribirTexto(out, usuario)));
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    @Override
+    public IBuzon getBuzon(String usuario) throws RemoteException {
+        try {
+            return ProtocoloBinario.leerBuzon(llamar(ProtocoloBinario.Operacion.GET_BUZON,
+                    out -> ProtocoloBinario.escribirTexto(out, usuario)));
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    @Override
+    public boolean existeUsuario(String usuario) throws RemoteException {
+        try {
+            return llamar(ProtocoloBinario.Operacion.EXISTE_USUARIO,
+                    out -> ProtocoloBinario.escribirTexto(out, usuario)).readBoolean();
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    @Override
+    public List<String> buscarUsuarios(String prefijo, int offset, int limite) throws RemoteException {
+        try {
+            return ProtocoloBinario.leerTextos(llamar(ProtocoloBinario.Operacion.BUSCAR_USUARIOS, out -> {
+                ProtocoloBinario.escribirTexto(out, prefijo);
+                out.writeInt(offset);
+                out.writeInt(limite);
+            }));
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    @Override
+    public CambiosUsuario getCambiosDesde(String usuario, long version) throws RemoteException {
+        try {
+            return ProtocoloBinario.leerCambios(llamar(ProtocoloBinario.Operacion.GET_CAMBIOS_DESDE, out -> {
+                ProtocoloBinario.escribirTexto(out, usuario);
+                out.writeLong(version);
+            }));
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    @Override
+    public void registrarCallback(String usuario, IClienteCallback callback) throws RemoteException {
+        this.callback = callback;
+        llamar(ProtocoloBinario.Operacion.REGISTRAR_CALLBACK, out -> ProtocoloBinario.escribirTexto(out, usuario));
+    }
+
+    @Override
+    public void eliminarCallback(String usuario) throws RemoteException {
+        llamar(ProtocoloBinario.Operacion.ELIMINAR_CALLBACK, out -> ProtocoloBinario.escribirTexto(out, usuario));
+    }
+
+    private List<String> textos(ProtocoloBinario.Operacion op, String usuario) throws RemoteException {
+        try {
+            return ProtocoloBinario.leerTextos(llamar(op, out -> ProtocoloBinario.escribirTexto(out, usuario)));
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    private boolean siNo(ProtocoloBinario.Operacion op, String usuario, String otro) throws RemoteException {
+        try {
+            return llamar(op, out -> {
+                ProtocoloBinario.escribirTexto(out, usuario);
+                ProtocoloBinario.escribirTexto(out, otro);
+            }).readBoolean();
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+}
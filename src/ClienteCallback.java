@@ -1,91 +1,189 @@
 import java.rmi.Naming;
 import java.rmi.RemoteException;
+import java.rmi.server.RemoteObject;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class ClienteCallback extends UnicastRemoteObject implements IClienteCallback {
     private IServidor servidor;
     private String usuarioActual;
     private Cliente cliente;
+    private SesionUsuario sesion;
+    // Para volver a iniciar sesion si el servidor la da por caducada
+    private String claveActual;
+    private String direccionActual;
+    private IBuzon buzonActual;
+
+    // Latidos de renovarSesion, tres por plazo; un solo hilo para todas las sesiones del proceso
+    private static final ScheduledExecutorService latidos = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cliente-latido");
+        t.setDaemon(true);
+        return t;
+    });
+    private ScheduledFuture<?> latido;
+
+    // Transporte hacia el servidor: "rmi" (stub de Naming) o "binario" (ClienteBinario)
+    private static final String TRANSPORTE = System.getProperty("chat.transporte", "rmi");
 
     public ClienteCallback(Cliente cliente) throws RemoteException {
-        super();
+        super(0, SocketsRmi.CONFIGURADOS, SocketsRmi.CONFIGURADOS);
         this.cliente = cliente;
         try {
-            this.servidor = (IServidor) Naming.lookup("rmi://localhost/Servidor");
+            if (TRANSPORTE.equals("binario")) {
+                this.servidor = new ClienteBinario("localhost", ServidorBinario.PUERTO);
+            } else {
+                this.servidor = (IServidor) Naming.lookup("rmi://localhost/Servidor");
+            }
         } catch (Exception e) {
-            System.out.println("Error conectando al servidor RMI: " + e);
+            Log.error("servidor.conectar", e);
         }
     }
 
     // ===== IMPLEMENTACIÓN DE IClienteCallback =====
 
     @Override
-    public void notificarConexionAmigo(String amigo, String direccion) throws RemoteException {
-        System.out.println("[Callback] Amigo " + amigo + " se conectó desde " + direccion);
+    public void notificarConexionAmigo(String amigo, String direccion, IBuzon buzon) throws RemoteException {
+        Log.info("callback.conexion", "amigo", amigo, "direccion", direccion);
         try {
-            cliente.addAmigoConectado(amigo, direccion);
+            cliente.addAmigoConectado(amigo, direccion, buzon);
         } catch (Exception e) {
-            System.out.println("Error en notificarConexionAmigo: " + e);
+            Log.error("callback.conexion", "amigo", amigo, e);
         }
     }
 
     @Override
     public void notificarDesconexionAmigo(String amigo) throws RemoteException {
-        System.out.println("[Callback] Amigo " + amigo + " se desconectó");
+        Log.info("callback.desconexion", "amigo", amigo);
         try {
             cliente.removeAmigoConectado(amigo);
         } catch (Exception e) {
-            System.out.println("Error en notificarDesconexionAmigo: " + e);
+            Log.error("callback.desconexion", "amigo", amigo, e);
         }
     }
 
     @Override
     public void notificarSolicitudAmistad(String deUsuario) throws RemoteException {
-        System.out.println("[Callback] Solicitud de amistad de " + deUsuario);
+        Log.info("callback.solicitud", "de", deUsuario);
         // Aquí podrías agregar lógica para mostrar la solicitud al usuario
         cliente.mostrarSolicitudAmistad(deUsuario);
     }
 
     @Override
     public void notificarAmistadAceptada(String amigo) throws RemoteException {
-        System.out.println("[Callback] " + amigo + " aceptó tu solicitud de amistad");
+        Log.info("callback.amistadAceptada", "amigo", amigo);
         try {
-            String direccion = servidor.getDireccion(amigo);
+            IBuzon buzon = servidor.getBuzon(amigo);
 
-            if (direccion != null) {
-                cliente.addAmigoConectado(amigo, direccion);
+            if (buzon != null) {
+                cliente.addAmigoConectado(amigo, servidor.getDireccion(amigo), buzon);
             }
             // Aquí podrías agregar lógica para actualizar la lista de amigos
         } catch (Exception e) {
 
-            System.out.println("Error creando chat con" + amigo);
+            Log.error("callback.amistadAceptada", "amigo", amigo, e);
+
+        }
+    }
 
+    @Override
+    public void notificarEventos(List<Evento> eventos) throws RemoteException {
+        for (Evento e : eventos) {
+            switch (e.getTipo()) {
+                case AMIGO_CONECTADO:
+                    notificarConexionAmigo(e.getUsuario(), e.getDireccion(), e.getBuzon());
+                    break;
+                case AMIGO_DESCONECTADO:
+                    notificarDesconexionAmigo(e.getUsuario());
+                    break;
+                case SOLICITUD_AMISTAD:
+                    notificarSolicitudAmistad(e.getUsuario());
+                    break;
+                case AMISTAD_ACEPTADA:
+                    if (e.getBuzon() != null) {
+                        // Ya viene con el Buzon del amigo conectado: sin llamadas al servidor
+                        Log.info("callback.amistadAceptada", "amigo", e.getUsuario());
+                        notificarConexionAmigo(e.getUsuario(), e.getDireccion(), e.getBuzon());
+                    } else {
+                        notificarAmistadAceptada(e.getUsuario());
+                    }
+                    break;
+            }
         }
     }
+
     // ===== MÉTODOS PARA LLAMAR AL SERVIDOR =====
 
-    public boolean login(String user, String password, Integer puerto) {
+    /* buzon es el Buzon local del cliente; al servidor va su stub */
+    public boolean login(String user, String password, Integer puerto, Buzon buzon) {
         try {
             String direccion = "localhost:" + puerto;
-            boolean success = servidor.login(user, Encrypt.sha256(password), direccion);
-            if (success) {
-                usuarioActual = user;
-                servidor.registrarCallback(user, this);
+            IBuzon stub = (IBuzon) RemoteObject.toStub(buzon);
+            // Una sola llamada: login, registro del callback, stub del Buzon y estado inicial
+            String clave = Encrypt.sha256(password);
+            SesionUsuario nueva = servidor.iniciarSesion(user, clave, direccion, this, stub);
+            if (nueva == null) {
+                return false;
             }
-            return success;
+            usuarioActual = user;
+            claveActual = clave;
+            direccionActual = direccion;
+            buzonActual = stub;
+            sesion = nueva;
+            iniciarLatidos(nueva.getLeaseMs());
+            return true;
         } catch (Exception e) {
-            System.out.println("Error en login: " + e);
+            Log.error("rpc.login", e);
             return false;
         }
     }
 
+    /* Estado que devolvio el servidor en el ultimo login */
+    public SesionUsuario getSesion() {
+        return sesion;
+    }
+
+    private synchronized void iniciarLatidos(long leaseMs) {
+        detenerLatidos();
+        long cada = Math.max(1, leaseMs / 3);
+        latido = latidos.scheduleWithFixedDelay(this::latir, cada, cada, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void detenerLatidos() {
+        if (latido != null) {
+            latido.cancel(false);
+            latido = null;
+        }
+    }
+
+    private void latir() {
+        try {
+            if (servidor.renovarSesion(usuarioActual)) {
+                return;
+            }
+            // La sesion caduco (p. ej. sin red durante mas de un plazo): se vuelve a entrar
+            Log.aviso("sesion.caducada", "usuario", usuarioActual);
+            SesionUsuario nueva = servidor.iniciarSesion(usuarioActual, claveActual, direccionActual, this, buzonActual);
+            if (nueva != null) {
+                sesion = nueva;
+                cliente.aplicarSesion(nueva);
+            }
+        } catch (Exception e) {
+            // Se reintenta en el siguiente latido
+            Log.error("rpc.renovarSesion", e);
+        }
+    }
+
     public void logout() {
+        detenerLatidos();
         try {
             servidor.logout(usuarioActual);
             servidor.eliminarCallback(usuarioActual);
         } catch (Exception e) {
-            System.out.println("Error en logout: " + e);
+            Log.error("rpc.logout", e);
         }
     }
 
@@ -93,7 +191,7 @@ public class ClienteCallback extends UnicastRemoteObject implements IClienteCall
         try {
             return servidor.registrarUsuario(user, Encrypt.sha256(password));
         } catch (Exception e) {
-            System.out.println("Error en registrarUsuario: " + e);
+            Log.error("rpc.registrarUsuario", e);
             return false;
         }
     }
@@ -103,7 +201,7 @@ public class ClienteCallback extends UnicastRemoteObject implements IClienteCall
             servidor.solicitarAmistad(usuarioActual, amigo);
             return true;
         } catch (Exception e) {
-            System.out.println("Error en solicitarAmistad: " + e);
+            Log.error("rpc.solicitarAmistad", e);
             return false;
         }
     }
@@ -112,7 +210,7 @@ public class ClienteCallback extends UnicastRemoteObject implements IClienteCall
         try {
             return servidor.getSolicitudesPendientes(usuarioActual);
         } catch (Exception e) {
-            System.out.println("Error en getSolicitudesPendientes: " + e);
+            Log.error("rpc.getSolicitudesPendientes", e);
             return null;
         }
     }
@@ -121,7 +219,7 @@ public class ClienteCallback extends UnicastRemoteObject implements IClienteCall
         try {
             return servidor.aceptarSolicitudAmistad(usuarioActual, amigo);
         } catch (Exception e) {
-            System.out.println("Error en aceptarSolicitudAmistad: " + e);
+            Log.error("rpc.aceptarSolicitudAmistad", e);
         }
         return false;
     }
@@ -130,7 +228,7 @@ public class ClienteCallback extends UnicastRemoteObject implements IClienteCall
         try {
             return servidor.rechazarSolicitudAmistad(usuarioActual, amigo);
         } catch (Exception e) {
-            System.out.println("Error en rechazarSolicitudAmistad: " + e);
+            Log.error("rpc.rechazarSolicitudAmistad", e);
         }
         return false;
     }
@@ -139,7 +237,7 @@ public class ClienteCallback extends UnicastRemoteObject implements IClienteCall
         try {
             return servidor.getAmigos(usuarioActual);
         } catch (Exception e) {
-            System.out.println("Error en getAmigos: " + e);
+            Log.error("rpc.getAmigos", e);
             return null;
         }
     }
@@ -148,7 +246,25 @@ public class ClienteCallback extends UnicastRemoteObject implements IClienteCall
         try {
             return servidor.getAmigosConectados(usuarioActual);
         } catch (Exception e) {
-            System.out.println("Error en getAmigosConectados: " + e);
+            Log.error("rpc.getAmigosConectados", e);
+            return null;
+        }
+    }
+
+    public int getNumAmigosConectados() {
+        try {
+            return servidor.getNumAmigosConectados(usuarioActual);
+        } catch (Exception e) {
+            Log.error("rpc.getNumAmigosConectados", e);
+            return 0;
+        }
+    }
+
+    public CambiosUsuario getCambiosDesde(long version) {
+        try {
+            return servidor.getCambiosDesde(usuarioActual, version);
+        } catch (Exception e) {
+            Log.error("rpc.getCambiosDesde", e);
             return null;
         }
     }
@@ -157,7 +273,17 @@ public class ClienteCallback extends UnicastRemoteObject implements IClienteCall
         try {
             return servidor.getDireccion(usuario);
         } catch (Exception e) {
-            System.out.println("Error en getDireccion: " + e);
+            Log.error("rpc.getDireccion", e);
+            return null;
+        }
+    }
+
+    /* Stub del Buzon de un usuario conectado, o null */
+    public IBuzon getBuzon(String usuario) {
+        try {
+            return servidor.getBuzon(usuario);
+        } catch (Exception e) {
+            Log.error("rpc.getBuzon", e);
             return null;
         }
     }
@@ -166,8 +292,17 @@ public class ClienteCallback extends UnicastRemoteObject implements IClienteCall
         try {
             return servidor.existeUsuario(usuario);
         } catch (Exception e) {
-            System.out.println("Error en existeUsuario: " + e);
+            Log.error("rpc.existeUsuario", e);
             return false;
         }
     }
+
+    public List<String> buscarUsuarios(String prefijo, int offset, int limite) {
+        try {
+            return servidor.buscarUsuarios(prefijo, offset, limite);
+        } catch (Exception e) {
+            Log.error("rpc.buscarUsuarios", e);
+            return null;
+        }
+    }
 }
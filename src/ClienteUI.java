@@ -0,0 +1,88 @@
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Adapta un ChatClientInterface (el Cliente real) a la interfaz que espera
+ * ModernChatUI. Los mensajes entrantes llegan por su MessageListener, asi que
+ * la UI no tiene que sondear el chat abierto.
+ */
+public class ClienteUI implements ModernChatUI.Cliente {
+
+    private final ChatClientInterface cliente;
+
+    public ClienteUI(ChatClientInterface cliente) {
+        this.cliente = cliente;
+    }
+
+    /* Desde ModernChatUI "Cliente" es su interfaz, no esta clase */
+    public static ClienteUI real() {
+        return new ClienteUI(new Cliente());
+    }
+
+    @Override
+    public boolean login(String user, String pass, int clientRmiPort) {
+        return cliente.login(user, pass, clientRmiPort);
+    }
+
+    @Override
+    public void logout() {
+        cliente.logout();
+    }
+
+    @Override
+    public boolean register(String user, String pass) {
+        return cliente.signUp(user, pass);
+    }
+
+    @Override
+    public boolean sendFriendRequest(String targetUser) {
+        return cliente.sendFriendRequest(targetUser);
+    }
+
+    @Override
+    public List<String> getPendingFriendRequests() {
+        return cliente.getPendingFriendRequests();
+    }
+
+    @Override
+    public boolean acceptFriendRequest(String fromUser) {
+        return cliente.acceptFriendRequest(fromUser);
+    }
+
+    @Override
+    public boolean rejectFriendRequest(String fromUser) {
+        return cliente.rejectFriendRequest(fromUser);
+    }
+
+    @Override
+    public List<String> getOnlineFriends() {
+        return cliente.getOnlineFriends();
+    }
+
+    @Override
+    public List<String> getActiveChats() {
+        return cliente.getActiveChats();
+    }
+
+    @Override
+    public Map<String, Integer> checkNewMessages() {
+        return cliente.checkNewMessages();
+    }
+
+    @Override
+    public List<String> getNewMessages(String contact) {
+        return cliente.getNewMessages(contact);
+    }
+
+    @Override
+    public void sendMessage(String contact, String text) {
+        if (!cliente.sendMessage(contact, text)) {
+            Log.aviso("ui.enviar", "contacto", contact);
+        }
+    }
+
+    @Override
+    public void setMessageListener(ChatClientInterface.MessageListener listener) {
+        cliente.setMessageListener(listener);
+    }
+}
@@ -1,75 +1,224 @@
-import java.net.MalformedURLException;
-import java.rmi.*;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.rmi.server.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
-public class Cola extends UnicastRemoteObject implements ICola {
+/**
+ * Mensajes recibidos de un contacto, ya en orden y sin duplicados.
+ *
+ * No es remota: el Buzon del cliente recibe de todos los contactos y pasa a
+ * cada Cola lo suyo. Aqui se reordena por secuencia, se confirma de forma
+ * acumulada y se limita lo que se guarda en memoria (ver CAPACIDAD).
+ */
+public class Cola {
 
-    private BlockingQueue<String> queue;
+    // Mensajes fuera de orden que se guardan como mucho esperando un hueco; despues se da por perdido
+    private static final int MAX_FUERA_DE_ORDEN = 1024;
+    // Mensajes ya ordenados que caben en memoria; lo que no cabe se desborda a disco o se rechaza
+    static final int CAPACIDAD = Integer.getInteger("chat.cola.capacidad", 10_000);
+    // Directorio para el desborde; sin el, con la cola llena pushAll lanza ColaLlenaException
+    private static final String DIR_DESBORDE = System.getProperty("chat.cola.desborde");
 
-    public Cola() throws RemoteException {
-        this.queue = new LinkedBlockingQueue<>();
+    // LinkedBlockingQueue ya es segura entre hilos: los textos ya ordenados se leen sin cerrojo
+    private final BlockingQueue<String> queue;
+    // Aviso tras cada pushAll que entrega algo, en el hilo de quien lo hace: debe ser rapido
+    private volatile Runnable oyente;
+    private final EstadisticasPar estadisticas;
+    // Estado de cada conversacion que escribe en esta cola; cerrojo de la recepcion y del desborde
+    private final Map<Long, Recepcion> recepciones = new HashMap<>();
+    // Mientras tenga algo, todo lo nuevo va detras en disco para no desordenar
+    private final DesbordeCola desborde;
+
+    private static class Recepcion {
+        long entregado = 0;
+        final TreeMap<Long, Mensaje> fueraDeOrden = new TreeMap<>();
+    }
+
+    public Cola(EstadisticasPar estadisticas) {
+        this.queue = new LinkedBlockingQueue<>(CAPACIDAD);
+        this.estadisticas = estadisticas;
+        this.desborde = crearDesborde();
     }
 
-    @Override
-    public String push(String s) throws RemoteException {
-        synchronized (this) {
-            queue.add(s);
-            return s;
+    private static DesbordeCola crearDesborde() {
+        if (DIR_DESBORDE == null) {
+            return null;
+        }
+        try {
+            return new DesbordeCola(new File(DIR_DESBORDE));
+        } catch (IOException e) {
+            Log.error("cola.desborde", "directorio", DIR_DESBORDE, e);
+            return null;
         }
     }
 
-    @Override
-    public String pop() throws RemoteException {
-        synchronized (this) {
-            return queue.poll();
+    public String pop() {
+        String s = queue.poll();
+        if (s == null && desborde != null) {
+            List<String> uno = drain(1);
+            s = uno.isEmpty() ? null : uno.get(0);
         }
+        return s;
     }
 
-    @Override
-    public String get() throws RemoteException {
-        synchronized (this) {
-            return queue.peek();
+    public String get() {
+        String s = queue.peek();
+        if (s == null && desborde != null) {
+            synchronized (recepciones) {
+                s = queue.peek();
+                if (s == null && !desborde.isEmpty()) {
+                    try {
+                        s = desborde.primero();
+                    } catch (IOException e) {
+                        Log.error("cola.desborde", e);
+                    }
+                }
+            }
         }
+        return s;
     }
 
-    public void servir(Cola lcola, Integer puerto, String otro) {
+    public long pushAll(List<Mensaje> mensajes) throws ColaLlenaException {
+        if (mensajes.isEmpty()) {
+            return -1;
+        }
+        long conversacion = mensajes.get(0).getConversacion();
+        long ahora = Mensaje.ahora();
+        int entregados = 0;
+        boolean lleno = false;
+        long confirmado;
+        synchronized (recepciones) {
+            Recepcion r = recepciones.get(conversacion);
+            if (r == null) {
+                // El emisor solo empieza conversacion al (re)conectar: las anteriores ya no escriben
+                recepciones.clear();
+                r = new Recepcion();
+                recepciones.put(conversacion, r);
+            }
+            for (Mensaje m : mensajes) {
+                if (!cabe()) {
+                    lleno = true;
+                    break;
+                }
+                entregados += recibir(r, m, ahora);
+            }
+            if (desborde != null && entregados > 0) {
+                try {
+                    desborde.vaciar();
+                } catch (IOException e) {
+                    Log.error("cola.desborde", e);
+                }
+            }
+            confirmado = r.entregado;
+        }
+        if (entregados > 0) {
+            avisar();
+        }
+        if (lleno) {
+            throw new ColaLlenaException(confirmado, CAPACIDAD);
+        }
+        return confirmado;
+    }
 
-        try {
-            startRegistry(puerto);
-            String registryURL = "rmi://localhost:" + puerto + "/" + otro;
-            Naming.rebind(registryURL, lcola);
-            System.out.println("Server registered. Registry currently contains:");
+    public long getConfirmado(long conversacion) {
+        synchronized (recepciones) {
+            Recepcion r = recepciones.get(conversacion);
+            return r == null ? -1 : r.entregado;
+        }
+    }
+
+    /* Con el cerrojo de recepciones: queda sitio en memoria o en disco */
+    private boolean cabe() {
+        return (desborde != null && desborde.escribible()) || queue.remainingCapacity() > 0;
+    }
 
-            listRegistry(registryURL);
-            System.out.println("Server ready.");
-        } catch (Exception re) {
-            System.out.println("servir: " + re);
+    /* Con el cerrojo de recepciones: pasa a la cola todo lo que ya es consecutivo y dice cuantos */
+    private int recibir(Recepcion r, Mensaje m, long ahora) {
+        long s = m.getSecuencia();
+        if (s <= r.entregado || r.fueraDeOrden.putIfAbsent(s, m) != null) {
+            estadisticas.duplicado();
+        } else if (s != r.entregado + 1) {
+            estadisticas.desordenado();
+            long primero = r.fueraDeOrden.firstKey();
+            if (r.fueraDeOrden.size() > MAX_FUERA_DE_ORDEN && primero > r.entregado + 1) {
+                estadisticas.perdidos(primero - r.entregado - 1);
+                r.entregado = primero - 1;
+            }
         }
+        int n = 0;
+        Map.Entry<Long, Mensaje> e;
+        while ((e = r.fueraDeOrden.firstEntry()) != null && e.getKey() == r.entregado + 1) {
+            r.fueraDeOrden.pollFirstEntry();
+            if (!guardar(e.getValue().getTexto())) {
+                // Sin guardar no se queda: el reenvio (no esta confirmado) llega como primera entrega
+                break;
+            }
+            r.entregado++;
+            estadisticas.entregado(e.getValue(), ahora);
+            n++;
+        }
+        return n;
     }
 
-    private static void startRegistry(int RMIPortNum) throws RemoteException {
+    /* Con el cerrojo de recepciones: a memoria o, si ya se esta desbordando o no cabe, a disco */
+    private boolean guardar(String texto) {
+        if ((desborde == null || desborde.isEmpty()) && queue.offer(texto)) {
+            return true;
+        }
+        if (desborde == null || !desborde.escribible()) {
+            return false;
+        }
         try {
-            Registry registry = LocateRegistry.getRegistry(RMIPortNum);
-            registry.list();
+            desborde.escribir(texto);
+            estadisticas.desbordado();
+            return true;
+        } catch (IOException e) {
+            Log.error("cola.desborde", e);
+            return false;
+        }
+    }
 
-        } catch (RemoteException e) {
+    public List<String> drain(int max) {
+        List<String> res = new ArrayList<>(Math.min(max, queue.size()));
+        queue.drainTo(res, max);
+        if (desborde != null && res.size() < max) {
+            synchronized (recepciones) {
+                // Lo de memoria es siempre anterior a lo de disco
+                queue.drainTo(res, max - res.size());
+                if (!desborde.isEmpty()) {
+                    try {
+                        desborde.leer(res, max - res.size());
+                    } catch (IOException e) {
+                        Log.error("cola.desborde", e);
+                    }
+                }
+            }
+        }
+        return res;
+    }
 
-            System.out.println("RMI registry cannot be located at port "
-                    + RMIPortNum);
-            Registry registry = LocateRegistry.createRegistry(RMIPortNum);
-            System.out.println("RMI registry created at port " + RMIPortNum);
+    /* Borra lo que hubiera en disco */
+    public void cerrar() {
+        if (desborde != null) {
+            synchronized (recepciones) {
+                desborde.cerrar();
+            }
         }
     }
 
-    private static void listRegistry(String registryURL) throws RemoteException, MalformedURLException {
-        System.out.println("Registry " + registryURL + " contains: ");
-        String[] names = Naming.list(registryURL);
-        for (String name : names) {
-            System.out.println(name);
+    public void setOyente(Runnable oyente) {
+        this.oyente = oyente;
+    }
+
+    private void avisar() {
+        Runnable o = oyente;
+        if (o != null) {
+            o.run();
         }
     }
 }
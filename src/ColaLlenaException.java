@@ -0,0 +1,20 @@
+/**
+ * La Cola del otro extremo esta llena y no ha aceptado todo el lote.
+ *
+ * Lleva la confirmacion acumulada de lo que si entro; el resto sigue sin
+ * confirmar en el Chat que envia y se reenvia mas adelante.
+ */
+public class ColaLlenaException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final long confirmado;
+
+    public ColaLlenaException(long confirmado, int capacidad) {
+        super("Cola llena (" + capacidad + " mensajes)");
+        this.confirmado = confirmado;
+    }
+
+    public long getConfirmado() {
+        return confirmado;
+    }
+}
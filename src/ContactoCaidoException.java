@@ -0,0 +1,20 @@
+/**
+ * El contacto ha fallado hace poco y aun no toca volver a intentarlo.
+ *
+ * Se lanza sin llamada remota; lo enviado queda sin confirmar en el Chat y
+ * sale con el primer envio que llegue despues de la espera.
+ */
+public class ContactoCaidoException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final long esperaMs;
+
+    public ContactoCaidoException(String contacto, long esperaMs) {
+        super(contacto + " no responde; siguiente intento en " + esperaMs + " ms");
+        this.esperaMs = esperaMs;
+    }
+
+    public long getEsperaMs() {
+        return esperaMs;
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Mensajes que no caben en la memoria de una Cola, guardados en disco en
+ * orden de llegada.
+ *
+ * Se reparten en archivos numerados (desborde.000001, ...) de hasta
+ * TAM_SEGMENTO bytes dentro de un directorio propio. Se escribe al final del
+ * ultimo y se lee desde el primero; cada archivo se borra en cuanto se ha
+ * leido entero, asi que el disco usado es el de lo pendiente. Cada texto va
+ * como int longitud y bytes UTF-8.
+ *
+ * No es segura entre hilos: la Cola la usa con su cerrojo.
+ */
+public class DesbordeCola {
+
+    private static final String PREFIJO = "desborde.";
+    private static final long TAM_SEGMENTO = 4 << 20;
+
+    private final File directorio;
+    private final ArrayDeque<Segmento> segmentos = new ArrayDeque<>();
+    private long numeroArchivo = 0;
+    private long pendientes = 0;
+    // Leido por primero() y aun no entregado
+    private String cabeza;
+    // Tras un error de escritura no se vuelve a intentar: la Cola pasa a rechazar
+    private boolean escribible = true;
+
+    private static class Segmento {
+        final File archivo;
+        DataOutputStream salida;
+        DataInputStream entrada;
+        long bytes = 0;
+        int escritos = 0;
+        int leidos = 0;
+
+        Segmento(File archivo) throws IOException {
+            this.archivo = archivo;
+            this.salida = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(archivo), 64 * 1024));
+        }
+
+        void cerrar() {
+            try {
+                if (salida != null) {
+                    salida.close();
+                }
+                if (entrada != null) {
+                    entrada.close();
+                }
+            } catch (IOException ignore) {
+            }
+            archivo.delete();
+        }
+    }
+
+    public DesbordeCola(File base) throws IOException {
+        Files.createDirectories(base.toPath());
+        this.directorio = Files.createTempDirectory(base.toPath(), "cola-").toFile();
+    }
+
+    public boolean isEmpty() {
+        return pendientes == 0 && cabeza == null;
+    }
+
+    public long size() {
+        return pendientes + (cabeza == null ? 0 : 1);
+    }
+
+    public boolean escribible() {
+        return escribible;
+    }
+
+    public void escribir(String texto) throws IOException {
+        try {
+            Segmento s = segmentos.peekLast();
+            if (s == null || s.bytes >= TAM_SEGMENTO) {
+                if (s != null) {
+                    s.salida.close();
+                    s.salida = null;
+                }
+                s = new Segmento(new File(directorio, String.format("%s%06d", PREFIJO, ++numeroArchivo)));
+                segmentos.addLast(s);
+            }
+            byte[] b = texto.getBytes(StandardCharsets.UTF_8);
+            s.salida.writeInt(b.length);
+            s.salida.write(b);
+            s.bytes += 4 + b.length;
+            s.escritos++;
+            pendientes++;
+        } catch (IOException e) {
+            escribible = false;
+            throw e;
+        }
+    }
+
+    /* Se llama al acabar cada lote de escrituras */
+    public void vaciar() throws IOException {
+        Segmento s = segmentos.peekLast();
+        if (s != null && s.salida != null) {
+            s.salida.flush();
+        }
+    }
+
+    /* El mas antiguo sin quitarlo, o null */
+    public String primero() throws IOException {
+        if (cabeza == null && pendientes > 0) {
+            cabeza = siguiente();
+        }
+        return cabeza;
+    }
+
+    /* Pasa a destino hasta max textos, en orden; devuelve cuantos */
+    public int leer(List<String> destino, int max) throws IOException {
+        int n = 0;
+        if (cabeza != null && max > 0) {
+            destino.add(cabeza);
+            cabeza = null;
+            n++;
+        }
+        while (n < max && pendientes > 0) {
+            destino.add(siguiente());
+            n++;
+        }
+        if (isEmpty()) {
+            // Sin nada pendiente se empieza de cero en vez de seguir alargando el ultimo archivo
+            for (Segmento s : segmentos) {
+                s.cerrar();
+            }
+            segmentos.clear();
+        }
+        return n;
+    }
+
+    public void cerrar() {
+        for (Segmento s : segmentos) {
+            s.cerrar();
+        }
+        segmentos.clear();
+        pendientes = 0;
+        cabeza = null;
+        directorio.delete();
+    }
+
+    private String siguiente() throws IOException {
+        Segmento s = segmentos.peekFirst();
+        while (s.leidos == s.escritos) {
+            // Leido entero y no es el que se escribe (hay pendientes en los siguientes)
+            s.cerrar();
+            segmentos.pollFirst();
+            s = segmentos.peekFirst();
+        }
+        if (s.salida != null) {
+            s.salida.flush();
+        }
+        if (s.entrada == null) {
+            s.entrada = new DataInputStream(new BufferedInputStream(new FileInputStream(s.archivo), 64 * 1024));
+        }
+        byte[] b = new byte[s.entrada.readInt()];
+        s.entrada.readFully(b);
+        s.leidos++;
+        pendientes--;
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
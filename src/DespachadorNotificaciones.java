@@ -0,0 +1,283 @@
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Envia las notificaciones a los clientes de forma asincrona y en lotes.
+ *
+ * Cada callback tiene su propia cola de salida acotada que vacia un unico hilo
+ * cada vez, asi se respeta el orden por destinatario y un cliente lento o caido
+ * solo retrasa sus propias notificaciones. El primer evento que llega a una
+ * cola vacia abre una ventana de ventanaMs; al cerrarse, todo lo acumulado va
+ * en una sola llamada a notificarEventos. Dentro de la ventana los eventos con
+ * la misma clave se quedan en el ultimo (conectarse y desconectarse varias
+ * veces deja solo el estado final). Si la cola esta llena el evento se
+ * descarta, y si lleva esperando mas que el plazo tambien.
+ *
+ * Si el envio falla porque el cliente ya no existe (no se puede conectar o su
+ * objeto remoto no esta exportado) el callback se quita en el acto, se tira lo
+ * que tenia pendiente y se avisa con alCaer para cerrar su sesion.
+ */
+public class DespachadorNotificaciones {
+
+    private final int capacidad;
+    private final long plazoMs;
+    private final long ventanaMs;
+    private final Map<String, ColaSalida> colas = new ConcurrentHashMap<>();
+    private final ExecutorService hilos = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "despachador-notificaciones");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ScheduledExecutorService ventanas = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "despachador-ventanas");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final LongAdder enviadas = new LongAdder();
+    private final LongAdder lotes = new LongAdder();
+    private final LongAdder fusionadas = new LongAdder();
+    private final LongAdder descartadas = new LongAdder();
+    private final LongAdder caducadas = new LongAdder();
+    private final LongAdder fallidas = new LongAdder();
+    private final LongAdder caidos = new LongAdder();
+
+    private volatile Consumer<String> alCaer = usuario -> { };
+
+    public DespachadorNotificaciones(int capacidad, long plazoMs, long ventanaMs) {
+        this.capacidad = capacidad;
+        this.plazoMs = plazoMs;
+        this.ventanaMs = ventanaMs;
+    }
+
+    // =====================
+    // ===== CALLBACKS =====
+    // =====================
+
+    /* Se llama con el usuario cuando su callback se quita por estar caido */
+    public void setAlCaer(Consumer<String> alCaer) {
+        this.alCaer = alCaer;
+    }
+
+    public void registrar(String usuario, IClienteCallback callback) {
+        ColaSalida anterior = colas.put(usuario, new ColaSalida(usuario, callback));
+        if (anterior != null) {
+            anterior.cerrar();
+        }
+    }
+
+    public void eliminar(String usuario) {
+        ColaSalida anterior = colas.remove(usuario);
+        if (anterior != null) {
+            anterior.cerrar();
+        }
+    }
+
+    public boolean tieneCallback(String usuario) {
+        return colas.containsKey(usuario);
+    }
+
+    /* Devuelve false si el usuario no tiene callback o su cola esta llena */
+    public boolean encolar(String usuario, Evento evento) {
+        ColaSalida cola = colas.get(usuario);
+        if (cola == null) {
+            return false;
+        }
+        return cola.encolar(new Pendiente(evento, System.currentTimeMillis() + plazoMs));
+    }
+
+    // ========================
+    // ===== ESTADISTICAS =====
+    // ========================
+
+    public int getCallbacks() {
+        return colas.size();
+    }
+
+    public int getProfundidad(String usuario) {
+        ColaSalida cola = colas.get(usuario);
+        return cola == null ? 0 : cola.tamanio();
+    }
+
+    public int getProfundidadTotal() {
+        int total = 0;
+        for (ColaSalida cola : colas.values()) {
+            total += cola.tamanio();
+        }
+        return total;
+    }
+
+    /* Eventos entregados, no llamadas: un lote cuenta tantos como lleve */
+    public long getEnviadas() {
+        return enviadas.sum();
+    }
+
+    public long getLotes() {
+        return lotes.sum();
+    }
+
+    /* Eventos que sustituyeron a otro pendiente con la misma clave */
+    public long getFusionadas() {
+        return fusionadas.sum();
+    }
+
+    public long getDescartadas() {
+        return descartadas.sum();
+    }
+
+    public long getCaducadas() {
+        return caducadas.sum();
+    }
+
+    public long getFallidas() {
+        return fallidas.sum();
+    }
+
+    public long getCaidos() {
+        return caidos.sum();
+    }
+
+    // ===================
+    // ===== INTERNO =====
+    // ===================
+
+    /* Errores que indican que el cliente no existe, no que sea lento */
+    private static boolean esCaido(RemoteException e) {
+        return e instanceof ConnectException || e instanceof ConnectIOException
+                || e instanceof NoSuchObjectException || e instanceof UnknownHostException;
+    }
+
+    private static class Pendiente {
+        final Evento evento;
+        final long plazo;
+
+        Pendiente(Evento evento, long plazo) {
+            this.evento = evento;
+            this.plazo = plazo;
+        }
+    }
+
+    private class ColaSalida implements Runnable {
+        final String usuario;
+        final IClienteCallback callback;
+        // Protegidos por this. Uno por clave, en el orden en que llego el ultimo de cada una
+        private final LinkedHashMap<String, Pendiente> pendientes = new LinkedHashMap<>();
+        private boolean programada = false;
+        volatile boolean cerrada = false;
+
+        ColaSalida(String usuario, IClienteCallback callback) {
+            this.usuario = usuario;
+            this.callback = callback;
+        }
+
+        boolean encolar(Pendiente p) {
+            String clave = p.evento.getClave();
+            synchronized (this) {
+                if (cerrada) {
+                    descartadas.increment();
+                    return false;
+                }
+                // Se quita y se vuelve a poner para que quede en la posicion del ultimo
+                if (pendientes.remove(clave) != null) {
+                    fusionadas.increment();
+                } else if (pendientes.size() >= capacidad) {
+                    descartadas.increment();
+                    return false;
+                }
+                pendientes.put(clave, p);
+                if (programada) {
+                    return true;
+                }
+                programada = true;
+            }
+            programar();
+            return true;
+        }
+
+        synchronized int tamanio() {
+            return pendientes.size();
+        }
+
+        synchronized void cerrar() {
+            cerrada = true;
+            descartadas.add(pendientes.size());
+            pendientes.clear();
+        }
+
+        /* Solo si sigue siendo la cola registrada: un login nuevo no debe perder su callback */
+        private void caer(RemoteException e) {
+            cerrar();
+            if (colas.remove(usuario, this)) {
+                caidos.increment();
+                Log.aviso("callback.caido", "usuario", usuario, "error", e);
+                alCaer.accept(usuario);
+            }
+        }
+
+        /* Abre la ventana: lo que llegue mientras tanto va en el mismo lote */
+        private void programar() {
+            if (ventanaMs <= 0) {
+                hilos.execute(this);
+            } else {
+                ventanas.schedule(() -> hilos.execute(this), ventanaMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public void run() {
+            List<Evento> lote = new ArrayList<>();
+            synchronized (this) {
+                long ahora = System.currentTimeMillis();
+                for (Pendiente p : pendientes.values()) {
+                    if (ahora > p.plazo) {
+                        caducadas.increment();
+                    } else {
+                        lote.add(p.evento);
+                    }
+                }
+                pendientes.clear();
+            }
+
+            if (!cerrada && !lote.isEmpty()) {
+                try {
+                    callback.notificarEventos(lote);
+                    enviadas.add(lote.size());
+                    lotes.increment();
+                } catch (RemoteException e) {
+                    fallidas.add(lote.size());
+                    if (esCaido(e)) {
+                        caer(e);
+                    } else {
+                        Log.error("notificacion", "usuario", usuario, "eventos", lote.size(), e);
+                    }
+                } catch (RuntimeException e) {
+                    fallidas.add(lote.size());
+                    Log.error("notificacion", "usuario", usuario, "eventos", lote.size(), e);
+                }
+            }
+
+            synchronized (this) {
+                // Lo que llego durante el envio abre otra ventana
+                if (!cerrada && !pendientes.isEmpty()) {
+                    programar();
+                } else {
+                    programada = false;
+                }
+            }
+        }
+    }
+}
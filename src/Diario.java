@@ -0,0 +1,330 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Diario de escritura anticipada (write-ahead log) de los cambios del servidor.
+ *
+ * Cada cambio es una linea de texto. Los hilos que modifican datos anotan su
+ * linea (barato, sin E/S) y despues esperan a que el hilo escritor la haya
+ * escrito: el escritor junta todo lo pendiente en un unico lote por escritura
+ * (group commit), asi que N cambios simultaneos cuestan un write y un fsync.
+ *
+ * El diario se reparte en archivos numerados (diario.000001, ...). Al compactar
+ * se rota a un archivo nuevo, se guarda una instantanea y se borran los viejos.
+ *
+ * Si una escritura o un fsync fallan, esas lineas y todas las siguientes se
+ * dan por no escritas (esperar lanza IOException): detras de un hueco no se
+ * escribe nada. Se vuelve a escribir al rotar, porque la instantanea que se
+ * toma despues ya incluye lo que se perdio.
+ */
+public class Diario {
+
+    public enum PoliticaFsync {
+        SIEMPRE,    // fsync en cada lote antes de responder
+        PERIODICA,  // fsync como mucho cada intervaloFsyncMs
+        NUNCA       // se deja al sistema operativo
+    }
+
+    private static final String PREFIJO = "diario.";
+
+    private final File directorio;
+    private final PoliticaFsync politica;
+    private final long intervaloFsyncMs;
+
+    // Protegido por this
+    private List<String> pendientes = new ArrayList<>();
+    private long siguienteSecuencia = 1;
+    private boolean cerrado = false;
+
+    // Protegido por archivoLock
+    private final Object archivoLock = new Object();
+    private FileOutputStream salida;
+    private long numeroArchivo;
+    private boolean sucio = false;
+    private long ultimoFsync = System.currentTimeMillis();
+
+    private final Object escrituraLock = new Object();
+    private volatile long secuenciaEscrita = 0;
+    // Primer error de escritura sin recuperar y ultima secuencia que no se escribio (escrituraLock)
+    private volatile IOException fallo;
+    private long secuenciaFallida = 0;
+
+    private Thread escritor;
+
+    public Diario(String directorio, PoliticaFsync politica, long intervaloFsyncMs) {
+        this.directorio = new File(directorio);
+        this.politica = politica;
+        this.intervaloFsyncMs = intervaloFsyncMs;
+        this.directorio.mkdirs();
+    }
+
+    // ====================
+    // ===== ARRANQUE =====
+    // ====================
+
+    /* Pasa a consumidor cada linea completa de los archivos existentes, en orden */
+    public void reproducir(Consumer<String> consumidor) {
+        for (long numero : numerosArchivos()) {
+            try {
+                byte[] datos = Files.readAllBytes(archivo(numero).toPath());
+                int inicio = 0;
+                for (int i = 0; i < datos.length; i++) {
+                    if (datos[i] == '\n') {
+                        if (i > inicio) {
+                            consumidor.accept(new String(datos, inicio, i - inicio, StandardCharsets.UTF_8));
+                        }
+                        inicio = i + 1;
+                    }
+                }
+                // Una linea sin '\n' final es una escritura cortada por una caida: se ignora
+            } catch (IOException e) {
+                Log.error("diario.leer", "archivo", numero, e);
+            }
+        }
+    }
+
+    /* Abre un archivo nuevo a continuacion de los existentes y arranca el escritor */
+    public void abrir() throws IOException {
+        long[] numeros = numerosArchivos();
+        synchronized (archivoLock) {
+            numeroArchivo = numeros.length == 0 ? 1 : numeros[numeros.length - 1] + 1;
+            salida = new FileOutputStream(archivo(numeroArchivo), true);
+        }
+        escritor = new Thread(this::bucleEscritor, "diario-escritor");
+        escritor.setDaemon(true);
+        escritor.start();
+    }
+
+    // =====================
+    // ===== ESCRITURA =====
+    // =====================
+
+    /* Anota una linea y devuelve su secuencia. Llamar con el cerrojo del dato tomado para conservar el orden */
+    public synchronized long anotar(String linea) {
+        pendientes.add(linea);
+        notifyAll();
+        return siguienteSecuencia++;
+    }
+
+    /*
+     * Bloquea hasta que la linea con esa secuencia este escrita (y sincronizada si la
+     * politica lo pide). IOException si no se pudo escribir: el cambio no es duradero.
+     */
+    public void esperar(long secuencia) throws IOException {
+        synchronized (escrituraLock) {
+            while (secuenciaEscrita < secuencia) {
+                if (secuencia <= secuenciaFallida) {
+                    throw new IOException("Diario sin escribir hasta " + secuenciaFallida, fallo);
+                }
+                try {
+                    escrituraLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Esperando al diario");
+                }
+            }
+        }
+    }
+
+    /* Error de escritura pendiente de recuperar con una compactacion, o null */
+    public IOException getFallo() {
+        return fallo;
+    }
+
+    private void bucleEscritor() {
+        while (true) {
+            synchronized (this) {
+                while (pendientes.isEmpty() && !cerrado) {
+                    try {
+                        wait(politica == PoliticaFsync.PERIODICA ? intervaloFsyncMs : 0);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (pendientes.isEmpty()) {
+                        break;
+                    }
+                }
+                if (pendientes.isEmpty() && cerrado) {
+                    return;
+                }
+            }
+            synchronized (archivoLock) {
+                volcarPendientes();
+                if (politica == PoliticaFsync.PERIODICA && sucio
+                        && System.currentTimeMillis() - ultimoFsync >= intervaloFsyncMs) {
+                    sincronizarPeriodico();
+                }
+            }
+        }
+    }
+
+    /* Escribe todo lo pendiente en el archivo actual. Llamar con archivoLock */
+    private void volcarPendientes() {
+        List<String> lote;
+        long hasta;
+        synchronized (this) {
+            if (pendientes.isEmpty()) {
+                return;
+            }
+            lote = pendientes;
+            pendientes = new ArrayList<>();
+            hasta = siguienteSecuencia - 1;
+        }
+
+        if (fallo != null) {
+            // Detras de lo que no se escribio no se escribe nada hasta reanudar
+            fallar(hasta, fallo);
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String linea : lote) {
+            sb.append(linea).append('\n');
+        }
+        try {
+            salida.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            sucio = true;
+            if (politica == PoliticaFsync.SIEMPRE) {
+                sincronizar();
+            }
+        } catch (IOException e) {
+            Log.error("diario.escribir", "hasta", hasta, e);
+            fallar(hasta, e);
+            return;
+        }
+
+        synchronized (escrituraLock) {
+            secuenciaEscrita = Math.max(secuenciaEscrita, hasta);
+            escrituraLock.notifyAll();
+        }
+    }
+
+    private void fallar(long hasta, IOException e) {
+        synchronized (escrituraLock) {
+            if (fallo == null) {
+                fallo = e;
+            }
+            secuenciaFallida = Math.max(secuenciaFallida, hasta);
+            escrituraLock.notifyAll();
+        }
+    }
+
+    private void sincronizar() throws IOException {
+        salida.getFD().sync();
+        sucio = false;
+        ultimoFsync = System.currentTimeMillis();
+    }
+
+    /* fsync sin esperas detras: lo ya confirmado no se puede retirar, pero no se escribe mas hasta reanudar */
+    private void sincronizarPeriodico() {
+        try {
+            sincronizar();
+        } catch (IOException e) {
+            Log.error("diario.sincronizar", e);
+            fallar(ultimaAnotada(), e);
+        }
+    }
+
+    private synchronized long ultimaAnotada() {
+        return siguienteSecuencia - 1;
+    }
+
+    // ========================
+    // ===== COMPACTACION =====
+    // ========================
+
+    /*
+     * Vuelca lo pendiente y pasa a un archivo nuevo. Devuelve el numero del ultimo
+     * archivo cerrado. Quien anota debe haber aplicado antes el cambio en memoria (y
+     * el Servidor rota sin altas de usuario a medias); solo asi todo lo anotado hasta
+     * aqui esta en memoria, una instantanea tomada despues lo incluye y esos archivos
+     * se pueden borrar. Por lo mismo, tras un fallo se vuelve a escribir en el nuevo.
+     */
+    public long rotar() throws IOException {
+        synchronized (archivoLock) {
+            volcarPendientes();
+            // Si el archivo viejo no se sincroniza, la instantanea de despues cubre lo que tuviera
+            sincronizarPeriodico();
+            salida.close();
+            long anterior = numeroArchivo;
+            numeroArchivo++;
+            salida = new FileOutputStream(archivo(numeroArchivo), true);
+            synchronized (escrituraLock) {
+                if (fallo != null) {
+                    Log.info("diario.reanudado", "perdidasHasta", secuenciaFallida);
+                    fallo = null;
+                }
+            }
+            return anterior;
+        }
+    }
+
+    public void borrarHasta(long numero) {
+        for (long n : numerosArchivos()) {
+            if (n <= numero && !archivo(n).delete()) {
+                Log.aviso("diario.borrar", "archivo", n);
+            }
+        }
+    }
+
+    public long getTamanio() {
+        long total = 0;
+        for (long n : numerosArchivos()) {
+            total += archivo(n).length();
+        }
+        return total;
+    }
+
+    public void cerrar() {
+        synchronized (this) {
+            cerrado = true;
+            notifyAll();
+        }
+        synchronized (archivoLock) {
+            if (salida == null) {
+                return;
+            }
+            volcarPendientes();
+            try {
+                sincronizar();
+                salida.close();
+            } catch (IOException e) {
+                Log.error("diario.cerrar", e);
+            }
+        }
+    }
+
+    // ====================
+    // ===== ARCHIVOS =====
+    // ====================
+
+    private File archivo(long numero) {
+        return new File(directorio, PREFIJO + String.format("%06d", numero));
+    }
+
+    private long[] numerosArchivos() {
+        String[] nombres = directorio.list((dir, nombre) -> nombre.startsWith(PREFIJO));
+        if (nombres == null) {
+            return new long[0];
+        }
+        long[] numeros = new long[nombres.length];
+        int n = 0;
+        for (String nombre : nombres) {
+            try {
+                numeros[n++] = Long.parseLong(nombre.substring(PREFIJO.length()));
+            } catch (NumberFormatException e) {
+                n--;
+            }
+        }
+        numeros = Arrays.copyOf(numeros, n);
+        Arrays.sort(numeros);
+        return numeros;
+    }
+}
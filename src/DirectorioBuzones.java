@@ -0,0 +1,165 @@
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Stubs de los Buzones de los contactos de un usuario, con su estado de salud.
+ *
+ * El servidor da el stub al conectarse el contacto. Si falla porque el
+ * objeto ya no existe o no se puede conectar (el contacto se reinicio, o se
+ * cayo), se olvida y el siguiente envio se lo vuelve a pedir al servidor. El
+ * primer fallo se reintenta en seguida; a partir del segundo seguido se
+ * espera, el doble cada vez hasta ESPERA_MAX_MS, y mientras tanto los envios
+ * fallan sin llamada remota con ContactoCaidoException. Un envio correcto o
+ * un stub nuevo del servidor lo dejan sano otra vez.
+ *
+ * Tambien guarda la clave que cada contacto nos ha dado para entregarle;
+ * con un stub nuevo se olvida, porque es de otra sesion suya.
+ */
+public class DirectorioBuzones {
+
+    private static final long ESPERA_MIN_MS = Long.getLong("chat.p2p.esperaMinMs", 200);
+    private static final long ESPERA_MAX_MS = Long.getLong("chat.p2p.esperaMaxMs", 30_000);
+
+    private static final class Par {
+        // null: hay que pedirlo al servidor
+        IBuzon stub;
+        int fallosSeguidos;
+        // Antes de este instante (nanoTime) no se intenta
+        long reintentarNs;
+        // Para entregar en su Buzon; 0 si aun no la ha mandado
+        long clave;
+    }
+
+    private final String usuario;
+    // Stub actual de un contacto segun el servidor, o null si no esta conectado
+    private final Function<String, IBuzon> resolver;
+    private final Map<String, Par> pares = new ConcurrentHashMap<>();
+
+    public DirectorioBuzones(String usuario, Function<String, IBuzon> resolver) {
+        this.usuario = usuario;
+        this.resolver = resolver;
+    }
+
+    /* Stub que ha dado el servidor; si es otro que el guardado, el contacto vuelve a estar sano */
+    public void actualizar(String contacto, IBuzon stub) {
+        Par p = pares.computeIfAbsent(contacto, k -> new Par());
+        synchronized (p) {
+            if (stub != null && !stub.equals(p.stub)) {
+                p.stub = stub;
+                p.fallosSeguidos = 0;
+                p.reintentarNs = 0;
+                p.clave = 0;
+            }
+        }
+    }
+
+    /* Clave con la que entregar al contacto, o 0 si no la tenemos */
+    public long clave(String contacto) {
+        Par p = pares.get(contacto);
+        if (p == null) {
+            return 0;
+        }
+        synchronized (p) {
+            return p.clave;
+        }
+    }
+
+    /* La manda el Buzon del contacto; una falsa solo hace que nos la vuelva a mandar */
+    public void guardarClave(String contacto, long clave) {
+        Par p = pares.computeIfAbsent(contacto, k -> new Par());
+        synchronized (p) {
+            p.clave = clave;
+        }
+    }
+
+    /* El stub guardado, sin comprobar nada */
+    public IBuzon actual(String contacto) {
+        Par p = pares.get(contacto);
+        if (p == null) {
+            return null;
+        }
+        synchronized (p) {
+            return p.stub;
+        }
+    }
+
+    /* Stub con el que enviar ahora, pidiendolo al servidor si hace falta */
+    public IBuzon obtener(String contacto) throws ContactoCaidoException {
+        Par p = pares.computeIfAbsent(contacto, k -> new Par());
+        synchronized (p) {
+            long ahora = System.nanoTime();
+            if (ahora < p.reintentarNs) {
+                EstadisticasPar.de(usuario, contacto).evitado();
+                throw new ContactoCaidoException(contacto, (p.reintentarNs - ahora + 999_999) / 1_000_000);
+            }
+            if (p.stub == null) {
+                p.stub = resolver.apply(contacto);
+                EstadisticasPar.de(usuario, contacto).resuelto();
+                if (p.stub == null) {
+                    // El servidor no lo tiene conectado (su aviso de conexion traera el stub): se espera ya
+                    p.fallosSeguidos = Math.max(p.fallosSeguidos, 1);
+                    caido(p);
+                    throw new ContactoCaidoException(contacto, espera(p.fallosSeguidos));
+                }
+                Log.depuracion("p2p.resolver", "contacto", contacto);
+            }
+            return p.stub;
+        }
+    }
+
+    public void exito(String contacto) {
+        Par p = pares.get(contacto);
+        if (p != null) {
+            synchronized (p) {
+                p.fallosSeguidos = 0;
+                p.reintentarNs = 0;
+            }
+        }
+    }
+
+    /* Fallo de una llamada con stub; no cuenta si entretanto ya se cambio por otro */
+    public void fallo(String contacto, IBuzon stub, RemoteException e) {
+        Par p = pares.get(contacto);
+        if (p == null) {
+            return;
+        }
+        synchronized (p) {
+            if (p.stub != stub) {
+                return;
+            }
+            if (obsoleto(e)) {
+                p.stub = null;
+            }
+            caido(p);
+            Log.aviso("p2p.fallo", "contacto", contacto, "seguidos", p.fallosSeguidos,
+                    "error", e.getClass().getSimpleName());
+        }
+    }
+
+    /* El contacto se ha desconectado */
+    public void olvidar(String contacto) {
+        pares.remove(contacto);
+    }
+
+    private static void caido(Par p) {
+        p.fallosSeguidos++;
+        p.reintentarNs = p.fallosSeguidos == 1 ? 0 : System.nanoTime() + espera(p.fallosSeguidos) * 1_000_000;
+    }
+
+    /* Milisegundos de espera tras n fallos seguidos (n >= 2) */
+    private static long espera(int fallos) {
+        return Math.min(ESPERA_MAX_MS, ESPERA_MIN_MS << Math.min(Math.max(fallos - 2, 0), 20));
+    }
+
+    /* Errores tras los que el stub no sirve: objeto desexportado o nadie escuchando en su puerto */
+    private static boolean obsoleto(RemoteException e) {
+        return e instanceof NoSuchObjectException || e instanceof ConnectException
+                || e instanceof ConnectIOException || e instanceof UnknownHostException;
+    }
+}
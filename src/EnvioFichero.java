@@ -0,0 +1,211 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.rmi.RemoteException;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.zip.CRC32C;
+
+/**
+ * Envio de un fichero a un contacto, por trozos y con ventana deslizante.
+ *
+ * Se ofrece por el Buzon del contacto (stub del DirectorioBuzones) y los
+ * datos van por el canal de su RecepcionFicheros. Cada trozo se lee del
+ * FileChannel a un buffer directo, se le calcula el CRC32C y se manda con
+ * una escritura; puede haber hasta VENTANA trozos sin confirmar, asi que la
+ * memoria es la de un trozo sea cual sea el tamano del fichero.
+ *
+ * Si la conexion se corta o pasa CanalFicheros.PLAZO_MS sin avanzar (puede
+ * estar medio abierta), o el contacto se desconecta, se vuelve a ofrecer
+ * y se sigue desde lo que el otro tenga confirmado; mientras el contacto
+ * esta caido se espera lo que diga el directorio. Los fallos seguidos
+ * esperan cada vez el doble, como en DirectorioBuzones, y se abandona tras
+ * MAX_INTENTOS sin avanzar, al cancelar o si el contacto rechaza la oferta.
+ */
+public class EnvioFichero implements Runnable {
+
+    public static final int TROZO = Integer.getInteger("chat.ficheros.trozoBytes", 1024 * 1024);
+    public static final int VENTANA = Integer.getInteger("chat.ficheros.ventana", 16);
+    private static final int MAX_INTENTOS = Integer.getInteger("chat.ficheros.intentos", 20);
+    // Mientras el contacto esta caido se vuelve a mirar como mucho cada tanto
+    private static final long ESPERA_MAX_MS = 1000;
+    // Tras un fallo: el primero se reintenta en seguida, luego el doble cada vez hasta el maximo
+    private static final long ESPERA_FALLO_MIN_MS = Long.getLong("chat.ficheros.esperaMinMs", 200);
+    private static final long ESPERA_FALLO_MAX_MS = Long.getLong("chat.ficheros.esperaMaxMs", 30_000);
+
+    private final String emisor;
+    private final String contacto;
+    private final Path ruta;
+    private final long tamano;
+    private final String id = UUID.randomUUID().toString();
+    private final DirectorioBuzones directorio;
+    // Direccion "host:puerto" del contacto segun el servidor
+    private final Function<String, String> direcciones;
+    private final CompletableFuture<Path> resultado = new CompletableFuture<>();
+
+    private volatile long confirmado = 0;
+    private volatile boolean cancelado = false;
+    // El contacto no lo acepta (tamano, espacio o su decision): reintentar no cambia nada
+    private volatile boolean rechazado = false;
+
+    public EnvioFichero(String emisor, String contacto, Path ruta, DirectorioBuzones directorio,
+            Function<String, String> direcciones) throws IOException {
+        this.emisor = emisor;
+        this.contacto = contacto;
+        this.ruta = ruta;
+        this.tamano = Files.size(ruta);
+        this.directorio = directorio;
+        this.direcciones = direcciones;
+    }
+
+    public String getContacto() {
+        return contacto;
+    }
+
+    public Path getRuta() {
+        return ruta;
+    }
+
+    public long getTamano() {
+        return tamano;
+    }
+
+    /* Bytes que el contacto ya tiene escritos y comprobados */
+    public long getConfirmado() {
+        return confirmado;
+    }
+
+    /* Se completa con la ruta enviada, o con el error por el que se abandono */
+    public CompletableFuture<Path> getResultado() {
+        return resultado;
+    }
+
+    public void cancelar() {
+        cancelado = true;
+    }
+
+    @Override
+    public void run() {
+        long inicio = System.nanoTime();
+        int fallos = 0;
+        while (true) {
+            if (cancelado) {
+                resultado.completeExceptionally(new IOException("Envio cancelado"));
+                return;
+            }
+            long antes = confirmado;
+            try {
+                intento();
+                double segundos = (System.nanoTime() - inicio) / 1e9;
+                Log.info("ficheros.enviado", "contacto", contacto, "bytes", tamano,
+                        "MBps", Math.round(tamano / 1e6 / segundos));
+                resultado.complete(ruta);
+                return;
+            } catch (ContactoCaidoException e) {
+                dormir(Math.min(e.getEsperaMs(), ESPERA_MAX_MS));
+                continue;
+            } catch (IOException e) {
+                if (cancelado || rechazado) {
+                    resultado.completeExceptionally(e);
+                    return;
+                }
+                fallos = confirmado > antes ? 1 : fallos + 1;
+                Log.aviso("ficheros.reintento", "contacto", contacto, "confirmado", confirmado,
+                        "error", e.toString());
+                if (fallos >= MAX_INTENTOS) {
+                    resultado.completeExceptionally(e);
+                    return;
+                }
+                if (fallos > 1) {
+                    dormir(Math.min(ESPERA_FALLO_MAX_MS, ESPERA_FALLO_MIN_MS << Math.min(fallos - 2, 20)));
+                }
+            }
+        }
+    }
+
+    private void intento() throws IOException, ContactoCaidoException {
+        IBuzon stub = directorio.obtener(contacto);
+        int puerto;
+        try {
+            try {
+                puerto = ofrecer(stub);
+            } catch (ClaveIncorrectaException e) {
+                // Su Buzon acaba de mandar la clave al nuestro: se repite una vez con ella
+                puerto = ofrecer(stub);
+            }
+        } catch (RemoteException e) {
+            directorio.fallo(contacto, stub, e);
+            throw e;
+        } catch (ClaveIncorrectaException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        if (puerto < 0) {
+            rechazado = true;
+            throw new IOException(contacto + " no acepta el fichero");
+        }
+        String direccion = direcciones.apply(contacto);
+        String host = direccion == null || direccion.indexOf(':') < 0 ? "localhost"
+                : direccion.substring(0, direccion.lastIndexOf(':'));
+
+        try (CanalFicheros canal = CanalFicheros.conectar(host, puerto);
+                FileChannel fichero = FileChannel.open(ruta, StandardOpenOption.READ)) {
+            ByteBuffer saludo = ByteBuffer.allocate(1024);
+            CanalFicheros.escribirCadena(saludo, emisor);
+            CanalFicheros.escribirCadena(saludo, id);
+            saludo.putInt(TROZO).flip();
+            canal.escribir(saludo);
+            ByteBuffer ack = ByteBuffer.allocateDirect(8);
+            long desde = canal.leerLargo(ack);
+            if (desde < 0) {
+                throw new IOException(contacto + " no reconoce el envio");
+            }
+            confirmado = desde;
+
+            ByteBuffer cab = ByteBuffer.allocateDirect(16);
+            ByteBuffer datos = ByteBuffer.allocateDirect(TROZO);
+            ByteBuffer[] trozo = { cab, datos };
+            CRC32C crc = new CRC32C();
+            long posicion = desde;
+            while (confirmado < tamano) {
+                // Llena la ventana y luego espera a la confirmacion mas antigua
+                while (posicion < tamano && posicion - confirmado < (long) VENTANA * TROZO && !cancelado) {
+                    int longitud = (int) Math.min(TROZO, tamano - posicion);
+                    datos.clear().limit(longitud);
+                    while (datos.hasRemaining()) {
+                        if (fichero.read(datos, posicion + datos.position()) < 0) {
+                            throw new IOException("El fichero ha encogido");
+                        }
+                    }
+                    datos.flip();
+                    crc.reset();
+                    crc.update(datos);
+                    datos.flip();
+                    cab.clear();
+                    cab.putLong(posicion).putInt(longitud).putInt((int) crc.getValue()).flip();
+                    canal.escribir(trozo);
+                    posicion += longitud;
+                }
+                if (cancelado) {
+                    throw new IOException("Envio cancelado");
+                }
+                confirmado = canal.leerLargo(ack);
+            }
+        }
+    }
+
+    private int ofrecer(IBuzon stub) throws RemoteException, ClaveIncorrectaException {
+        return stub.ofrecerFichero(directorio.clave(contacto), emisor, id, ruta.getFileName().toString(), tamano);
+    }
+
+    private void dormir(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            cancelado = true;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+ * Contadores y latencias de los mensajes entre un usuario local y un contacto.
+ *
+ * Hay una por pareja en el proceso y dura mas que el Chat, asi que acumula
+ * tambien lo de reconexiones anteriores. La latencia de entrega es de reloj
+ * de pared (desde que el emisor crea el Mensaje hasta que la Cola lo deja
+ * listo para leer); la de confirmacion es la ida y vuelta de cada envio.
+ */
+public class EstadisticasPar implements EstadisticasParMBean {
+
+    private static final Map<String, EstadisticasPar> pares = new ConcurrentHashMap<>();
+
+    private final LongAdder enviados = new LongAdder();
+    private final LongAdder reenviados = new LongAdder();
+    private final LongAdder fallosEnvio = new LongAdder();
+    private final LongAdder descartados = new LongAdder();
+    private final LongAdder rechazados = new LongAdder();
+    private final LongAdder resoluciones = new LongAdder();
+    private final LongAdder evitados = new LongAdder();
+    private final AtomicLong sinConfirmar = new AtomicLong();
+    private final HistogramaLatencias confirmacion = new HistogramaLatencias();
+
+    private final LongAdder recibidos = new LongAdder();
+    private final LongAdder duplicados = new LongAdder();
+    private final LongAdder desordenados = new LongAdder();
+    private final LongAdder perdidos = new LongAdder();
+    private final LongAdder desbordados = new LongAdder();
+    private final HistogramaLatencias entrega = new HistogramaLatencias();
+
+    public static EstadisticasPar de(String usuario, String contacto) {
+        return pares.computeIfAbsent(usuario + "\n" + contacto, k -> {
+            EstadisticasPar e = new EstadisticasPar();
+            if (Instrumentacion.ACTIVA) {
+                Instrumentacion.publicar("mensajes,usuario=" + ObjectName.quote(usuario)
+                        + ",contacto=" + ObjectName.quote(contacto), e);
+            }
+            return e;
+        });
+    }
+
+    // ==================
+    // ===== EMISOR =====
+    // ==================
+
+    public void enviado(int nuevos, int repetidos) {
+        enviados.add(nuevos);
+        reenviados.add(repetidos);
+    }
+
+    public void confirmado(long nanos, int pendientes) {
+        confirmacion.registrar(nanos);
+        sinConfirmar.set(pendientes);
+    }
+
+    public void falloEnvio() {
+        fallosEnvio.increment();
+    }
+
+    public void descartado() {
+        descartados.increment();
+    }
+
+    /* La Cola del contacto estaba llena */
+    public void rechazado() {
+        rechazados.increment();
+    }
+
+    /* Stub pedido otra vez al servidor tras un fallo */
+    public void resuelto() {
+        resoluciones.increment();
+    }
+
+    /* Envio que fallo sin llamada remota porque el contacto esta caido */
+    public void evitado() {
+        evitados.increment();
+    }
+
+    // ====================
+    // ===== RECEPTOR =====
+    // ====================
+
+    public void entregado(Mensaje m, long ahora) {
+        recibidos.increment();
+        // Con relojes desajustados puede salir negativa
+        entrega.registrar(Math.max(0, ahora - m.getEnviadoNs()));
+    }
+
+    public void duplicado() {
+        duplicados.increment();
+    }
+
+    public void desordenado() {
+        desordenados.increment();
+    }
+
+    public void perdidos(long n) {
+        perdidos.add(n);
+    }
+
+    public void desbordado() {
+        desbordados.increment();
+    }
+
+    // ===============
+    // ===== JMX =====
+    // ===============
+
+    @Override
+    public long getEnviados() {
+        return enviados.sum();
+    }
+
+    @Override
+    public long getReenviados() {
+        return reenviados.sum();
+    }
+
+    @Override
+    public long getFallosEnvio() {
+        return fallosEnvio.sum();
+    }
+
+    @Override
+    public long getDescartados() {
+        return descartados.sum();
+    }
+
+    @Override
+    public long getRechazados() {
+        return rechazados.sum();
+    }
+
+    @Override
+    public long getResoluciones() {
+        return resoluciones.sum();
+    }
+
+    @Override
+    public long getEvitados() {
+        return evitados.sum();
+    }
+
+    @Override
+    public long getSinConfirmar() {
+        return sinConfirmar.get();
+    }
+
+    @Override
+    public double getP50ConfirmacionUs() {
+        return confirmacion.getPercentil(50) / 1000.0;
+    }
+
+    @Override
+    public double getP99ConfirmacionUs() {
+        return confirmacion.getPercentil(99) / 1000.0;
+    }
+
+    @Override
+    public long getRecibidos() {
+        return recibidos.sum();
+    }
+
+    @Override
+    public long getDuplicados() {
+        return duplicados.sum();
+    }
+
+    @Override
+    public long getDesordenados() {
+        return desordenados.sum();
+    }
+
+    @Override
+    public long getPerdidos() {
+        return perdidos.sum();
+    }
+
+    @Override
+    public long getDesbordados() {
+        return desbordados.sum();
+    }
+
+    @Override
+    public double getTasaPerdida() {
+        long p = perdidos.sum();
+        long total = p + recibidos.sum();
+        return total == 0 ? 0 : (double) p / total;
+    }
+
+    @Override
+    public double getP50EntregaUs() {
+        return entrega.getPercentil(50) / 1000.0;
+    }
+
+    @Override
+    public double getP99EntregaUs() {
+        return entrega.getPercentil(99) / 1000.0;
+    }
+
+    @Override
+    public double getMaxEntregaUs() {
+        return entrega.getMaximo() / 1000.0;
+    }
+
+    @Override
+    public void reiniciar() {
+        enviados.reset();
+        reenviados.reset();
+        fallosEnvio.reset();
+        descartados.reset();
+        rechazados.reset();
+        resoluciones.reset();
+        evitados.reset();
+        confirmacion.reiniciar();
+        recibidos.reset();
+        duplicados.reset();
+        desordenados.reset();
+        perdidos.reset();
+        desbordados.reset();
+        entrega.reiniciar();
+    }
+}
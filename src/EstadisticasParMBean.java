@@ -0,0 +1,47 @@
+/**
+ * Entrega de mensajes con un contacto, publicada por JMX como
+ * "chat:type=mensajes,usuario=...,contacto=...". Las latencias van en microsegundos.
+ */
+public interface EstadisticasParMBean {
+    // Lo que este cliente envia al contacto
+    long getEnviados();
+
+    long getReenviados();
+
+    long getFallosEnvio();
+
+    long getDescartados();
+
+    long getRechazados();
+
+    long getResoluciones();
+
+    long getEvitados();
+
+    long getSinConfirmar();
+
+    double getP50ConfirmacionUs();
+
+    double getP99ConfirmacionUs();
+
+    // Lo que recibe del contacto
+    long getRecibidos();
+
+    long getDuplicados();
+
+    long getDesordenados();
+
+    long getPerdidos();
+
+    long getDesbordados();
+
+    double getTasaPerdida();
+
+    double getP50EntregaUs();
+
+    double getP99EntregaUs();
+
+    double getMaxEntregaUs();
+
+    void reiniciar();
+}
@@ -0,0 +1,68 @@
+import java.io.Serializable;
+
+/**
+ * Una notificacion para un cliente, de las que el servidor le envia en lote
+ * con IClienteCallback.notificarEventos.
+ */
+public class Evento implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Tipo {
+        AMIGO_CONECTADO,
+        AMIGO_DESCONECTADO,
+        SOLICITUD_AMISTAD,
+        AMISTAD_ACEPTADA
+    }
+
+    private final Tipo tipo;
+    private final String usuario;
+    // Solo en AMIGO_CONECTADO y en AMISTAD_ACEPTADA si el amigo esta conectado
+    private final String direccion;
+    private final IBuzon buzon;
+
+    public Evento(Tipo tipo, String usuario, String direccion) {
+        this(tipo, usuario, direccion, null);
+    }
+
+    public Evento(Tipo tipo, String usuario, String direccion, IBuzon buzon) {
+        this.tipo = tipo;
+        this.usuario = usuario;
+        this.direccion = direccion;
+        this.buzon = buzon;
+    }
+
+    public Tipo getTipo() {
+        return tipo;
+    }
+
+    public String getUsuario() {
+        return usuario;
+    }
+
+    public String getDireccion() {
+        return direccion;
+    }
+
+    public IBuzon getBuzon() {
+        return buzon;
+    }
+
+    /*
+     * Dos eventos con la misma clave dentro de una ventana se quedan en el ultimo:
+     * conexion y desconexion del mismo amigo comparten clave (vale el estado final).
+     */
+    String getClave() {
+        switch (tipo) {
+            case AMIGO_CONECTADO:
+            case AMIGO_DESCONECTADO:
+                return "P " + usuario;
+            default:
+                return tipo.name() + " " + usuario;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return tipo + " " + usuario + (direccion != null ? " " + direccion : "");
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de latencias log-lineal, al estilo de HdrHistogram.
+ *
+ * Los valores (en nanosegundos) por debajo de 64 tienen un cubo cada uno; a
+ * partir de ahi cada potencia de dos se parte en 32 cubos, asi que el error
+ * relativo de un percentil es como mucho de un 3%. Registrar es un par de
+ * operaciones de bits y un incremento atomico, sin reservar memoria.
+ */
+public class HistogramaLatencias {
+
+    private static final int BITS_SUB = 5;
+    private static final int SUB = 1 << BITS_SUB;          // cubos por potencia de dos
+    private static final int LINEALES = 2 * SUB;            // 0..63 van directos
+    private static final long MAXIMO = (1L << 40) - 1;       // ~18 minutos
+
+    private final AtomicLongArray cubos = new AtomicLongArray(indice(MAXIMO) + 1);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder suma = new LongAdder();
+    private final AtomicLong maximo = new AtomicLong();
+
+    public void registrar(long nanos) {
+        long v = Math.max(0, Math.min(nanos, MAXIMO));
+        cubos.incrementAndGet(indice(v));
+        total.increment();
+        suma.add(v);
+        long max = maximo.get();
+        while (v > max && !maximo.compareAndSet(max, v)) {
+            max = maximo.get();
+        }
+    }
+
+    public long getTotal() {
+        return total.sum();
+    }
+
+    public double getMedia() {
+        long n = total.sum();
+        return n == 0 ? 0 : (double) suma.sum() / n;
+    }
+
+    public long getMaximo() {
+        return maximo.get();
+    }
+
+    /* Limite superior del cubo donde cae el percentil p (0-100); 0 si no hay datos */
+    public long getPercentil(double p) {
+        long[] copia = new long[cubos.length()];
+        long n = 0;
+        for (int i = 0; i < copia.length; i++) {
+            copia[i] = cubos.get(i);
+            n += copia[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long objetivo = Math.max(1, (long) Math.ceil(n * p / 100.0));
+        long acumulado = 0;
+        for (int i = 0; i < copia.length; i++) {
+            acumulado += copia[i];
+            if (acumulado >= objetivo) {
+                return Math.min(hasta(i), maximo.get());
+            }
+        }
+        return maximo.get();
+    }
+
+    public void reiniciar() {
+        for (int i = 0; i < cubos.length(); i++) {
+            cubos.set(i, 0);
+        }
+        total.reset();
+        suma.reset();
+        maximo.set(0);
+    }
+
+    /* Texto con el contenido del histograma, para juntar los de varios procesos con sumar */
+    public String codificar() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(total.sum()).append(' ').append(suma.sum()).append(' ').append(maximo.get()).append(' ');
+        for (int i = 0; i < cubos.length(); i++) {
+            long c = cubos.get(i);
+            if (c != 0) {
+                sb.append(i).append(':').append(c).append(',');
+            }
+        }
+        return sb.toString();
+    }
+
+    public void sumar(String codificado) {
+        String[] partes = codificado.trim().split(" ");
+        total.add(Long.parseLong(partes[0]));
+        suma.add(Long.parseLong(partes[1]));
+        maximo.accumulateAndGet(Long.parseLong(partes[2]), Math::max);
+        if (partes.length > 3) {
+            for (String cubo : partes[3].split(",")) {
+                if (!cubo.isEmpty()) {
+                    int dos = cubo.indexOf(':');
+                    cubos.addAndGet(Integer.parseInt(cubo.substring(0, dos)), Long.parseLong(cubo.substring(dos + 1)));
+                }
+            }
+        }
+    }
+
+    private static int indice(long v) {
+        if (v < LINEALES) {
+            return (int) v;
+        }
+        int desplazamiento = 63 - Long.numberOfLeadingZeros(v) - BITS_SUB;
+        return LINEALES + (desplazamiento - 1) * SUB + (int) (v >>> desplazamiento) - SUB;
+    }
+
+    /* Mayor valor que cae en el cubo i */
+    private static long hasta(int i) {
+        if (i < LINEALES) {
+            return i;
+        }
+        int desplazamiento = (i - LINEALES) / SUB + 1;
+        long inicio = (long) ((i - LINEALES) % SUB + SUB) << desplazamiento;
+        return inicio + (1L << desplazamiento) - 1;
+    }
+}
@@ -0,0 +1,30 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * Buzon de un cliente: el unico objeto remoto por el que recibe mensajes de
+ * todos sus contactos. Cada Mensaje dice quien lo envia, y la clave de ese
+ * contacto lo demuestra: el Buzon solo se la manda (recibirClave) al Buzon
+ * que el servidor tiene para el.
+ */
+public interface IBuzon extends Remote {
+
+    /* Recibe mensajes de un mismo emisor y conversacion y devuelve la confirmacion
+       acumulada: todas las secuencias hasta ella estan guardadas.
+       ColaLlenaException (con la confirmacion hasta ahi) si no caben, y
+       ClaveIncorrectaException si la clave no es la del emisor (0: aun sin clave) */
+    long entregar(long clave, List<Mensaje> mensajes)
+            throws RemoteException, ColaLlenaException, ClaveIncorrectaException;
+
+    /* Confirmacion acumulada de una conversacion del emisor, o -1 si no la conoce */
+    long getConfirmado(String emisor, long conversacion) throws RemoteException;
+
+    /* Ofrece un fichero (id unico del envio, nombre sin ruta y tamano en bytes) y devuelve
+       el puerto de RecepcionFicheros al que mandarlo, o -1 si no se acepta */
+    int ofrecerFichero(long clave, String emisor, String id, String nombre, long tamano)
+            throws RemoteException, ClaveIncorrectaException;
+
+    /* La clave con la que entregar al contacto, que la manda su Buzon */
+    void recibirClave(String contacto, long clave) throws RemoteException;
+}
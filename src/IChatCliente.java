@@ -18,6 +18,8 @@ public interface IChatCliente {
     // Gestión de amistades
     List<String> buscarUsuarios(String query);
 
+    List<String> buscarUsuarios(String prefijo, int offset, int limite);
+
     boolean solicitarAmistad(String username);
 
     List<String> getSolicitudesPendientes();
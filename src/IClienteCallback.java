@@ -1,9 +1,12 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 public interface IClienteCallback extends Remote {
-    void notificarConexionAmigo(String amigo, String direccion) throws RemoteException;
+    void notificarConexionAmigo(String amigo, String direccion, IBuzon buzon) throws RemoteException;
     void notificarDesconexionAmigo(String amigo) throws RemoteException;
     void notificarSolicitudAmistad(String deUsuario) throws RemoteException;
     void notificarAmistadAceptada(String amigo) throws RemoteException;
+    // Varios eventos en una sola llamada, en el orden en que hay que aplicarlos
+    void notificarEventos(List<Evento> eventos) throws RemoteException;
 }
@@ -6,7 +6,13 @@ public interface IServidor extends Remote {
 
     // ===== AUTENTICACIÓN Y CONEXIÓN =====
     boolean login(String user, String password, String direccion) throws RemoteException;
+    // login + registrarCallback + estado inicial en una sola llamada; null si el login falla.
+    // buzon es el stub del Buzon del cliente, que se pasa tal cual a sus amigos
+    SesionUsuario iniciarSesion(String user, String password, String direccion,
+            IClienteCallback callback, IBuzon buzon) throws RemoteException;
     void logout(String user) throws RemoteException;
+    // Latido para mantener viva la sesion; false si ya ha caducado
+    boolean renovarSesion(String user) throws RemoteException;
     boolean registrarUsuario(String user, String password) throws RemoteException;
 
     // ===== GESTIÓN DE AMISTADES =====
@@ -18,8 +24,15 @@ public interface IServidor extends Remote {
     // ===== INFORMACIÓN DE USUARIOS =====
     List<String> getAmigos(String user) throws RemoteException;
     List<String> getAmigosConectados(String user) throws RemoteException;
+    int getNumAmigosConectados(String user) throws RemoteException;
     String getDireccion(String usuario) throws RemoteException;
+    // Stub del Buzon de un usuario conectado; null si no esta conectado
+    IBuzon getBuzon(String usuario) throws RemoteException;
     boolean existeUsuario(String usuario) throws RemoteException;
+    // Usuarios cuyo nombre empieza por prefijo, por paginas de como mucho limite nombres
+    List<String> buscarUsuarios(String prefijo, int offset, int limite) throws RemoteException;
+    // Cambios de amigos, conectados y solicitudes desde version; null si no hay ninguno
+    CambiosUsuario getCambiosDesde(String usuario, long version) throws RemoteException;
 
     // ===== NOTIFICACIONES (para callbacks) =====
     void registrarCallback(String usuario, IClienteCallback callback) throws RemoteException;
@@ -0,0 +1,83 @@
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Indice de amigos conectados de cada usuario conectado.
+ *
+ * Se mantiene de forma incremental: al conectarse o desconectarse un usuario se
+ * recorre una vez su lista de amigos llamando a actualizarPar, y consultar los
+ * amigos conectados pasa a ser leer un conjunto ya calculado. Los usuarios
+ * desconectados no tienen conjunto (se reconstruye al conectarse).
+ *
+ * conectar/desconectar se llaman con el cerrojo del usuario tomado y
+ * actualizarPar con los de ambos, asi cada par queda coherente con el estado
+ * final de los dos usuarios sea cual sea el orden de los hilos.
+ */
+public class IndiceConectados {
+
+    private final ArregloSegmentado<Set<Integer>> amigosConectados = new ArregloSegmentado<>();
+    private final AtomicInteger totalConectados = new AtomicInteger();
+
+    public boolean estaConectado(int id) {
+        return amigosConectados.get(id) != null;
+    }
+
+    public void conectar(int id) {
+        if (amigosConectados.get(id) == null) {
+            totalConectados.incrementAndGet();
+        }
+        amigosConectados.set(id, ConcurrentHashMap.newKeySet());
+    }
+
+    public void desconectar(int id) {
+        if (amigosConectados.get(id) != null) {
+            totalConectados.decrementAndGet();
+        }
+        amigosConectados.set(id, null);
+    }
+
+    /* a y b son amigos: deja cada uno en el conjunto del otro solo si ambos estan conectados */
+    public void actualizarPar(int a, int b) {
+        Set<Integer> deA = amigosConectados.get(a);
+        Set<Integer> deB = amigosConectados.get(b);
+        if (deA != null && deB != null) {
+            deA.add(b);
+            deB.add(a);
+        } else {
+            if (deA != null) {
+                deA.remove(b);
+            }
+            if (deB != null) {
+                deB.remove(a);
+            }
+        }
+    }
+
+    /* Copia de los ids de los amigos conectados; vacio si el usuario no esta conectado */
+    public int[] getAmigosConectados(int id) {
+        Set<Integer> conjunto = amigosConectados.get(id);
+        if (conjunto == null) {
+            return new int[0];
+        }
+        int[] res = new int[conjunto.size()];
+        int k = 0;
+        for (int amigo : conjunto) {
+            if (k == res.length) {
+                res = Arrays.copyOf(res, k * 2 + 1);
+            }
+            res[k++] = amigo;
+        }
+        return k == res.length ? res : Arrays.copyOf(res, k);
+    }
+
+    public int getNumAmigosConectados(int id) {
+        Set<Integer> conjunto = amigosConectados.get(id);
+        return conjunto == null ? 0 : conjunto.size();
+    }
+
+    public int getTotalConectados() {
+        return totalConectados.get();
+    }
+}
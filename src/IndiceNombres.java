@@ -0,0 +1,108 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Indice ordenado de nombres de usuario para buscar por prefijo.
+ *
+ * La mayor parte de los nombres esta en un String[] ordenado (base) que se
+ * busca con busqueda binaria; los registrados despues van a un conjunto
+ * ordenado pequeño (recientes). Cuando recientes crece se mezcla con base en
+ * un array nuevo, asi un registro cuesta O(log k) y la mezcla O(n) se reparte
+ * entre muchos registros. Una busqueda recorre los dos a la vez y solo toca
+ * los nombres anteriores a la pagina y los de la pagina.
+ *
+ * Las escrituras las serializa quien llama (TablaUsuarios); las lecturas no
+ * bloquean.
+ */
+public class IndiceNombres {
+
+    private static final int MEZCLAR_CADA = 32768;
+
+    /* Al mezclar se cambian base y recientes a la vez, sin vaciar el conjunto que lee otro hilo */
+    private static class Estado {
+        final String[] base;
+        final NavigableSet<String> recientes = new ConcurrentSkipListSet<>();
+
+        Estado(String[] base) {
+            this.base = base;
+        }
+    }
+
+    private volatile Estado estado;
+
+    public IndiceNombres(String[] nombres) {
+        String[] ordenados = nombres.clone();
+        Arrays.parallelSort(ordenados);
+        this.estado = new Estado(ordenados);
+    }
+
+    public void agregar(String nombre) {
+        Estado e = estado;
+        e.recientes.add(nombre);
+        if (e.recientes.size() >= MEZCLAR_CADA) {
+            mezclar(e);
+        }
+    }
+
+    /* Nombres que empiezan por prefijo en orden alfabetico, saltando los offset primeros */
+    public List<String> buscar(String prefijo, int offset, int limite) {
+        Estado e = estado;
+        String[] b = e.base;
+        int i = desde(b, prefijo);
+        Iterator<String> it = e.recientes.tailSet(prefijo, true).iterator();
+        String r = it.hasNext() ? it.next() : null;
+
+        List<String> res = new ArrayList<>(Math.min(limite, 64));
+        int saltados = 0;
+        while (res.size() < limite) {
+            String siguiente;
+            if (r == null || (i < b.length && b[i].compareTo(r) < 0)) {
+                if (i >= b.length) {
+                    break;
+                }
+                siguiente = b[i++];
+            } else {
+                siguiente = r;
+                r = it.hasNext() ? it.next() : null;
+            }
+            if (!siguiente.startsWith(prefijo)) {
+                break;
+            }
+            if (saltados < offset) {
+                saltados++;
+            } else {
+                res.add(siguiente);
+            }
+        }
+        return res;
+    }
+
+    public int getTamanio() {
+        Estado e = estado;
+        return e.base.length + e.recientes.size();
+    }
+
+    /* Primera posicion de b con un nombre >= prefijo */
+    private static int desde(String[] b, String prefijo) {
+        int i = Arrays.binarySearch(b, prefijo);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    private void mezclar(Estado e) {
+        String[] b = e.base;
+        String[] r = e.recientes.toArray(new String[0]);
+        String[] mezcla = new String[b.length + r.length];
+        int i = 0, j = 0, k = 0;
+        while (i < b.length && j < r.length) {
+            mezcla[k++] = b[i].compareTo(r[j]) <= 0 ? b[i++] : r[j++];
+        }
+        System.arraycopy(b, i, mezcla, k, b.length - i);
+        k += b.length - i;
+        System.arraycopy(r, j, mezcla, k, r.length - j);
+        estado = new Estado(mezcla);
+    }
+}
@@ -0,0 +1,291 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Instantanea binaria de los datos de usuarios, pensada para leerse con un
+ * MappedByteBuffer sin parsear texto.
+ *
+ * Formato (big-endian, todos los offsets en bytes desde el inicio del archivo):
+ *
+ *   int  MAGIA, int VERSION, int n (usuarios)
+ *   int  inicio de cada seccion: NOMBRES, CLAVES, AMIGOS, SOLICITUDES
+ *   NOMBRES / CLAVES:     int[n + 1] posiciones relativas + bytes UTF-8
+ *   AMIGOS / SOLICITUDES: int[n + 1] posiciones relativas (en ints) + int[] ids
+ *
+ * Cada usuario es su posicion en la tabla de nombres, y las listas de amigos y
+ * solicitudes guardan esos ids en lugar de repetir los nombres.
+ */
+public class InstantaneaBinaria {
+
+    public static final int MAGIA = 0x43484154; // "CHAT"
+    public static final int VERSION = 1;
+
+    private static final int NOMBRES = 0;
+    private static final int CLAVES = 1;
+    private static final int AMIGOS = 2;
+    private static final int SOLICITUDES = 3;
+    private static final int SECCIONES = 4;
+    private static final int CABECERA = 12 + 4 * SECCIONES;
+
+    private final ByteBuffer datos;
+    private final int n;
+    private final int[] secciones = new int[SECCIONES];
+
+    private InstantaneaBinaria(ByteBuffer datos) throws IOException {
+        this.datos = datos;
+        if (datos.limit() < CABECERA || datos.getInt(0) != MAGIA) {
+            throw new IOException("No es una instantanea binaria");
+        }
+        int version = datos.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("Version de instantanea no soportada: " + version);
+        }
+        this.n = datos.getInt(8);
+        for (int i = 0; i < SECCIONES; i++) {
+            secciones[i] = datos.getInt(12 + 4 * i);
+        }
+    }
+
+    // ===================
+    // ===== LECTURA =====
+    // ===================
+
+    public static InstantaneaBinaria cargar(String archivo) throws IOException {
+        try (FileChannel canal = FileChannel.open(new File(archivo).toPath(), StandardOpenOption.READ)) {
+            // El mapeo sigue siendo valido aunque se cierre el canal
+            MappedByteBuffer mapa = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+            return new InstantaneaBinaria(mapa);
+        }
+    }
+
+    public int getNumUsuarios() {
+        return n;
+    }
+
+    public String getNombre(int id) {
+        return texto(NOMBRES, id);
+    }
+
+    public String getClave(int id) {
+        return texto(CLAVES, id);
+    }
+
+    public int getNumAmigos(int id) {
+        return longitud(AMIGOS, id);
+    }
+
+    public int getAmigo(int id, int i) {
+        return entero(AMIGOS, id, i);
+    }
+
+    public int[] getAmigos(int id) {
+        return enteros(AMIGOS, id);
+    }
+
+    public int[] getSolicitudes(int id) {
+        return enteros(SOLICITUDES, id);
+    }
+
+    public int getNumSolicitudes(int id) {
+        return longitud(SOLICITUDES, id);
+    }
+
+    public int getSolicitud(int id, int i) {
+        return entero(SOLICITUDES, id, i);
+    }
+
+    private int posicion(int seccion, int id) {
+        return datos.getInt(secciones[seccion] + 4 * id);
+    }
+
+    private int longitud(int seccion, int id) {
+        return posicion(seccion, id + 1) - posicion(seccion, id);
+    }
+
+    private String texto(int seccion, int id) {
+        int base = secciones[seccion] + 4 * (n + 1);
+        int desde = posicion(seccion, id);
+        byte[] bytes = new byte[posicion(seccion, id + 1) - desde];
+        datos.get(base + desde, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int entero(int seccion, int id, int i) {
+        int base = secciones[seccion] + 4 * (n + 1);
+        return datos.getInt(base + 4 * (posicion(seccion, id) + i));
+    }
+
+    private int[] enteros(int seccion, int id) {
+        int base = secciones[seccion] + 4 * (n + 1) + 4 * posicion(seccion, id);
+        int[] res = new int[longitud(seccion, id)];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = datos.getInt(base + 4 * i);
+        }
+        return res;
+    }
+
+    // =====================
+    // ===== ESCRITURA =====
+    // =====================
+
+    /* Version para datos en mapas por nombre (conversor y pruebas) */
+    public static void guardar(Map<String, String> passwords, Map<String, List<String>> amigos,
+            Map<String, List<String>> solicitudes, String archivo) throws IOException {
+        TablaUsuarios usuarios = new TablaUsuarios();
+        for (Map.Entry<String, String> entry : passwords.entrySet()) {
+            usuarios.registrar(entry.getKey(), entry.getValue());
+        }
+        guardar(usuarios, aListas(amigos, usuarios), aListas(solicitudes, usuarios), archivo);
+    }
+
+    public static void guardar(TablaUsuarios usuarios, ListasAdyacencia amigos,
+            ListasAdyacencia solicitudes, String archivo) throws IOException {
+        guardar(usuarios, usuarios.getTamanio(), amigos, solicitudes, archivo);
+    }
+
+    /*
+     * Escribe la instantanea de los n primeros usuarios en un temporal y lo renombra. Los
+     * ids del archivo son los de la tabla. Los usuarios a partir de n se omiten: quien
+     * llama toma n justo al rotar el diario, sin altas a medias, asi que estan anotados
+     * en archivos que la instantanea no cubre.
+     */
+    public static void guardar(TablaUsuarios usuarios, int n, ListasAdyacencia amigos,
+            ListasAdyacencia solicitudes, String archivo) throws IOException {
+        byte[][] bytesNombres = new byte[n][];
+        byte[][] bytesClaves = new byte[n][];
+        int[][] listaAmigos = new int[n][];
+        int[][] listaSolicitudes = new int[n][];
+        for (int id = 0; id < n; id++) {
+            bytesNombres[id] = usuarios.getNombre(id).getBytes(StandardCharsets.UTF_8);
+            bytesClaves[id] = usuarios.getClave(id).getBytes(StandardCharsets.UTF_8);
+            listaAmigos[id] = hasta(amigos.get(id), n);
+            listaSolicitudes[id] = hasta(solicitudes.get(id), n);
+        }
+
+        File destino = new File(archivo);
+        File path = destino.getAbsoluteFile().getParentFile();
+        path.mkdirs();
+        File tmp = new File(archivo + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+            long[] inicio = new long[SECCIONES];
+            inicio[NOMBRES] = CABECERA;
+            inicio[CLAVES] = inicio[NOMBRES] + tamanioTextos(bytesNombres);
+            inicio[AMIGOS] = inicio[CLAVES] + tamanioTextos(bytesClaves);
+            inicio[SOLICITUDES] = inicio[AMIGOS] + tamanioListas(listaAmigos);
+            // Un MappedByteBuffer solo direcciona 2 GB
+            if (inicio[SOLICITUDES] + tamanioListas(listaSolicitudes) > Integer.MAX_VALUE) {
+                throw new IOException("Instantanea demasiado grande para mapearse");
+            }
+
+            out.writeInt(MAGIA);
+            out.writeInt(VERSION);
+            out.writeInt(n);
+            for (long s : inicio) {
+                out.writeInt((int) s);
+            }
+            escribirTextos(out, bytesNombres);
+            escribirTextos(out, bytesClaves);
+            escribirListas(out, listaAmigos);
+            escribirListas(out, listaSolicitudes);
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), destino.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static ListasAdyacencia aListas(Map<String, List<String>> mapa, TablaUsuarios usuarios) {
+        ListasAdyacencia listas = new ListasAdyacencia();
+        for (Map.Entry<String, List<String>> entry : mapa.entrySet()) {
+            int id = usuarios.getId(entry.getKey());
+            if (id < 0) {
+                continue;
+            }
+            for (String otro : entry.getValue()) {
+                int idOtro = usuarios.getId(otro);
+                if (idOtro >= 0) {
+                    listas.agregar(id, idOtro);
+                }
+            }
+        }
+        return listas;
+    }
+
+    /* Las listas estan ordenadas: basta cortar en el primer id >= n */
+    private static int[] hasta(int[] lista, int n) {
+        int k = lista.length;
+        while (k > 0 && lista[k - 1] >= n) {
+            k--;
+        }
+        return k == lista.length ? lista : Arrays.copyOf(lista, k);
+    }
+
+    private static long tamanioTextos(byte[][] textos) {
+        long total = 4L * (textos.length + 1);
+        for (byte[] t : textos) {
+            total += t.length;
+        }
+        return total;
+    }
+
+    private static long tamanioListas(int[][] listas) {
+        long total = 4L * (listas.length + 1);
+        for (int[] l : listas) {
+            total += 4L * l.length;
+        }
+        return total;
+    }
+
+    private static void escribirTextos(DataOutputStream out, byte[][] textos) throws IOException {
+        int pos = 0;
+        out.writeInt(pos);
+        for (byte[] t : textos) {
+            pos += t.length;
+            out.writeInt(pos);
+        }
+        for (byte[] t : textos) {
+            out.write(t);
+        }
+    }
+
+    private static void escribirListas(DataOutputStream out, int[][] listas) throws IOException {
+        int pos = 0;
+        out.writeInt(pos);
+        for (int[] l : listas) {
+            pos += l.length;
+            out.writeInt(pos);
+        }
+        for (int[] l : listas) {
+            for (int id : l) {
+                out.writeInt(id);
+            }
+        }
+    }
+
+    // =====================
+    // ===== CONVERSOR =====
+    // =====================
+
+    /* Convierte los archivos de texto actuales a la instantanea binaria */
+    public static void main(String[] args) {
+        String pswd = args.length > 0 ? args[0] : Servidor.PASSWORDS_FILE;
+        String amigos = args.length > 1 ? args[1] : Servidor.FRIENDS_FILE;
+        String solicitudes = args.length > 2 ? args[2] : Servidor.PENDING_REQUESTS_FILE;
+        String destino = args.length > 3 ? args[3] : Servidor.SNAPSHOT_FILE;
+        try {
+            HashMap<String, String> passwords = ManejadorUsuarios.loadUsersFromFile(pswd);
+            guardar(passwords, ManejadorUsuarios.loadFriendsFromFile(amigos),
+                    ManejadorUsuarios.loadFriendsFromFile(solicitudes), destino);
+            System.out.println("Instantanea escrita en " + destino + " (" + passwords.size() + " usuarios)");
+        } catch (Exception e) {
+            System.out.println("Error convirtiendo a instantanea binaria: " + e);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Envuelve un objeto en un proxy de su interfaz que mide cada llamada.
+ *
+ * Cada metodo tiene un MetricasMetodo compartido por todos los objetos del
+ * mismo grupo, publicado como MBean "chat:type=grupo,name=metodo" en el
+ * servidor JMX de la plataforma (visible con jconsole). Las excepciones se
+ * cuentan como error y se relanzan tal cual.
+ *
+ * Se puede desactivar con -Dchat.metricas=false.
+ */
+public class Instrumentacion {
+
+    public static final boolean ACTIVA = Boolean.parseBoolean(System.getProperty("chat.metricas", "true"));
+
+    private static final Map<String, MetricasMetodo> metricas = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    public static <T> T envolver(T objeto, Class<T> interfaz, String grupo) {
+        if (!ACTIVA) {
+            return objeto;
+        }
+        // Se crean todas al envolver para que jconsole las muestre aunque aun no haya llamadas
+        Map<Method, MetricasMetodo> porMetodo = new ConcurrentHashMap<>();
+        for (Method m : interfaz.getMethods()) {
+            porMetodo.put(m, metricas(grupo, m.getName()));
+        }
+        InvocationHandler manejador = (proxy, metodo, args) -> {
+            MetricasMetodo mm = porMetodo.get(metodo);
+            if (mm == null) {
+                // equals, hashCode, toString
+                return invocar(objeto, metodo, args);
+            }
+            long inicio = System.nanoTime();
+            boolean error = true;
+            try {
+                Object res = invocar(objeto, metodo, args);
+                error = false;
+                return res;
+            } finally {
+                mm.registrar(System.nanoTime() - inicio, error);
+            }
+        };
+        return (T) Proxy.newProxyInstance(interfaz.getClassLoader(), new Class<?>[]{interfaz}, manejador);
+    }
+
+    /* Registra un MBean con nombre "chat:type=tipo"; los errores solo se muestran */
+    public static void publicar(String tipo, Object mbean) {
+        try {
+            MBeanServer servidor = ManagementFactory.getPlatformMBeanServer();
+            ObjectName nombre = new ObjectName("chat:type=" + tipo);
+            if (!servidor.isRegistered(nombre)) {
+                servidor.registerMBean(mbean, nombre);
+            }
+        } catch (Exception e) {
+            Log.error("jmx.publicar", "mbean", tipo, e);
+        }
+    }
+
+    private static MetricasMetodo metricas(String grupo, String metodo) {
+        return metricas.computeIfAbsent(grupo + "." + metodo, k -> {
+            MetricasMetodo mm = new MetricasMetodo();
+            publicar(grupo + ",name=" + metodo, mm);
+            return mm;
+        });
+    }
+
+    private static Object invocar(Object objeto, Method metodo, Object[] args) throws Throwable {
+        try {
+            return metodo.invoke(objeto, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Conjunto de ids por usuario guardado como un int[] ordenado.
+ *
+ * Las lecturas no bloquean: cada modificacion crea un arreglo nuevo y lo
+ * publica (copy-on-write), asi que quien obtiene un arreglo con get() lo
+ * puede recorrer sin que cambie. Las modificaciones sobre un mismo usuario
+ * deben hacerse con su cerrojo de BloqueosUsuario tomado.
+ */
+public class ListasAdyacencia {
+
+    private static final int[] VACIO = new int[0];
+
+    private final ArregloSegmentado<int[]> listas = new ArregloSegmentado<>();
+    // Suma de las longitudes de todas las listas
+    private final LongAdder total = new LongAdder();
+
+    /* El arreglo devuelto no se debe modificar */
+    public int[] get(int id) {
+        int[] lista = listas.get(id);
+        return lista == null ? VACIO : lista;
+    }
+
+    public boolean contiene(int id, int otro) {
+        return Arrays.binarySearch(get(id), otro) >= 0;
+    }
+
+    public boolean agregar(int id, int otro) {
+        int[] actual = get(id);
+        int pos = Arrays.binarySearch(actual, otro);
+        if (pos >= 0) {
+            return false;
+        }
+        pos = -pos - 1;
+        int[] nueva = new int[actual.length + 1];
+        System.arraycopy(actual, 0, nueva, 0, pos);
+        nueva[pos] = otro;
+        System.arraycopy(actual, pos, nueva, pos + 1, actual.length - pos);
+        listas.set(id, nueva);
+        total.increment();
+        return true;
+    }
+
+    public boolean quitar(int id, int otro) {
+        int[] actual = get(id);
+        int pos = Arrays.binarySearch(actual, otro);
+        if (pos < 0) {
+            return false;
+        }
+        int[] nueva = actual.length == 1 ? VACIO : new int[actual.length - 1];
+        System.arraycopy(actual, 0, nueva, 0, pos);
+        System.arraycopy(actual, pos + 1, nueva, pos, actual.length - pos - 1);
+        listas.set(id, nueva);
+        total.decrement();
+        return true;
+    }
+
+    /* Para la carga inicial: ordena y quita repetidos si hace falta */
+    public void poner(int id, int[] lista) {
+        for (int i = 1; i < lista.length; i++) {
+            if (lista[i - 1] >= lista[i]) {
+                lista = Arrays.stream(lista).sorted().distinct().toArray();
+                break;
+            }
+        }
+        total.add(lista.length - get(id).length);
+        listas.set(id, lista.length == 0 ? VACIO : lista);
+    }
+
+    public long getTotal() {
+        return total.sum();
+    }
+}
@@ -1,5 +1,446 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Registro asincrono de eventos con pares clave/valor.
+ *
+ * Quien registra solo reserva una casilla de un buffer circular (un CAS),
+ * copia las referencias del evento y sigue: no formatea ni hace E/S. Un hilo
+ * escritor vacia el buffer (espera un poco activo y luego duerme hasta que
+ * alguien publique), da formato a cada evento en una linea
+ *
+ *   2026-10-18 12:00:00.123 INFO  login usuario=ana direccion=localhost:5001 [hilo]
+ *
+ * y la escribe en el archivo, que rota al llegar a un tamaño. Si el buffer
+ * esta lleno el evento se descarta y se cuenta, nunca se bloquea.
+ *
+ * Los niveles por debajo del configurado salen en la primera comparacion,
+ * con un campo static final que el JIT trata como constante; para que no
+ * cueste nada los valores se pasan tal cual (sin concatenar cadenas).
+ *
+ * Configuracion (-D):
+ *   chat.log.nivel       DEPURACION, INFO, AVISO o ERROR (INFO)
+ *   chat.log.archivo     ruta del archivo, o "-" para la salida estandar (-)
+ *   chat.log.rotarBytes  tamaño a partir del cual se rota (16 MB)
+ *   chat.log.archivos    archivos rotados que se conservan (5)
+ *   chat.log.capacidad   casillas del buffer (8192, se redondea a potencia de 2)
+ */
 public class Log {
-        public static void log(String str) {
-                System.out.println(str);
+
+    public enum Nivel {
+        DEPURACION, INFO, AVISO, ERROR
+    }
+
+    private static final int NIVEL = nivel(System.getProperty("chat.log.nivel", "info"));
+    private static final long ROTAR_BYTES = Long.getLong("chat.log.rotarBytes", 16L << 20);
+    private static final int ARCHIVOS = Integer.getInteger("chat.log.archivos", 5);
+    private static final int PARES = 4;
+
+    private static final Casilla[] casillas;
+    private static final int mascara;
+    // Siguiente secuencia a reservar y siguiente a escribir
+    private static final AtomicLong reservadas = new AtomicLong();
+    private static final AtomicLong escritas = new AtomicLong();
+    private static final LongAdder descartadas = new LongAdder();
+    private static final Thread hiloEscritor;
+    // El escritor lo pone antes de dormirse sin plazo; quien publique entonces lo despierta
+    private static volatile boolean escritorDormido;
+
+    static {
+        int capacidad = Integer.highestOneBit(Math.max(2, Integer.getInteger("chat.log.capacidad", 8192) - 1)) << 1;
+        casillas = new Casilla[capacidad];
+        for (int i = 0; i < capacidad; i++) {
+            casillas[i] = new Casilla();
         }
+        mascara = capacidad - 1;
+
+        Escritor escritor = new Escritor(System.getProperty("chat.log.archivo", "-"));
+        hiloEscritor = new Thread(escritor, "log-escritor");
+        hiloEscritor.setDaemon(true);
+        hiloEscritor.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(escritor::vaciarYCerrar));
+    }
+
+    /* Un nivel mal escrito no puede romper la inicializacion de la clase: se avisa y se usa INFO */
+    private static int nivel(String nombre) {
+        try {
+            return Nivel.valueOf(nombre.toUpperCase()).ordinal();
+        } catch (IllegalArgumentException e) {
+            System.err.println("chat.log.nivel desconocido: " + nombre + "; se usa INFO");
+            return Nivel.INFO.ordinal();
+        }
+    }
+
+    /* Se mantiene por compatibilidad: un evento INFO con el texto tal cual */
+    public static void log(String str) {
+        info(str);
+    }
+
+    public static boolean activo(Nivel nivel) {
+        return nivel.ordinal() >= NIVEL;
+    }
+
+    public static long getDescartadas() {
+        return descartadas.sum();
+    }
+
+    // ======================
+    // ===== DEPURACION =====
+    // ======================
+
+    public static void depuracion(String evento) {
+        if (NIVEL <= 0) {
+            anotar(Nivel.DEPURACION, evento, null, null, null, null, null, null, null, null);
+        }
+    }
+
+    public static void depuracion(String evento, String k1, Object v1) {
+        if (NIVEL <= 0) {
+            anotar(Nivel.DEPURACION, evento, k1, v1, null, null, null, null, null, null);
+        }
+    }
+
+    public static void depuracion(String evento, String k1, Object v1, String k2, Object v2) {
+        if (NIVEL <= 0) {
+            anotar(Nivel.DEPURACION, evento, k1, v1, k2, v2, null, null, null, null);
+        }
+    }
+
+    public static void depuracion(String evento, String k1, Object v1, String k2, Object v2,
+            String k3, Object v3) {
+        if (NIVEL <= 0) {
+            anotar(Nivel.DEPURACION, evento, k1, v1, k2, v2, k3, v3, null, null);
+        }
+    }
+
+    // ================
+    // ===== INFO =====
+    // ================
+
+    public static void info(String evento) {
+        if (NIVEL <= 1) {
+            anotar(Nivel.INFO, evento, null, null, null, null, null, null, null, null);
+        }
+    }
+
+    public static void info(String evento, String k1, Object v1) {
+        if (NIVEL <= 1) {
+            anotar(Nivel.INFO, evento, k1, v1, null, null, null, null, null, null);
+        }
+    }
+
+    public static void info(String evento, String k1, Object v1, String k2, Object v2) {
+        if (NIVEL <= 1) {
+            anotar(Nivel.INFO, evento, k1, v1, k2, v2, null, null, null, null);
+        }
+    }
+
+    public static void info(String evento, String k1, Object v1, String k2, Object v2,
+            String k3, Object v3) {
+        if (NIVEL <= 1) {
+            anotar(Nivel.INFO, evento, k1, v1, k2, v2, k3, v3, null, null);
+        }
+    }
+
+    // =================
+    // ===== AVISO =====
+    // =================
+
+    public static void aviso(String evento) {
+        if (NIVEL <= 2) {
+            anotar(Nivel.AVISO, evento, null, null, null, null, null, null, null, null);
+        }
+    }
+
+    public static void aviso(String evento, String k1, Object v1) {
+        if (NIVEL <= 2) {
+            anotar(Nivel.AVISO, evento, k1, v1, null, null, null, null, null, null);
+        }
+    }
+
+    public static void aviso(String evento, String k1, Object v1, String k2, Object v2) {
+        if (NIVEL <= 2) {
+            anotar(Nivel.AVISO, evento, k1, v1, k2, v2, null, null, null, null);
+        }
+    }
+
+    public static void aviso(String evento, String k1, Object v1, String k2, Object v2,
+            String k3, Object v3) {
+        if (NIVEL <= 2) {
+            anotar(Nivel.AVISO, evento, k1, v1, k2, v2, k3, v3, null, null);
+        }
+    }
+
+    // =================
+    // ===== ERROR =====
+    // =================
+
+    public static void error(String evento, Throwable e) {
+        anotar(Nivel.ERROR, evento, "error", e, null, null, null, null, null, null);
+    }
+
+    public static void error(String evento, String k1, Object v1, Throwable e) {
+        anotar(Nivel.ERROR, evento, k1, v1, "error", e, null, null, null, null);
+    }
+
+    public static void error(String evento, String k1, Object v1, String k2, Object v2, Throwable e) {
+        anotar(Nivel.ERROR, evento, k1, v1, k2, v2, "error", e, null, null);
+    }
+
+    public static void error(String evento, String k1, Object v1, String k2, Object v2,
+            String k3, Object v3, Throwable e) {
+        anotar(Nivel.ERROR, evento, k1, v1, k2, v2, k3, v3, "error", e);
+    }
+
+    // ===================
+    // ===== INTERNO =====
+    // ===================
+
+    private static class Casilla {
+        // Secuencia publicada en esta casilla; el escritor la espera antes de leer
+        volatile long secuencia = -1;
+        long tiempo;
+        Nivel nivel;
+        String hilo;
+        String evento;
+        final String[] claves = new String[PARES];
+        final Object[] valores = new Object[PARES];
+    }
+
+    private static void anotar(Nivel nivel, String evento, String k1, Object v1, String k2, Object v2,
+            String k3, Object v3, String k4, Object v4) {
+        long seq;
+        do {
+            seq = reservadas.get();
+            if (seq - escritas.get() >= casillas.length) {
+                descartadas.increment();
+                return;
+            }
+        } while (!reservadas.compareAndSet(seq, seq + 1));
+
+        Casilla c = casillas[(int) seq & mascara];
+        c.tiempo = System.currentTimeMillis();
+        c.nivel = nivel;
+        c.hilo = Thread.currentThread().getName();
+        c.evento = evento;
+        c.claves[0] = k1;
+        c.valores[0] = v1;
+        c.claves[1] = k2;
+        c.valores[1] = v2;
+        c.claves[2] = k3;
+        c.valores[2] = v3;
+        c.claves[3] = k4;
+        c.valores[3] = v4;
+        c.secuencia = seq;
+        if (escritorDormido) {
+            LockSupport.unpark(hiloEscritor);
+        }
+    }
+
+    /* Si la siguiente casilla a escribir ya esta publicada */
+    private static boolean hayPublicado() {
+        long seq = escritas.get();
+        return casillas[(int) seq & mascara].secuencia == seq;
+    }
+
+    private static class Escritor implements Runnable {
+        private final String ruta;
+        private final StringBuilder linea = new StringBuilder(256);
+        private Writer salida;
+        private long bytes;
+        private long segundoCacheado = -1;
+        private String prefijoSegundo;
+        private long descartadasAvisadas;
+
+        Escritor(String ruta) {
+            this.ruta = ruta;
+        }
+
+        @Override
+        public void run() {
+            abrir();
+            int vacias = 0;
+            while (true) {
+                if (vaciar()) {
+                    vacias = 0;
+                } else if (++vacias < 100) {
+                    Thread.onSpinWait();
+                } else {
+                    // Se mira otra vez despues de avisar: lo que se publique antes lo ve aqui,
+                    // y lo que se publique despues ve el aviso y despierta al hilo
+                    escritorDormido = true;
+                    if (!hayPublicado()) {
+                        LockSupport.park(this);
+                    }
+                    escritorDormido = false;
+                    vacias = 0;
+                }
+            }
+        }
+
+        /* Escribe todo lo publicado; devuelve false si no habia nada */
+        synchronized boolean vaciar() {
+            long seq = escritas.get();
+            Casilla c = casillas[(int) seq & mascara];
+            if (c.secuencia != seq) {
+                return false;
+            }
+            try {
+                do {
+                    try {
+                        formatear(c);
+                    } catch (RuntimeException e) {
+                        // Un toString que falla no debe parar el escritor
+                        linea.append(" <error formateando: ").append(e).append(">\n");
+                    }
+                    for (int i = 0; i < PARES; i++) {
+                        c.claves[i] = null;
+                        c.valores[i] = null;
+                    }
+                    c.evento = null;
+                    // Libera la casilla para los productores
+                    escritas.lazySet(++seq);
+                    escribir();
+                    c = casillas[(int) seq & mascara];
+                } while (c.secuencia == seq);
+
+                long perdidas = descartadas.sum();
+                if (perdidas != descartadasAvisadas) {
+                    linea.append(fecha(System.currentTimeMillis())).append(" AVISO log.descartados total=")
+                            .append(perdidas).append('\n');
+                    descartadasAvisadas = perdidas;
+                    escribir();
+                }
+                salida.flush();
+            } catch (IOException e) {
+                System.err.println("Error escribiendo el registro: " + e);
+            }
+            return true;
+        }
+
+        synchronized void vaciarYCerrar() {
+            vaciar();
+            try {
+                salida.flush();
+            } catch (IOException e) {
+                System.err.println("Error cerrando el registro: " + e);
+            }
+        }
+
+        private void formatear(Casilla c) {
+            linea.append(fecha(c.tiempo)).append(' ').append(c.nivel.name());
+            for (int i = c.nivel.name().length(); i < 5; i++) {
+                linea.append(' ');
+            }
+            linea.append(' ').append(c.evento);
+            for (int i = 0; i < PARES; i++) {
+                if (c.claves[i] != null) {
+                    linea.append(' ').append(c.claves[i]).append('=');
+                    valor(c.valores[i]);
+                }
+            }
+            linea.append(" [").append(c.hilo).append("]\n");
+        }
+
+        /* Entre comillas si hace falta; un salto de linea u otro control no puede partir la linea */
+        private void valor(Object v) {
+            String s = String.valueOf(v);
+            boolean simple = !s.isEmpty();
+            for (int i = 0; i < s.length() && simple; i++) {
+                char ch = s.charAt(i);
+                simple = ch > ' ' && ch != '"' && !Character.isISOControl(ch);
+            }
+            if (simple) {
+                linea.append(s);
+                return;
+            }
+            linea.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char ch = s.charAt(i);
+                if (ch == '"' || ch == '\\') {
+                    linea.append('\\');
+                }
+                linea.append(Character.isISOControl(ch) ? ' ' : ch);
+            }
+            linea.append('"');
+        }
+
+        /* "aaaa-mm-dd hh:mm:ss.mmm"; la parte hasta los segundos se reutiliza */
+        private String fecha(long ms) {
+            long segundo = ms / 1000;
+            if (segundo != segundoCacheado) {
+                LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochSecond(segundo), ZoneId.systemDefault());
+                prefijoSegundo = String.format("%04d-%02d-%02d %02d:%02d:%02d.", t.getYear(), t.getMonthValue(),
+                        t.getDayOfMonth(), t.getHour(), t.getMinute(), t.getSecond());
+                segundoCacheado = segundo;
+            }
+            int milis = (int) (ms % 1000);
+            return prefijoSegundo + (milis < 10 ? "00" : milis < 100 ? "0" : "") + milis;
+        }
+
+        private void escribir() throws IOException {
+            salida.append(linea);
+            bytes += linea.length();
+            linea.setLength(0);
+            if (!ruta.equals("-") && bytes >= ROTAR_BYTES) {
+                rotar();
+            }
+        }
+
+        private void abrir() {
+            if (ruta.equals("-")) {
+                // Se resuelve en cada escritura por si alguien cambia System.out
+                salida = new OutputStreamWriter(new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                        System.out.write(b);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                        System.out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void flush() {
+                        System.out.flush();
+                    }
+                }, StandardCharsets.UTF_8);
+                return;
+            }
+            File archivo = new File(ruta);
+            File dir = archivo.getAbsoluteFile().getParentFile();
+            dir.mkdirs();
+            try {
+                salida = new OutputStreamWriter(new FileOutputStream(archivo, true), StandardCharsets.UTF_8);
+                bytes = archivo.length();
+            } catch (IOException e) {
+                System.err.println("No se pudo abrir " + ruta + ", el registro va a la salida estandar: " + e);
+                salida = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+            }
+        }
+
+        /* ruta -> ruta.1 -> ruta.2 ... y se borra el mas viejo */
+        private void rotar() throws IOException {
+            salida.close();
+            new File(ruta + "." + ARCHIVOS).delete();
+            for (int i = ARCHIVOS - 1; i >= 1; i--) {
+                new File(ruta + "." + i).renameTo(new File(ruta + "." + (i + 1)));
+            }
+            new File(ruta).renameTo(new File(ruta + ".1"));
+            bytes = 0;
+            abrir();
+        }
+    }
 }
@@ -1,9 +1,17 @@
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
 public class ManejadorUsuarios {
 
     private final static String SEP = ": ";
+    private final static String TMP = ".tmp";
+
+    /* Se escribe en un temporal y se renombra, asi una caida nunca deja el archivo a medias */
+    private static void reemplazar(File tmp, File destino) throws IOException {
+        Files.move(tmp.toPath(), destino.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
 
     public static HashMap<String, String> loadUsersFromFile(String archivo) {
         HashMap<String, String> users = new HashMap<>();
@@ -24,7 +32,7 @@ public class ManejadorUsuarios {
                 reader.close();
 
             } catch (Exception e) {
-                System.out.println("Error en la funcion loadUsersFromFile: " + e);
+                Log.error("usuarios.cargar", "archivo", archivo, e);
             }
         }
 
@@ -37,15 +45,17 @@ public class ManejadorUsuarios {
                 File file = new File(archivo);
                 File path = new File(file.getParent());
                 path.mkdirs();
-                BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+                File tmp = new File(archivo + TMP);
+                BufferedWriter writer = new BufferedWriter(new FileWriter(tmp));
                 for (Map.Entry<String, String> entry : users.entrySet()) {
                     String line = entry.getKey() + SEP + entry.getValue();
                     writer.write(line);
                     writer.newLine();
                 }
                 writer.close();
+                reemplazar(tmp, file);
             } catch (Exception e) {
-                System.out.println("Error en la funcion saveUsersToFile: " + e);
+                Log.error("usuarios.guardar", "archivo", archivo, e);
             }
         }
     }
@@ -83,7 +93,7 @@ public class ManejadorUsuarios {
                 reader.close();
 
             } catch (Exception e) {
-                System.out.println("Error en la funcion loadFriendsFromFile: " + e);
+                Log.error("amigos.cargar", "archivo", archivo, e);
             }
         }
 
@@ -100,7 +110,8 @@ public static void saveFriendsToFile(Map<String, List<String>> friends, String a
             File path = new File(file.getParent());
             path.mkdirs();
 
-            BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+            File tmp = new File(archivo + TMP);
+            BufferedWriter writer = new BufferedWriter(new FileWriter(tmp));
             for (Map.Entry<String, List<String>> entry : friends.entrySet()) {
                 String username = entry.getKey();
                 List<String> amigosList = entry.getValue();
@@ -112,8 +123,9 @@ public static void saveFriendsToFile(Map<String, List<String>> friends, String a
                 writer.newLine();
             }
             writer.close();
+            reemplazar(tmp, file);
         } catch (Exception e) {
-            System.out.println("Error en la funcion saveFriendsToFile: " + e);
+            Log.error("amigos.guardar", "archivo", archivo, e);
         }
     }
 }}
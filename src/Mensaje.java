@@ -0,0 +1,64 @@
+import java.io.Serializable;
+import java.time.Instant;
+
+/**
+ * Un mensaje de chat tal como viaja de un cliente a la Cola del otro.
+ *
+ * La secuencia empieza en 1 en cada conversacion (un numero aleatorio que
+ * elige el Chat que envia) y la Cola la usa para reordenar, descartar
+ * duplicados y confirmar de forma acumulada lo recibido.
+ */
+public class Mensaje implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String emisor;
+    private final long conversacion;
+    private final long secuencia;
+    // Reloj de pared en ns, para medir la latencia en el receptor
+    private final long enviadoNs;
+    private final String texto;
+
+    public Mensaje(String emisor, long conversacion, long secuencia, long enviadoNs, String texto) {
+        this.emisor = emisor;
+        this.conversacion = conversacion;
+        this.secuencia = secuencia;
+        this.enviadoNs = enviadoNs;
+        this.texto = texto;
+    }
+
+    /* El mismo mensaje con otro numero, al empezar una conversacion nueva */
+    public Mensaje renumerar(long conversacion, long secuencia) {
+        return new Mensaje(emisor, conversacion, secuencia, enviadoNs, texto);
+    }
+
+    public String getEmisor() {
+        return emisor;
+    }
+
+    public long getConversacion() {
+        return conversacion;
+    }
+
+    public long getSecuencia() {
+        return secuencia;
+    }
+
+    public long getEnviadoNs() {
+        return enviadoNs;
+    }
+
+    public String getTexto() {
+        return texto;
+    }
+
+    /* Reloj de pared en ns; emisor y receptor pueden estar en procesos distintos */
+    public static long ahora() {
+        Instant i = Instant.now();
+        return i.getEpochSecond() * 1_000_000_000L + i.getNano();
+    }
+
+    @Override
+    public String toString() {
+        return emisor + "#" + secuencia + ": " + texto;
+    }
+}
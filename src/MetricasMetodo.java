@@ -0,0 +1,63 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Llamadas, errores y latencias de un metodo remoto.
+ */
+public class MetricasMetodo implements MetricasMetodoMBean {
+
+    private final HistogramaLatencias latencias = new HistogramaLatencias();
+    private final LongAdder errores = new LongAdder();
+
+    public void registrar(long nanos, boolean error) {
+        latencias.registrar(nanos);
+        if (error) {
+            errores.increment();
+        }
+    }
+
+    @Override
+    public long getLlamadas() {
+        return latencias.getTotal();
+    }
+
+    @Override
+    public long getErrores() {
+        return errores.sum();
+    }
+
+    @Override
+    public double getMediaUs() {
+        return latencias.getMedia() / 1000.0;
+    }
+
+    @Override
+    public double getP50Us() {
+        return latencias.getPercentil(50) / 1000.0;
+    }
+
+    @Override
+    public double getP90Us() {
+        return latencias.getPercentil(90) / 1000.0;
+    }
+
+    @Override
+    public double getP99Us() {
+        return latencias.getPercentil(99) / 1000.0;
+    }
+
+    @Override
+    public double getP999Us() {
+        return latencias.getPercentil(99.9) / 1000.0;
+    }
+
+    @Override
+    public double getMaxUs() {
+        return latencias.getMaximo() / 1000.0;
+    }
+
+    @Override
+    public void reiniciar() {
+        latencias.reiniciar();
+        errores.reset();
+    }
+}
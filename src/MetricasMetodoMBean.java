@@ -0,0 +1,22 @@
+/**
+ * Atributos JMX de un metodo instrumentado. Las latencias van en microsegundos.
+ */
+public interface MetricasMetodoMBean {
+    long getLlamadas();
+
+    long getErrores();
+
+    double getMediaUs();
+
+    double getP50Us();
+
+    double getP90Us();
+
+    double getP99Us();
+
+    double getP999Us();
+
+    double getMaxUs();
+
+    void reiniciar();
+}
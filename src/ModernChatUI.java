@@ -14,7 +14,8 @@ import javax.swing.border.EmptyBorder;
  * - Lista de chats con badge "• nuevo"
  * - Área de conversación
  * - Gestión de Solicitudes de amistad (pendientes y envío)
- * - Auto-refresco cada 1s (chats, amigos online, solicitudes, mensajes)
+ * - Auto-refresco cada 1s (chats, amigos online, solicitudes)
+ * - Mensajes entrantes por evento (setMessageListener), sin esperar al refresco
  *
  * Requisitos mínimos de Cliente (ver interfaz al final).
  */
@@ -62,6 +63,10 @@ public class ModernChatUI {
     private ScheduledFuture<?> refreshTask;
     private final Set<String> unread = new HashSet<>();
 
+    // --- Mensajes por evento ---
+    // Mensajes recibidos de chats que no están abiertos, hasta que se abren (hilo de Swing)
+    private final Map<String, List<String>> recibidos = new HashMap<>();
+
     public ModernChatUI(Cliente client) {
         this.client = client;
         buildUI();
@@ -356,7 +361,7 @@ public class ModernChatUI {
         }
 
         try {
-            // ⬇️ El puerto es el RMI del cliente
+            // ⬇️ El puerto es el del Buzon del cliente (0: cualquiera libre)
             boolean ok = client.login(u, p, port); // TODO: ajusta firma si difiere
             if (ok) {
                 this.currentUser = u;
@@ -449,6 +454,13 @@ public class ModernChatUI {
         unread.remove(contact);
         contactsList.repaint();
 
+        // Lo recibido por evento mientras el chat estaba cerrado
+        List<String> guardados = recibidos.remove(contact);
+        if (guardados != null) {
+            for (String m : guardados)
+                appendInboundMessage(m);
+        }
+
         // Cargar histórico si lo tienes; si no, drena lo pendiente
         try {
             List<String> nuevos = client.getNewMessages(contact);
@@ -467,6 +479,22 @@ public class ModernChatUI {
         chatArea.setCaretPosition(chatArea.getDocument().getLength());
     }
 
+    /* Mensajes entregados por el cliente (en su hilo): se pasan al de Swing */
+    private void onMessagesPushed(String contact, List<String> messages) {
+        SwingUtilities.invokeLater(() -> {
+            if (contact.equals(currentChatContact)) {
+                for (String m : messages)
+                    appendInboundMessage(m);
+                return;
+            }
+            recibidos.computeIfAbsent(contact, k -> new ArrayList<>()).addAll(messages);
+            if (!contactsModel.contains(contact))
+                contactsModel.addElement(contact);
+            unread.add(contact);
+            contactsList.repaint();
+        });
+    }
+
     private void appendInboundMessage(String text) {
         chatArea.append((currentChatContact != null ? currentChatContact : "Amigo") + ": " + text + "\n");
         chatArea.setCaretPosition(chatArea.getDocument().getLength());
@@ -606,6 +634,7 @@ public class ModernChatUI {
                 return t;
             });
         }
+        client.setMessageListener(this::onMessagesPushed);
         if (refreshTask == null || refreshTask.isCancelled()) {
             refreshTask = scheduler.scheduleAtFixedRate(() -> {
                 try {
@@ -635,7 +664,7 @@ public class ModernChatUI {
                             if (c.equals(currentUser))
                                 continue;
                             contactsModel.addElement(c);
-                            if (flags.getOrDefault(c, 0) > 0)
+                            if (flags.getOrDefault(c, 0) > 0 || recibidos.containsKey(c))
                                 unread.add(c);
                         }
 
@@ -644,19 +673,6 @@ public class ModernChatUI {
                         }
                     });
 
-                    // drenar mensajes del chat abierto
-                    if (currentChatContact != null) {
-                        List<String> nuevos = client.getNewMessages(currentChatContact); // TODO
-                        if (nuevos != null && !nuevos.isEmpty()) {
-                            SwingUtilities.invokeLater(() -> {
-                                for (String msg : nuevos)
-                                    appendInboundMessage(msg);
-                                unread.remove(currentChatContact);
-                                contactsList.repaint();
-                            });
-                        }
-                    }
-
                     // también refrescar solicitudes y amigos online
                     SwingUtilities.invokeLater(() -> {
                         refreshPendingRequests();
@@ -670,6 +686,11 @@ public class ModernChatUI {
     }
 
     private void stopAutoRefresh() {
+        try {
+            client.setMessageListener(null);
+        } catch (Exception ignored) {
+        }
+        SwingUtilities.invokeLater(recibidos::clear);
         try {
             if (refreshTask != null) {
                 refreshTask.cancel(true);
@@ -703,8 +724,8 @@ public class ModernChatUI {
 
     // ---------- Main de prueba local (opcional, elimina en producción) ----------
     public static void main(String[] args) {
-        // TODO: reemplaza DummyCliente por tu implementación real
-        Cliente cliente = new DummyCliente();
+        // El cliente real; con --demo, el simulado sin servidor
+        Cliente cliente = args.length > 0 && args[0].equals("--demo") ? new DummyCliente() : ClienteUI.real();
         SwingUtilities.invokeLater(() -> new ModernChatUI(cliente));
     }
 
@@ -715,6 +736,16 @@ public class ModernChatUI {
         private final Set<String> chats = new LinkedHashSet<>();
         private final List<String> pending = new ArrayList<>();
         private String user;
+        private volatile ChatClientInterface.MessageListener listener;
+
+        // Lo entrega al oyente si hay uno; si no, queda para getNewMessages
+        private void llega(String contact, String text) {
+            ChatClientInterface.MessageListener l = listener;
+            if (l != null)
+                l.onMessages(contact, List.of(text));
+            else
+                inbox.computeIfAbsent(contact, k -> new ArrayList<>()).add(text);
+        }
 
         @Override
         public boolean login(String user, String pass, int clientRmiPort) {
@@ -726,7 +757,7 @@ public class ModernChatUI {
                 public void run() {
                     online.add("Guille");
                     chats.add("Guille");
-                    inbox.computeIfAbsent("Guille", k -> new ArrayList<>()).add("¡Hola, soy Guille!");
+                    llega("Guille", "¡Hola, soy Guille!");
                 }
             }, 4000);
             new Timer().schedule(new TimerTask() {
@@ -734,7 +765,7 @@ public class ModernChatUI {
                 public void run() {
                     online.add("Hugo");
                     chats.add("Hugo");
-                    inbox.computeIfAbsent("Hugo", k -> new ArrayList<>()).add("¡Hola, soy Hugo!");
+                    llega("Hugo", "¡Hola, soy Hugo!");
                 }
             }, 2000);
             // simula solicitud pendiente
@@ -806,10 +837,15 @@ public class ModernChatUI {
             new Timer().schedule(new TimerTask() {
                 @Override
                 public void run() {
-                    inbox.computeIfAbsent(contact, k -> new ArrayList<>()).add(contact + " eco: " + text);
+                    llega(contact, contact + " eco: " + text);
                 }
             }, 1000);
         }
+
+        @Override
+        public void setMessageListener(ChatClientInterface.MessageListener listener) {
+            this.listener = listener;
+        }
     }
 
     // ---------- Interfaz mínima esperada por esta UI ----------
@@ -841,5 +877,8 @@ public class ModernChatUI {
         List<String> getNewMessages(String contact); // drenar mensajes del contacto actual
 
         void sendMessage(String contact, String text); // P2P (RMI entre clientes)
+
+        // Mensajes entrantes por evento, desde un hilo del cliente (null para quitarlo)
+        void setMessageListener(ChatClientInterface.MessageListener listener);
     }
 }
\ No newline at end of file
@@ -0,0 +1,318 @@
+import java.io.*;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.rmi.Remote;
+import java.rmi.server.RemoteObject;
+import java.rmi.server.RemoteObjectInvocationHandler;
+import java.rmi.server.RemoteServer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Protocolo binario para servir IServidor sin RMI (ServidorBinario y ClienteBinario).
+ *
+ * Cada trama es: int longitud (de lo que sigue), byte tipo, int id, datos.
+ *   PETICION   cliente -> servidor; datos = byte operacion + argumentos
+ *   RESPUESTA  servidor -> cliente; datos = resultado de la operacion
+ *   ERROR      servidor -> cliente; datos = texto del error
+ *   EVENTOS    servidor -> cliente, id 0; datos = lista de Evento (callback)
+ *
+ * El id lo elige el cliente y la respuesta lo repite, asi que en una conexion
+ * puede haber muchas peticiones en curso y las respuestas llegar en otro orden.
+ * Los textos van como int longitud en bytes UTF-8 (-1 es null) y las listas
+ * como int numero de elementos (-1 es null). Los stubs de IBuzon van con la
+ * serializacion de Java (int longitud, -1 es null): son los mismos que por RMI.
+ * Al leerlos solo se admiten las clases de un stub (FILTRO_BUZON), porque los
+ * manda cualquiera que llegue al puerto, antes de identificarse.
+ */
+public class ProtocoloBinario {
+
+    public static final byte PETICION = 1;
+    public static final byte RESPUESTA = 2;
+    public static final byte ERROR = 3;
+    public static final byte EVENTOS = 4;
+
+    // Cabecera tras la longitud: tipo e id
+    public static final int CABECERA = 5;
+    public static final int MAX_TRAMA = 16 << 20;
+
+    /* Un valor por metodo de IServidor; el codigo es el ordinal */
+    public enum Operacion {
+        LOGIN,
+        INICIAR_SESION,
+        LOGOUT,
+        RENOVAR_SESION,
+        REGISTRAR_USUARIO,
+        SOLICITAR_AMISTAD,
+        GET_SOLICITUDES_PENDIENTES,
+        ACEPTAR_SOLICITUD,
+        RECHAZAR_SOLICITUD,
+        GET_AMIGOS,
+        GET_AMIGOS_CONECTADOS,
+        GET_NUM_AMIGOS_CONECTADOS,
+        GET_DIRECCION,
+        GET_BUZON,
+        EXISTE_USUARIO,
+        BUSCAR_USUARIOS,
+        GET_CAMBIOS_DESDE,
+        REGISTRAR_CALLBACK,
+        ELIMINAR_CALLBACK;
+
+        private static final Operacion[] TODAS = values();
+
+        public static Operacion de(int codigo) throws IOException {
+            if (codigo < 0 || codigo >= TODAS.length) {
+                throw new IOException("Operacion desconocida: " + codigo);
+            }
+            return TODAS[codigo];
+        }
+    }
+
+    /*
+     * Un stub es un Proxy de IBuzon con un RemoteObjectInvocationHandler; su
+     * UnicastRef/LiveRef se escribe a mano y no pasa por el filtro, la fabrica
+     * de sockets (SocketsRmi) si. Todo lo demas se rechaza.
+     */
+    private static final Set<Class<?>> CLASES_BUZON = Set.of(Remote.class, IBuzon.class, Proxy.class,
+            RemoteObjectInvocationHandler.class, RemoteObject.class, SocketsRmi.class);
+
+    static final ObjectInputFilter FILTRO_BUZON = info -> {
+        if (info.depth() > 5 || info.references() > 20) {
+            return ObjectInputFilter.Status.REJECTED;
+        }
+        Class<?> c = info.serialClass();
+        if (c == null) {
+            return ObjectInputFilter.Status.UNDECIDED;
+        }
+        return CLASES_BUZON.contains(c) || Proxy.isProxyClass(c)
+                ? ObjectInputFilter.Status.ALLOWED : ObjectInputFilter.Status.REJECTED;
+    };
+
+    public interface Escritura {
+        void escribir(DataOutputStream out) throws IOException;
+    }
+
+    // ==================
+    // ===== TRAMAS =====
+    // ==================
+
+    /* Trama completa, con la longitud ya puesta y lista para escribir en el canal */
+    public static ByteBuffer trama(byte tipo, int id, Escritura datos) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeByte(tipo);
+        out.writeInt(id);
+        datos.escribir(out);
+        out.flush();
+        ByteBuffer trama = ByteBuffer.wrap(bytes.toByteArray());
+        trama.putInt(0, trama.limit() - 4);
+        return trama;
+    }
+
+    // ===================
+    // ===== VALORES =====
+    // ===================
+
+    /*
+     * Las tramas se leen enteras antes de decodificarlas, asi que available() es lo
+     * que queda: una longitud que no cabe es un cliente roto o malicioso, y no se
+     * reserva memoria para ella
+     */
+    private static void comprobarLongitud(DataInputStream in, int n, int bytesMinimos) throws IOException {
+        if (n < 0 || n > in.available() / bytesMinimos) {
+            throw new IOException("Longitud invalida para la trama: " + n);
+        }
+    }
+
+    private static int leerTipo(DataInputStream in, int tipos) throws IOException {
+        int tipo = in.readByte();
+        if (tipo < 0 || tipo >= tipos) {
+            throw new IOException("Tipo desconocido: " + tipo);
+        }
+        return tipo;
+    }
+
+    public static void escribirTexto(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    public static String leerTexto(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) {
+            return null;
+        }
+        comprobarLongitud(in, n, 1);
+        byte[] b = new byte[n];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    public static void escribirTextos(DataOutputStream out, List<String> lista) throws IOException {
+        if (lista == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(lista.size());
+        for (String s : lista) {
+            escribirTexto(out, s);
+        }
+    }
+
+    public static List<String> leerTextos(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) {
+            return null;
+        }
+        comprobarLongitud(in, n, 4);
+        List<String> lista = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            lista.add(leerTexto(in));
+        }
+        return lista;
+    }
+
+    /* Siempre el stub: si se pasa el objeto exportado se serializaria el objeto en si */
+    public static void escribirBuzon(DataOutputStream out, IBuzon buzon) throws IOException {
+        if (buzon == null) {
+            out.writeInt(-1);
+            return;
+        }
+        Object stub = buzon instanceof RemoteServer ? RemoteObject.toStub((RemoteServer) buzon) : buzon;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(stub);
+        }
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    public static IBuzon leerBuzon(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) {
+            return null;
+        }
+        comprobarLongitud(in, n, 1);
+        byte[] b = new byte[n];
+        in.readFully(b);
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(b))) {
+            ois.setObjectInputFilter(FILTRO_BUZON);
+            return (IBuzon) ois.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Buzon mal formado", e);
+        }
+    }
+
+    public static void escribirSesion(DataOutputStream out, SesionUsuario sesion) throws IOException {
+        out.writeBoolean(sesion != null);
+        if (sesion == null) {
+            return;
+        }
+        out.writeLong(sesion.getVersion());
+        escribirTextos(out, sesion.getAmigos());
+        Map<String, String> conectados = sesion.getAmigosConectados();
+        out.writeInt(conectados == null ? -1 : conectados.size());
+        if (conectados != null) {
+            for (Map.Entry<String, String> e : conectados.entrySet()) {
+                escribirTexto(out, e.getKey());
+                escribirTexto(out, e.getValue());
+                escribirBuzon(out, sesion.getBuzones() == null ? null : sesion.getBuzones().get(e.getKey()));
+            }
+        }
+        escribirTextos(out, sesion.getSolicitudesPendientes());
+        out.writeLong(sesion.getLeaseMs());
+    }
+
+    public static SesionUsuario leerSesion(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        long version = in.readLong();
+        List<String> amigos = leerTextos(in);
+        int n = in.readInt();
+        Map<String, String> conectados = null;
+        Map<String, IBuzon> buzones = new HashMap<>();
+        if (n >= 0) {
+            comprobarLongitud(in, n, 12);
+            conectados = new HashMap<>(n * 2);
+            for (int i = 0; i < n; i++) {
+                String amigo = leerTexto(in);
+                conectados.put(amigo, leerTexto(in));
+                IBuzon buzon = leerBuzon(in);
+                if (buzon != null) {
+                    buzones.put(amigo, buzon);
+                }
+            }
+        }
+        List<String> solicitudes = leerTextos(in);
+        return new SesionUsuario(version, amigos, conectados, buzones, solicitudes, in.readLong());
+    }
+
+    public static void escribirCambios(DataOutputStream out, CambiosUsuario cambios) throws IOException {
+        out.writeBoolean(cambios != null);
+        if (cambios == null) {
+            return;
+        }
+        out.writeLong(cambios.getVersion());
+        List<Cambio> lista = cambios.getCambios();
+        out.writeInt(lista == null ? -1 : lista.size());
+        if (lista != null) {
+            for (Cambio c : lista) {
+                out.writeLong(c.getVersion());
+                out.writeByte(c.getTipo().ordinal());
+                escribirTexto(out, c.getUsuario());
+                escribirTexto(out, c.getDireccion());
+                escribirBuzon(out, c.getBuzon());
+            }
+        }
+        escribirSesion(out, cambios.getCompleto());
+    }
+
+    public static CambiosUsuario leerCambios(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        long version = in.readLong();
+        int n = in.readInt();
+        List<Cambio> lista = null;
+        if (n >= 0) {
+            comprobarLongitud(in, n, 21);
+            Cambio.Tipo[] tipos = Cambio.Tipo.values();
+            lista = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                long v = in.readLong();
+                Cambio.Tipo tipo = tipos[leerTipo(in, tipos.length)];
+                lista.add(new Cambio(v, tipo, leerTexto(in), leerTexto(in), leerBuzon(in)));
+            }
+        }
+        return new CambiosUsuario(version, lista, leerSesion(in));
+    }
+
+    public static void escribirEventos(DataOutputStream out, List<Evento> eventos) throws IOException {
+        out.writeInt(eventos.size());
+        for (Evento e : eventos) {
+            out.writeByte(e.getTipo().ordinal());
+            escribirTexto(out, e.getUsuario());
+            escribirTexto(out, e.getDireccion());
+            escribirBuzon(out, e.getBuzon());
+        }
+    }
+
+    public static List<Evento> leerEventos(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        comprobarLongitud(in, n, 13);
+        Evento.Tipo[] tipos = Evento.Tipo.values();
+        List<Evento> eventos = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            Evento.Tipo tipo = tipos[leerTipo(in, tipos.length)];
+            eventos.add(new Evento(tipo, leerTexto(in), leerTexto(in), leerBuzon(in)));
+        }
+        return eventos;
+    }
+}
@@ -0,0 +1,285 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Recibe ficheros de los contactos por un canal TCP propio, fuera de RMI.
+ *
+ * El emisor ofrece el fichero por el Buzon (id, nombre y tamano) y recibe el
+ * puerto de este canal. Una oferta nueva solo se acepta si no pasa de
+ * MAX_BYTES, si cabe en el disco junto con las que siguen a medias (dejando
+ * RESERVA_BYTES libres) y si la Aceptacion la admite; sin Aceptacion no se
+ * acepta ninguna. Al conectar manda su nombre, el id y el tamano de
+ * trozo, y se le contesta desde que posicion seguir: lo que ya hay en
+ * "id.parte" redondeado a trozos completos, asi una transferencia cortada
+ * sigue donde se quedo aunque se haya reiniciado cualquiera de los dos.
+ *
+ * Cada espera tiene plazo (CanalFicheros), y una conexion nueva para el mismo
+ * id corta la anterior, que puede haberse quedado medio abierta.
+ *
+ * Cada trozo llega con su posicion, longitud y CRC32C; se comprueba en un
+ * buffer directo, se escribe en su sitio con FileChannel y se confirma con
+ * la posicion hasta la que todo esta escrito. Un trozo que no cuadra cierra
+ * la conexion y el emisor vuelve a conectar y sigue desde lo confirmado. Al
+ * completar, el fichero se renombra y se avisa al oyente.
+ *
+ * Todo va en big-endian:
+ *   emisor -> [int n][n bytes emisor][int n][n bytes id][int trozo]
+ *   <-        [long desde] (-1: oferta desconocida)
+ *   emisor -> [long posicion][int longitud][int crc][longitud bytes] ...
+ *   <-        [long confirmado] por trozo
+ */
+public class RecepcionFicheros {
+
+    private static final int MAX_TROZO = 16 * 1024 * 1024;
+    static final long MAX_BYTES = Long.getLong("chat.ficheros.maxBytes", 4L << 30);
+    private static final long RESERVA_BYTES = Long.getLong("chat.ficheros.reservaBytes", 256L << 20);
+
+    /* Decide si se recibe un fichero; se llama una vez por oferta nueva, en el hilo RMI */
+    public interface Aceptacion {
+        boolean aceptar(String emisor, String nombre, long tamano);
+    }
+
+    private static final class Oferta {
+        final String emisor;
+        final String nombre;
+        final long tamano;
+
+        Oferta(String emisor, String nombre, long tamano) {
+            this.emisor = emisor;
+            this.nombre = nombre;
+            this.tamano = tamano;
+        }
+    }
+
+    private final Path dir;
+    private final ServerSocketChannel aceptador;
+    private final ExecutorService recepciones;
+    private final Map<String, Oferta> ofertas = new ConcurrentHashMap<>();
+    // Conexion en curso de cada id
+    private final Map<String, CanalFicheros> activas = new ConcurrentHashMap<>();
+    // Ids ya recibidos en esta sesion
+    private final Set<String> completados = ConcurrentHashMap.newKeySet();
+    // Recibe el emisor y la ruta de cada fichero completo
+    private volatile BiConsumer<String, Path> oyente;
+    private volatile Aceptacion aceptacion;
+
+    public RecepcionFicheros(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.aceptador = ServerSocketChannel.open();
+        aceptador.bind(new InetSocketAddress(0));
+        this.recepciones = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "ficheros-recepcion");
+            t.setDaemon(true);
+            return t;
+        });
+        Thread t = new Thread(this::aceptar, "ficheros-aceptador");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public int getPuerto() {
+        return aceptador.socket().getLocalPort();
+    }
+
+    public void setOyente(BiConsumer<String, Path> oyente) {
+        this.oyente = oyente;
+    }
+
+    public void setAceptacion(Aceptacion aceptacion) {
+        this.aceptacion = aceptacion;
+    }
+
+    /* Acepta el fichero y devuelve el puerto al que mandarlo */
+    public int ofrecer(String emisor, String id, String nombre, long tamano) {
+        // Solo el nombre: nada de rutas del emisor
+        Path solo = Paths.get(nombre).getFileName();
+        if (solo == null || tamano < 0 || !id.matches("[0-9a-fA-F-]{1,64}")) {
+            return -1;
+        }
+        Oferta previa = ofertas.get(id);
+        boolean repetida = previa != null && previa.emisor.equals(emisor) && previa.tamano == tamano;
+        if (!repetida && !admitir(emisor, solo.toString(), tamano)) {
+            return -1;
+        }
+        // Una oferta repetida (el emisor vuelve a intentarlo) conserva la de antes, que hace de cerrojo
+        ofertas.compute(id, (k, o) -> o != null && o.emisor.equals(emisor) && o.tamano == tamano
+                ? o : new Oferta(emisor, solo.toString(), tamano));
+        Log.info("ficheros.oferta", "emisor", emisor, "nombre", solo, "bytes", tamano);
+        return getPuerto();
+    }
+
+    private boolean admitir(String emisor, String nombre, long tamano) {
+        if (tamano > MAX_BYTES) {
+            Log.aviso("ficheros.rechazado", "emisor", emisor, "bytes", tamano, "motivo", "tamano");
+            return false;
+        }
+        // Lo que falta de las ofertas a medias tambien va a ocupar disco
+        long comprometido = 0;
+        for (Map.Entry<String, Oferta> e : ofertas.entrySet()) {
+            if (!completados.contains(e.getKey())) {
+                comprometido += e.getValue().tamano;
+            }
+        }
+        try {
+            if (Files.getFileStore(dir).getUsableSpace() < comprometido + tamano + RESERVA_BYTES) {
+                Log.aviso("ficheros.rechazado", "emisor", emisor, "bytes", tamano, "motivo", "espacio");
+                return false;
+            }
+        } catch (IOException e) {
+            Log.error("ficheros.espacio", "dir", dir, e);
+            return false;
+        }
+        Aceptacion a = aceptacion;
+        if (a == null || !a.aceptar(emisor, nombre, tamano)) {
+            Log.aviso("ficheros.rechazado", "emisor", emisor, "bytes", tamano, "motivo", "usuario");
+            return false;
+        }
+        return true;
+    }
+
+    public void cerrar() {
+        try {
+            aceptador.close();
+        } catch (IOException ignore) {
+        }
+        recepciones.shutdownNow();
+    }
+
+    private void aceptar() {
+        while (aceptador.isOpen()) {
+            try {
+                SocketChannel canal = aceptador.accept();
+                recepciones.execute(() -> recibir(canal));
+            } catch (IOException e) {
+                if (aceptador.isOpen()) {
+                    Log.error("ficheros.aceptar", e);
+                }
+            }
+        }
+    }
+
+    // =====================
+    // ===== RECEPCION =====
+    // =====================
+
+    private void recibir(SocketChannel socket) {
+        String id = null;
+        CanalFicheros canal = null;
+        try (socket) {
+            canal = new CanalFicheros(socket);
+            ByteBuffer cab = ByteBuffer.allocateDirect(16);
+            String emisor = canal.leerCadena(cab);
+            id = canal.leerCadena(cab);
+            int trozo = canal.leerEntero(cab);
+            Oferta oferta = ofertas.get(id);
+            if (oferta == null || !oferta.emisor.equals(emisor) || trozo <= 0 || trozo > MAX_TROZO) {
+                canal.escribirLargo(cab, -1);
+                return;
+            }
+            // Una conexion anterior del mismo fichero (el emisor ya la dio por perdida) se
+            // corta, y suelta el cerrojo en cuanto sale de su espera
+            CanalFicheros anterior = activas.put(id, canal);
+            if (anterior != null) {
+                anterior.close();
+            }
+            synchronized (oferta) {
+                recibirFichero(canal, cab, emisor, id, trozo, oferta);
+            }
+        } catch (IOException e) {
+            // Lo confirmado se queda en disco para seguir con la siguiente conexion
+            Log.aviso("ficheros.cortado", "id", id, "error", e.toString());
+        } finally {
+            if (canal != null) {
+                if (id != null) {
+                    activas.remove(id, canal);
+                }
+                canal.close();
+            }
+        }
+    }
+
+    private void recibirFichero(CanalFicheros canal, ByteBuffer cab, String emisor, String id, int trozo,
+            Oferta oferta) throws IOException {
+        if (completados.contains(id)) {
+            // Se perdio la ultima confirmacion: ya esta entero
+            canal.escribirLargo(cab, oferta.tamano);
+            return;
+        }
+        Path parte = dir.resolve(id + ".parte");
+        try (FileChannel fichero = FileChannel.open(parte, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long confirmado = fichero.size() == oferta.tamano ? oferta.tamano
+                    : Math.min(fichero.size(), oferta.tamano) / trozo * trozo;
+            fichero.truncate(confirmado);
+            canal.escribirLargo(cab, confirmado);
+            if (confirmado > 0) {
+                Log.info("ficheros.reanudar", "emisor", emisor, "nombre", oferta.nombre, "desde", confirmado);
+            }
+
+            ByteBuffer datos = ByteBuffer.allocateDirect(trozo);
+            CRC32C crc = new CRC32C();
+            while (confirmado < oferta.tamano) {
+                cab.clear().limit(16);
+                canal.leer(cab);
+                long posicion = cab.getLong(0);
+                int longitud = cab.getInt(8);
+                int suma = cab.getInt(12);
+                if (posicion != confirmado || longitud <= 0 || longitud > trozo
+                        || posicion + longitud > oferta.tamano) {
+                    throw new IOException("Trozo inesperado en " + posicion + " (" + longitud + " bytes)");
+                }
+                datos.clear().limit(longitud);
+                canal.leer(datos);
+                datos.flip();
+                crc.reset();
+                crc.update(datos);
+                if ((int) crc.getValue() != suma) {
+                    throw new IOException("CRC distinto en " + posicion);
+                }
+                datos.flip();
+                while (datos.hasRemaining()) {
+                    fichero.write(datos, posicion + datos.position());
+                }
+                confirmado += longitud;
+                // La ultima confirmacion espera a que este en disco con su nombre
+                if (confirmado < oferta.tamano) {
+                    canal.escribirLargo(cab, confirmado);
+                }
+            }
+            fichero.force(false);
+        }
+        Path destino = completar(parte, oferta.nombre, id);
+        completados.add(id);
+        canal.escribirLargo(cab, oferta.tamano);
+        Log.info("ficheros.recibido", "emisor", emisor, "ruta", destino, "bytes", oferta.tamano);
+        BiConsumer<String, Path> o = oyente;
+        if (o != null) {
+            o.accept(emisor, destino);
+        }
+    }
+
+    /* Mueve id.parte a su nombre; si ya existe uno asi, se le anade el principio del id */
+    private Path completar(Path parte, String nombre, String id) throws IOException {
+        Path destino = dir.resolve(nombre);
+        if (Files.exists(destino)) {
+            destino = dir.resolve(nombre + "." + id.substring(0, Math.min(8, id.length())));
+        }
+        return Files.move(parte, destino, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
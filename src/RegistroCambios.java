@@ -0,0 +1,53 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Registro acotado de los ultimos cambios de un usuario con su version.
+ *
+ * La version solo crece. Se guardan los ultimos CAPACIDAD cambios en un
+ * anillo; si un cliente pide desde una version mas antigua, desde() devuelve
+ * null y hay que mandarle el estado completo.
+ */
+public class RegistroCambios {
+
+    private final Cambio[] anillo;
+    private volatile long version = 0;
+
+    public RegistroCambios(int capacidad) {
+        this.anillo = new Cambio[capacidad];
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public synchronized long agregar(Cambio.Tipo tipo, String usuario, String direccion, IBuzon buzon) {
+        long nueva = version + 1;
+        anillo[(int) (nueva % anillo.length)] = new Cambio(nueva, tipo, usuario, direccion, buzon);
+        version = nueva;
+        return nueva;
+    }
+
+    /* Cambios con version > desde, o null si alguno ya se ha perdido del anillo */
+    public synchronized List<Cambio> desde(long desde) {
+        long actual = version;
+        if (desde > actual || actual - desde > anillo.length) {
+            return null;
+        }
+        List<Cambio> res = new ArrayList<>((int) (actual - desde));
+        for (long v = desde + 1; v <= actual; v++) {
+            Cambio c = anillo[(int) (v % anillo.length)];
+            if (c == null || c.getVersion() != v) {
+                return null;
+            }
+            res.add(c);
+        }
+        return res;
+    }
+
+    /* Libera los cambios guardados sin retroceder la version */
+    public synchronized void vaciar() {
+        Arrays.fill(anillo, null);
+    }
+}
@@ -2,51 +2,272 @@ import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.io.*;
 
-public class Servidor extends UnicastRemoteObject implements IServidor {
-    private Map<String, List<String>> amigos = new HashMap<>();
-    private Map<String, String> passwords = new HashMap<>();
-    private Map<String, String> direcciones = new HashMap<>();
-    private Map<String, List<String>> solicitudesPendientes = new HashMap<>();
-    private Map<String, IClienteCallback> callbacksClientes = new HashMap<>();
-
-    private final static String PASSWORDS_FILE = "./data/user/passwords/pswd";
-    private final static String FRIENDS_FILE = "./data/user/friends/amigos";
-    private final static String PENDING_REQUESTS_FILE = "./data/user/requests/solicitudes";
+public class Servidor extends UnicastRemoteObject implements IServidor, ServidorMBean {
+    // Cada usuario es un id entero (TablaUsuarios); amigos y solicitudes son int[] ordenados
+    // por id. Las lecturas no toman ningun cerrojo; las escrituras se serializan por usuario
+    // con BloqueosUsuario.
+    private final TablaUsuarios usuarios = new TablaUsuarios();
+    private final ListasAdyacencia amigos = new ListasAdyacencia();
+    // solicitudesPendientes.get(id): usuarios que han pedido amistad a id
+    private final ListasAdyacencia solicitudesPendientes = new ListasAdyacencia();
+    private final Map<String, String> direcciones = new ConcurrentHashMap<>();
+    // Stubs de los Buzon de los conectados; el servidor no los llama, solo los reparte
+    private final Map<String, IBuzon> buzones = new ConcurrentHashMap<>();
+    private final IndiceConectados conectados = new IndiceConectados();
+    // Ultimos cambios de cada usuario para getCambiosDesde; se crea al primer cambio
+    private final ArregloSegmentado<RegistroCambios> registrosCambios = new ArregloSegmentado<>();
+    private final BloqueosUsuario bloqueos = new BloqueosUsuario(64);
+    private final Object registro = new Object();
+    // Guarda los callbacks de los clientes y les envia las notificaciones sin bloquear
+    private final DespachadorNotificaciones despachador =
+            new DespachadorNotificaciones(CAPACIDAD_COLA_NOTIFICACIONES, PLAZO_NOTIFICACION_MS, VENTANA_NOTIFICACION_MS);
+
+    // Directorio de datos, configurable con -Dchat.datos (benchmarks y pruebas usan uno temporal)
+    final static String DATA_DIR = System.getProperty("chat.datos", "./data/user");
+    final static String PASSWORDS_FILE = DATA_DIR + "/passwords/pswd";
+    final static String FRIENDS_FILE = DATA_DIR + "/friends/amigos";
+    final static String PENDING_REQUESTS_FILE = DATA_DIR + "/requests/solicitudes";
+    final static String SNAPSHOT_FILE = DATA_DIR + "/instantanea.bin";
+    private static final String LOG_FILE = "./logs/servidor.log";
     private static final int RMI_PORT = 1099;
+    private static final int CAPACIDAD_COLA_NOTIFICACIONES = 256;
+    private static final long PLAZO_NOTIFICACION_MS = 5000;
+    // Eventos de un mismo destinatario dentro de la ventana van en una sola llamada
+    private static final long VENTANA_NOTIFICACION_MS = Long.getLong("chat.notificaciones.ventanaMs", 20);
+    private static final int CAPACIDAD_REGISTRO_CAMBIOS = 64;
+    private static final int MAX_RESULTADOS_BUSQUEDA = 100;
+    // Hilos que atienden las peticiones del transporte binario
+    private static final int HILOS_BINARIO = Integer.getInteger("chat.binario.hilos",
+            4 * Runtime.getRuntime().availableProcessors());
+
+    // Diario de cambios, configurable con -Dchat.diario.*
+    private final static String JOURNAL_DIR = DATA_DIR + "/diario";
+    private static final Diario.PoliticaFsync POLITICA_FSYNC = Diario.PoliticaFsync.valueOf(
+            System.getProperty("chat.diario.fsync", "periodica").toUpperCase());
+    private static final long INTERVALO_FSYNC_MS = Long.getLong("chat.diario.fsyncMs", 1000);
+    private static final long COMPACTAR_CADA_MS = Long.getLong("chat.diario.compactarMs", 60_000);
+    private static final long COMPACTAR_BYTES = Long.getLong("chat.diario.compactarBytes", 4L << 20);
+
+    // Registros del diario, uno por linea y campos separados por espacios (ver campoValido)
+    private static final String REG_USUARIO = "U";             // U usuario clave
+    private static final String REG_SOLICITUD = "S+";          // S+ deUsuario aUsuario
+    private static final String REG_SOLICITUD_FUERA = "S-";    // S- usuario amigo
+    private static final String REG_AMISTAD = "A";             // A usuario amigo
+
+    private final Diario diario = new Diario(JOURNAL_DIR, POLITICA_FSYNC, INTERVALO_FSYNC_MS);
+    private final Object compactacion = new Object();
+
+    // Sesiones: cada usuario conectado tiene un plazo que renueva con renovarSesion.
+    // Configurable con -Dchat.sesion.leaseMs; el recolector revisa cada tercio de plazo
+    static final long LEASE_MS = Long.getLong("chat.sesion.leaseMs", 30_000);
+    private final Map<String, Long> vencimientos = new ConcurrentHashMap<>();
 
     public Servidor() throws RemoteException {
-        super();
+        super(0, SocketsRmi.CONFIGURADOS, SocketsRmi.CONFIGURADOS);
         loadAllData();
-        System.out.println("Servidor RMI iniciado");
-        System.out.println("Usuarios registrados: " + passwords.keySet());
+        try {
+            diario.abrir();
+        } catch (IOException e) {
+            throw new RemoteException("No se pudo abrir el diario", e);
+        }
+        despachador.setAlCaer(this::callbackCaido);
+        programarMantenimiento();
+        Log.info("servidor.iniciado", "usuarios", usuarios.getTamanio());
     }
 
     // ==========================
     // ===== FUNCIONES DATA =====
     // ==========================
 
+    /* Solo se llama desde el constructor, antes de atender peticiones: no hace falta bloquear */
     private void loadAllData() {
+        if (new File(SNAPSHOT_FILE).exists()) {
+            try {
+                loadSnapshot(InstantaneaBinaria.cargar(SNAPSHOT_FILE));
+                diario.reproducir(this::aplicarRegistro);
+                return;
+            } catch (IOException e) {
+                Log.error("instantanea.carga", "archivo", SNAPSHOT_FILE, e);
+            }
+        }
+
+        // Sin instantanea binaria todavia: se arranca desde los archivos de texto
         HashMap<String, String> loadedUsers = ManejadorUsuarios.loadUsersFromFile(PASSWORDS_FILE);
-        passwords.putAll(loadedUsers);
+        for (Map.Entry<String, String> entry : loadedUsers.entrySet()) {
+            usuarios.registrar(entry.getKey(), entry.getValue());
+        }
+        loadLists(ManejadorUsuarios.loadFriendsFromFile(FRIENDS_FILE), amigos);
+        loadLists(ManejadorUsuarios.loadFriendsFromFile(PENDING_REQUESTS_FILE), solicitudesPendientes);
+
+        diario.reproducir(this::aplicarRegistro);
+    }
+
+    private void loadLists(Map<String, List<String>> cargadas, ListasAdyacencia destino) {
+        for (Map.Entry<String, List<String>> entry : cargadas.entrySet()) {
+            int id = usuarios.getId(entry.getKey());
+            if (id < 0) {
+                continue;
+            }
+            for (String otro : entry.getValue()) {
+                int idOtro = usuarios.getId(otro);
+                if (idOtro >= 0) {
+                    destino.agregar(id, idOtro);
+                }
+            }
+        }
+    }
+
+    /* Los ids de la instantanea son los mismos que se asignan en memoria */
+    private void loadSnapshot(InstantaneaBinaria instantanea) throws IOException {
+        int n = instantanea.getNumUsuarios();
+        for (int id = 0; id < n; id++) {
+            if (usuarios.registrar(instantanea.getNombre(id), instantanea.getClave(id)) != id) {
+                throw new IOException("Usuario repetido en la instantanea: " + instantanea.getNombre(id));
+            }
+        }
+        for (int id = 0; id < n; id++) {
+            amigos.poner(id, instantanea.getAmigos(id));
+            solicitudesPendientes.poner(id, instantanea.getSolicitudes(id));
+        }
+    }
+
+    /* Los primeros n usuarios, con n tomado al rotar el diario */
+    private void saveAllData(int n) throws IOException {
+        InstantaneaBinaria.guardar(usuarios, n, amigos, solicitudesPendientes, SNAPSHOT_FILE);
+    }
+
+    /*
+     * La instantanea es la base y cada cambio posterior solo se anota en el diario.
+     * Las operaciones del diario son idempotentes y gana la ultima sobre cada par, asi
+     * que reaplicar registros que la instantanea ya incluye no cambia nada.
+     */
+    private void aplicarRegistro(String linea) {
+        String[] p = linea.split(" ");
+        if (p.length != 3) {
+            Log.aviso("diario.registroDesconocido", "linea", linea);
+            return;
+        }
+        if (p[0].equals(REG_USUARIO)) {
+            usuarios.registrar(p[1], p[2]);
+            return;
+        }
+
+        int x = usuarios.getId(p[1]);
+        int y = usuarios.getId(p[2]);
+        if (x < 0 || y < 0) {
+            Log.aviso("diario.usuarioDesconocido", "linea", linea);
+            return;
+        }
+        switch (p[0]) {
+            case REG_SOLICITUD:
+                solicitudesPendientes.agregar(y, x);
+                break;
+            case REG_SOLICITUD_FUERA:
+                solicitudesPendientes.quitar(x, y);
+                break;
+            case REG_AMISTAD:
+                agregarAmistad(x, y);
+                break;
+            default:
+                Log.aviso("diario.registroDesconocido", "linea", linea);
+        }
+    }
+
+    /*
+     * Nombre o clave que se puede anotar en el diario: sin espacios ni caracteres de
+     * control, que partirian el registro al reaplicarlo y se perderia un cambio ya confirmado
+     */
+    static boolean campoValido(String campo) {
+        if (campo == null || campo.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < campo.length(); i++) {
+            char c = campo.charAt(i);
+            if (Character.isWhitespace(c) || Character.isSpaceChar(c) || Character.isISOControl(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void agregarAmistad(int usuario, int amigo) {
+        amigos.agregar(usuario, amigo);
+        amigos.agregar(amigo, usuario);
+    }
 
-        HashMap<String, List<String>> loadedFriends = ManejadorUsuarios.loadFriendsFromFile(FRIENDS_FILE);
-        amigos.putAll(loadedFriends);
+    /* Tras conectar o desconectar id: recorre sus amigos una vez para actualizar el indice */
+    private void actualizarConectados(int id) {
+        for (int amigo : amigos.get(id)) {
+            synchronized (bloqueos.primero(id, amigo)) {
+                synchronized (bloqueos.segundo(id, amigo)) {
+                    conectados.actualizarPar(id, amigo);
+                }
+            }
+        }
+    }
+
+    private List<String> nombres(int[] ids) {
+        List<String> res = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            res.add(usuarios.getNombre(id));
+        }
+        return res;
+    }
 
-        HashMap<String, List<String>> loadedRequests = ManejadorUsuarios.loadFriendsFromFile(PENDING_REQUESTS_FILE);
-        solicitudesPendientes.putAll(loadedRequests);
+    /* Espera a que el cambio este en el diario; si no se pudo escribir, el cliente recibe el error */
+    private void persistir(long secuencia) throws RemoteException {
+        try {
+            diario.esperar(secuencia);
+        } catch (IOException e) {
+            throw new RemoteException("No se pudo guardar el cambio", e);
+        }
+    }
 
-        for (String user : passwords.keySet()) {
-            amigos.putIfAbsent(user, new ArrayList<>());
-            solicitudesPendientes.putIfAbsent(user, new ArrayList<>());
+    /* Rota el diario, vuelca una instantanea completa y borra los archivos que ya cubre */
+    public void compactar() {
+        synchronized (compactacion) {
+            try {
+                long cubierto;
+                int n;
+                // Con registro cogido ningun alta queda a medias entre memoria y diario: las
+                // anotadas en los archivos cubiertos entran en los n usuarios de la instantanea
+                synchronized (registro) {
+                    cubierto = diario.rotar();
+                    n = usuarios.getTamanio();
+                }
+                saveAllData(n);
+                diario.borrarHasta(cubierto);
+                Log.info("diario.compactado", "hasta", cubierto);
+            } catch (IOException e) {
+                Log.error("diario.compactar", e);
+            }
         }
     }
 
-    private void saveAllData() {
-        ManejadorUsuarios.saveUsersToFile(passwords, PASSWORDS_FILE);
-        ManejadorUsuarios.saveFriendsToFile(amigos, FRIENDS_FILE);
-        ManejadorUsuarios.saveFriendsToFile(solicitudesPendientes, PENDING_REQUESTS_FILE);
+    private void programarMantenimiento() {
+        ScheduledExecutorService mantenimiento = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "servidor-mantenimiento");
+            t.setDaemon(true);
+            return t;
+        });
+        mantenimiento.scheduleWithFixedDelay(() -> {
+            // Tras un fallo de escritura la compactacion es lo que vuelve a dejar escribir
+            if (diario.getTamanio() >= COMPACTAR_BYTES || diario.getFallo() != null) {
+                compactar();
+            }
+        }, COMPACTAR_CADA_MS, COMPACTAR_CADA_MS, TimeUnit.MILLISECONDS);
+        long revision = Math.max(1, LEASE_MS / 3);
+        mantenimiento.scheduleWithFixedDelay(this::expirarSesiones, revision, revision, TimeUnit.MILLISECONDS);
+        // El indice de busqueda se ordena en segundo plano para no retrasar el arranque
+        mantenimiento.execute(usuarios::prepararBusqueda);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(diario::cerrar));
     }
 
 
@@ -55,45 +276,167 @@ public class Servidor extends UnicastRemoteObject implements IServidor {
     // ===========================================
 
     @Override
-    public synchronized boolean login(String user, String password, String direccion) throws RemoteException {
-        System.out.println("Intento de login: " + user + " desde " + direccion);
+    public boolean login(String user, String password, String direccion) throws RemoteException {
+        Log.depuracion("login", "usuario", user, "direccion", direccion);
 
-        if (!passwords.containsKey(user) || !passwords.get(user).equals(password)) {
-            System.out.println("Login fallido: " + user);
+        int id = comprobarClave(user, password);
+        if (id < 0) {
             return false;
         }
 
-        direcciones.put(user, direccion);
-        System.out.println("Login exitoso: " + user);
-
-        notificarConexionUsuario(user);
-
+        conectar(id, direccion, null);
         return true;
     }
 
     @Override
-    public synchronized void logout(String user) throws RemoteException {
-        System.out.println("Logout: " + user);
+    public SesionUsuario iniciarSesion(String user, String password, String direccion,
+            IClienteCallback callback, IBuzon buzon) throws RemoteException {
+        Log.depuracion("iniciarSesion", "usuario", user, "direccion", direccion);
+
+        int id = comprobarClave(user, password);
+        if (id < 0) {
+            return null;
+        }
+
+        registrarCallback(user, callback);
+        conectar(id, direccion, buzon);
+        return estadoSesion(id);
+    }
+
+    private SesionUsuario estadoSesion(int id) {
+        // La version se lee antes que las listas: lo que cambie mientras tanto llegara
+        // tambien como cambio, y aplicarlo dos veces no tiene efecto en el cliente
+        long version = registroCambios(id).getVersion();
+
+        Map<String, String> amigosConectados = new LinkedHashMap<>();
+        Map<String, IBuzon> buzonesAmigos = new HashMap<>();
+        for (int amigo : conectados.getAmigosConectados(id)) {
+            String nombre = usuarios.getNombre(amigo);
+            String dir = direcciones.get(nombre);
+            // Pudo desconectarse mientras tanto
+            if (dir != null) {
+                amigosConectados.put(nombre, dir);
+                IBuzon buzon = buzones.get(nombre);
+                if (buzon != null) {
+                    buzonesAmigos.put(nombre, buzon);
+                }
+            }
+        }
+        return new SesionUsuario(version, nombres(amigos.get(id)), amigosConectados, buzonesAmigos,
+                nombres(solicitudesPendientes.get(id)), LEASE_MS);
+    }
+
+    /* Devuelve el id del usuario, o -1 si no existe o la clave no coincide */
+    private int comprobarClave(String user, String password) {
+        int id = campoValido(user) ? usuarios.getId(user) : -1;
+        if (id < 0 || !usuarios.getClave(id).equals(password)) {
+            Log.aviso("login.fallido", "usuario", user);
+            return -1;
+        }
+        return id;
+    }
+
+    private void conectar(int id, String direccion, IBuzon buzon) {
+        synchronized (bloqueos.de(id)) {
+            direcciones.put(usuarios.getNombre(id), direccion);
+            if (buzon != null) {
+                buzones.put(usuarios.getNombre(id), buzon);
+            } else {
+                buzones.remove(usuarios.getNombre(id));
+            }
+            conectados.conectar(id);
+        }
+        vencimientos.put(usuarios.getNombre(id), System.currentTimeMillis() + LEASE_MS);
+        actualizarConectados(id);
+        Log.info("login.exitoso", "usuario", usuarios.getNombre(id), "direccion", direccion);
+
+        notificarConexionUsuario(id, conectados.getAmigosConectados(id));
+    }
 
-        notificarDesconexionUsuario(user);
+    @Override
+    public void logout(String user) throws RemoteException {
+        Log.info("logout", "usuario", user);
+
+        vencimientos.remove(user);
+        int id = usuarios.getId(user);
+        if (id >= 0) {
+            int[] avisar = conectados.getAmigosConectados(id);
+            synchronized (bloqueos.de(id)) {
+                direcciones.remove(user);
+                buzones.remove(user);
+                conectados.desconectar(id);
+            }
+            actualizarConectados(id);
+            registroCambios(id).vaciar();
 
-        direcciones.remove(user);
+            notificarDesconexionUsuario(id, avisar);
+        }
         eliminarCallback(user);
     }
 
+    /* Latido del cliente: false si la sesion ya no existe y hay que volver a iniciarla */
+    @Override
+    public boolean renovarSesion(String user) throws RemoteException {
+        long vence = System.currentTimeMillis() + LEASE_MS;
+        return vencimientos.computeIfPresent(user, (u, v) -> vence) != null;
+    }
+
+    /* Cierra las sesiones cuyo plazo ha pasado sin latidos, como si hubieran hecho logout */
+    private void expirarSesiones() {
+        long ahora = System.currentTimeMillis();
+        for (Map.Entry<String, Long> entry : vencimientos.entrySet()) {
+            String user = entry.getKey();
+            Long vence = entry.getValue();
+            // remove(clave, valor): si renovo justo ahora no se le echa
+            if (vence < ahora && vencimientos.remove(user, vence)) {
+                Log.info("sesion.caducada", "usuario", user);
+                try {
+                    logout(user);
+                } catch (RemoteException | RuntimeException e) {
+                    Log.error("sesion.caducada", "usuario", user, e);
+                }
+            }
+        }
+    }
+
+    /*
+     * El despachador ya ha quitado el callback porque el cliente no existe. Se cierra la
+     * sesion sin esperar al plazo, salvo que el usuario haya vuelto a entrar con otro callback.
+     */
+    private void callbackCaido(String user) {
+        if (despachador.tieneCallback(user) || vencimientos.remove(user) == null) {
+            return;
+        }
+        Log.info("sesion.inalcanzable", "usuario", user);
+        try {
+            logout(user);
+        } catch (RemoteException | RuntimeException e) {
+            Log.error("sesion.inalcanzable", "usuario", user, e);
+        }
+    }
+
     @Override
-    public synchronized boolean registrarUsuario(String user, String password) throws RemoteException {
-        if (passwords.containsKey(user)) {
-            System.out.println("Registro fallido: usuario " + user + " ya existe");
+    public boolean registrarUsuario(String user, String password) throws RemoteException {
+        if (!campoValido(user) || !campoValido(password)) {
+            Log.aviso("registro.fallido", "usuario", user, "motivo", "caracteres");
             return false;
         }
 
-        amigos.put(user, new ArrayList<>());
-        passwords.put(user, password);
-        solicitudesPendientes.put(user, new ArrayList<>());
+        long secuencia;
+        synchronized (registro) {
+            if (usuarios.existe(user)) {
+                Log.aviso("registro.fallido", "usuario", user, "motivo", "existe");
+                return false;
+            }
+
+            // Primero en memoria y luego en el diario, como el resto de cambios: asi lo anotado
+            // siempre esta ya en memoria cuando compactar() rota y toma la instantanea
+            usuarios.registrar(user, password);
+            secuencia = diario.anotar(REG_USUARIO + " " + user + " " + password);
+        }
 
-        saveAllData();
-        System.out.println("Usuario registrado: " + user);
+        persistir(secuencia);
+        Log.info("registro", "usuario", user);
         return true;
     }
 
@@ -102,69 +445,97 @@ public class Servidor extends UnicastRemoteObject implements IServidor {
     // =============================
 
     @Override
-    public synchronized void solicitarAmistad(String deUsuario, String aUsuario) throws RemoteException {
-        if (!passwords.containsKey(deUsuario) || !passwords.containsKey(aUsuario)) {
-            System.out.println("Solicitud fallida: usuario no existe");
+    public void solicitarAmistad(String deUsuario, String aUsuario) throws RemoteException {
+        int de = campoValido(deUsuario) ? usuarios.getId(deUsuario) : -1;
+        int a = campoValido(aUsuario) ? usuarios.getId(aUsuario) : -1;
+        if (de < 0 || a < 0) {
+            Log.aviso("solicitud.fallida", "de", deUsuario, "a", aUsuario, "motivo", "noExiste");
             return;
         }
 
-        if (deUsuario.equals(aUsuario)) {
-            System.out.println("Solicitud fallida: no puede enviarse solicitud a sí mismo");
+        if (de == a) {
+            Log.aviso("solicitud.fallida", "de", deUsuario, "a", aUsuario, "motivo", "aSiMismo");
             return;
         }
 
-        if (amigos.get(deUsuario).contains(aUsuario)) {
-            System.out.println("Solicitud fallida: ya son amigos");
-            return;
+        long secuencia;
+        synchronized (bloqueos.primero(de, a)) {
+            synchronized (bloqueos.segundo(de, a)) {
+                if (amigos.contiene(de, a)) {
+                    Log.aviso("solicitud.fallida", "de", deUsuario, "a", aUsuario, "motivo", "yaAmigos");
+                    return;
+                }
+
+                if (!solicitudesPendientes.agregar(a, de)) {
+                    return;
+                }
+                secuencia = diario.anotar(REG_SOLICITUD + " " + deUsuario + " " + aUsuario);
+            }
         }
 
-        if (!solicitudesPendientes.get(aUsuario).contains(deUsuario)) {
-            solicitudesPendientes.get(aUsuario).add(deUsuario);
-            saveAllData();
-            System.out.println("Solicitud de amistad: " + deUsuario + " -> " + aUsuario);
+        persistir(secuencia);
+        Log.info("solicitud", "de", deUsuario, "a", aUsuario);
 
-            notificarSolicitudAmistad(aUsuario, deUsuario);
-        }
+        notificarSolicitudAmistad(a, de);
     }
 
     @Override
-    public synchronized List<String> getSolicitudesPendientes(String usuario) throws RemoteException {
-        return new ArrayList<>(solicitudesPendientes.getOrDefault(usuario, new ArrayList<>()));
+    public List<String> getSolicitudesPendientes(String usuario) throws RemoteException {
+        int id = usuarios.getId(usuario);
+        return id < 0 ? new ArrayList<>() : nombres(solicitudesPendientes.get(id));
     }
 
     @Override
-    public synchronized boolean aceptarSolicitudAmistad(String usuario, String amigo) throws RemoteException {
-        if (!solicitudesPendientes.getOrDefault(usuario, new ArrayList<>()).contains(amigo)) {
+    public boolean aceptarSolicitudAmistad(String usuario, String amigo) throws RemoteException {
+        int u = usuarios.getId(usuario);
+        int a = usuarios.getId(amigo);
+        if (u < 0 || a < 0) {
             return false;
         }
 
-        solicitudesPendientes.get(usuario).remove(amigo);
+        long secuencia;
+        synchronized (bloqueos.primero(u, a)) {
+            synchronized (bloqueos.segundo(u, a)) {
+                if (!solicitudesPendientes.quitar(u, a)) {
+                    return false;
+                }
 
-        if (!amigos.get(usuario).contains(amigo)) {
-            amigos.get(usuario).add(amigo);
-        }
-        if (!amigos.get(amigo).contains(usuario)) {
-            amigos.get(amigo).add(usuario);
+                agregarAmistad(u, a);
+                conectados.actualizarPar(u, a);
+                diario.anotar(REG_SOLICITUD_FUERA + " " + usuario + " " + amigo);
+                secuencia = diario.anotar(REG_AMISTAD + " " + usuario + " " + amigo);
+            }
         }
 
-        saveAllData();
-        System.out.println("Amistad aceptada: " + usuario + " - " + amigo);
+        persistir(secuencia);
+        Log.info("solicitud.aceptada", "usuario", usuario, "amigo", amigo);
 
-        notificarAmistadAceptada(usuario, amigo);
-        notificarAmistadAceptada(amigo, usuario);
+        registroCambios(u).agregar(Cambio.Tipo.SOLICITUD_ELIMINADA, usuarios.getNombre(a), null, null);
+        notificarAmistadAceptada(u, a);
+        notificarAmistadAceptada(a, u);
 
         return true;
     }
 
     @Override
-    public synchronized boolean rechazarSolicitudAmistad(String usuario, String amigo) throws RemoteException {
-        if (!solicitudesPendientes.getOrDefault(usuario, new ArrayList<>()).contains(amigo)) {
+    public boolean rechazarSolicitudAmistad(String usuario, String amigo) throws RemoteException {
+        int u = usuarios.getId(usuario);
+        int a = usuarios.getId(amigo);
+        if (u < 0 || a < 0) {
             return false;
         }
 
-        solicitudesPendientes.get(usuario).remove(amigo);
-        saveAllData();
-        System.out.println("Solicitud rechazada: " + usuario + " rechazó a " + amigo);
+        long secuencia;
+        synchronized (bloqueos.de(u)) {
+            if (!solicitudesPendientes.quitar(u, a)) {
+                return false;
+            }
+            secuencia = diario.anotar(REG_SOLICITUD_FUERA + " " + usuario + " " + amigo);
+        }
+
+        persistir(secuencia);
+        registroCambios(u).agregar(Cambio.Tipo.SOLICITUD_ELIMINADA, usuarios.getNombre(a), null, null);
+        Log.info("solicitud.rechazada", "usuario", usuario, "amigo", amigo);
         return true;
     }
 
@@ -174,104 +545,258 @@ public class Servidor extends UnicastRemoteObject implements IServidor {
 
 
     @Override
-    public synchronized List<String> getAmigos(String user) throws RemoteException {
-        return new ArrayList<>(amigos.getOrDefault(user, new ArrayList<>()));
+    public List<String> getAmigos(String user) throws RemoteException {
+        int id = usuarios.getId(user);
+        return id < 0 ? new ArrayList<>() : nombres(amigos.get(id));
     }
 
     @Override
-    public synchronized List<String> getAmigosConectados(String user) throws RemoteException {
-        List<String> conectados = new ArrayList<>();
-        for (String amigo : amigos.getOrDefault(user, new ArrayList<>())) {
-            if (direcciones.containsKey(amigo)) {
-                conectados.add(amigo);
-            }
+    public List<String> getAmigosConectados(String user) throws RemoteException {
+        int id = usuarios.getId(user);
+        return id < 0 ? new ArrayList<>() : nombres(conectados.getAmigosConectados(id));
+    }
+
+    @Override
+    public int getNumAmigosConectados(String user) throws RemoteException {
+        int id = usuarios.getId(user);
+        return id < 0 ? 0 : conectados.getNumAmigosConectados(id);
+    }
+
+    /* null si el cliente ya esta al dia: asi la consulta sin cambios no cuesta casi nada */
+    @Override
+    public CambiosUsuario getCambiosDesde(String usuario, long version) throws RemoteException {
+        int id = usuarios.getId(usuario);
+        if (id < 0) {
+            return null;
+        }
+        RegistroCambios registro = registrosCambios.get(id);
+        long actual = registro == null ? 0 : registro.getVersion();
+        if (version == actual) {
+            return null;
         }
-        return conectados;
+
+        List<Cambio> cambios = registro == null ? null : registro.desde(version);
+        if (cambios == null) {
+            SesionUsuario completo = estadoSesion(id);
+            return new CambiosUsuario(completo.getVersion(), new ArrayList<>(), completo);
+        }
+        long hasta = cambios.isEmpty() ? version : cambios.get(cambios.size() - 1).getVersion();
+        return new CambiosUsuario(hasta, cambios, null);
     }
 
     @Override
-    public synchronized String getDireccion(String usuario) throws RemoteException {
+    public String getDireccion(String usuario) throws RemoteException {
         return direcciones.get(usuario);
     }
 
     @Override
-    public synchronized boolean existeUsuario(String usuario) throws RemoteException {
-        return passwords.containsKey(usuario);
+    public IBuzon getBuzon(String usuario) throws RemoteException {
+        return buzones.get(usuario);
+    }
+
+    @Override
+    public boolean existeUsuario(String usuario) throws RemoteException {
+        return usuarios.existe(usuario);
+    }
+
+    @Override
+    public List<String> buscarUsuarios(String prefijo, int offset, int limite) throws RemoteException {
+        if (prefijo == null || offset < 0 || limite <= 0) {
+            return new ArrayList<>();
+        }
+        return usuarios.buscar(prefijo, offset, Math.min(limite, MAX_RESULTADOS_BUSQUEDA));
     }
 
     @Override
-    public synchronized void registrarCallback(String usuario, IClienteCallback callback) throws RemoteException {
-        callbacksClientes.put(usuario, callback);
-        System.out.println("Callback registrado para: " + usuario);
+    public void registrarCallback(String usuario, IClienteCallback callback) throws RemoteException {
+        despachador.registrar(usuario, Instrumentacion.envolver(callback, IClienteCallback.class, "IClienteCallback"));
+        Log.depuracion("callback.registrado", "usuario", usuario);
     }
 
     @Override
-    public synchronized void eliminarCallback(String usuario) throws RemoteException {
-        callbacksClientes.remove(usuario);
-        System.out.println("Callback eliminado para: " + usuario);
+    public void eliminarCallback(String usuario) throws RemoteException {
+        despachador.eliminar(usuario);
+        Log.depuracion("callback.eliminado", "usuario", usuario);
     }
 
     // ==============================
     // ===== NOTIFICAR USUARIOS =====
     // ==============================
 
-    private void notificarConexionUsuario(String usuario) {
+    // Cada aviso se anota en el registro de cambios del destinatario y se encola en el
+    // despachador; el envio real lo hacen los hilos del despachador
+
+    private RegistroCambios registroCambios(int id) {
+        RegistroCambios registro = registrosCambios.get(id);
+        if (registro == null) {
+            registro = registrosCambios.setSiVacio(id, new RegistroCambios(CAPACIDAD_REGISTRO_CAMBIOS));
+        }
+        return registro;
+    }
+
+    private void notificarConexionUsuario(int id, int[] amigosConectados) {
+        String usuario = usuarios.getNombre(id);
         String direccion = direcciones.get(usuario);
-        for (String amigo : amigos.getOrDefault(usuario, new ArrayList<>())) {
-            IClienteCallback callback = callbacksClientes.get(amigo);
-            if (callback != null) {
-                try {
-                    callback.notificarConexionAmigo(usuario, direccion);
-                } catch (RemoteException e) {
-                    System.out.println("Error notificando conexión a " + amigo + ": " + e);
-                }
-            }
+        IBuzon buzon = buzones.get(usuario);
+        Evento evento = new Evento(Evento.Tipo.AMIGO_CONECTADO, usuario, direccion, buzon);
+        for (int amigo : amigosConectados) {
+            registroCambios(amigo).agregar(Cambio.Tipo.AMIGO_CONECTADO, usuario, direccion, buzon);
+            despachador.encolar(usuarios.getNombre(amigo), evento);
         }
     }
 
-    private void notificarDesconexionUsuario(String usuario) {
-        for (String amigo : amigos.getOrDefault(usuario, new ArrayList<>())) {
-            IClienteCallback callback = callbacksClientes.get(amigo);
-            if (callback != null) {
-                try {
-                    callback.notificarDesconexionAmigo(usuario);
-                } catch (RemoteException e) {
-                    System.out.println("Error notificando desconexión a " + amigo + ": " + e);
-                }
-            }
+    private void notificarDesconexionUsuario(int id, int[] amigosConectados) {
+        String usuario = usuarios.getNombre(id);
+        Evento evento = new Evento(Evento.Tipo.AMIGO_DESCONECTADO, usuario, null);
+        for (int amigo : amigosConectados) {
+            registroCambios(amigo).agregar(Cambio.Tipo.AMIGO_DESCONECTADO, usuario, null, null);
+            despachador.encolar(usuarios.getNombre(amigo), evento);
         }
     }
 
-    private void notificarSolicitudAmistad(String usuarioDestino, String usuarioSolicitante) {
-        IClienteCallback callback = callbacksClientes.get(usuarioDestino);
-        if (callback != null) {
-            try {
-                callback.notificarSolicitudAmistad(usuarioSolicitante);
-            } catch (RemoteException e) {
-                System.out.println("Error notificando solicitud a " + usuarioDestino + ": " + e);
-            }
+    private void notificarSolicitudAmistad(int destino, int solicitante) {
+        String usuarioSolicitante = usuarios.getNombre(solicitante);
+        registroCambios(destino).agregar(Cambio.Tipo.SOLICITUD_NUEVA, usuarioSolicitante, null, null);
+        despachador.encolar(usuarios.getNombre(destino),
+                new Evento(Evento.Tipo.SOLICITUD_AMISTAD, usuarioSolicitante, null));
+    }
+
+    private void notificarAmistadAceptada(int id, int nuevo) {
+        String nuevoAmigo = usuarios.getNombre(nuevo);
+        RegistroCambios registro = registroCambios(id);
+        registro.agregar(Cambio.Tipo.AMIGO_NUEVO, nuevoAmigo, null, null);
+        String direccion = direcciones.get(nuevoAmigo);
+        IBuzon buzon = buzones.get(nuevoAmigo);
+        if (direccion != null && conectados.estaConectado(id)) {
+            registro.agregar(Cambio.Tipo.AMIGO_CONECTADO, nuevoAmigo, direccion, buzon);
         }
+        // Si el nuevo amigo esta conectado el aviso ya lleva su Buzon
+        despachador.encolar(usuarios.getNombre(id),
+                new Evento(Evento.Tipo.AMISTAD_ACEPTADA, nuevoAmigo, direccion, buzon));
     }
 
-    private void notificarAmistadAceptada(String usuario, String nuevoAmigo) {
-        IClienteCallback callback = callbacksClientes.get(usuario);
-        if (callback != null) {
-            try {
-                callback.notificarAmistadAceptada(nuevoAmigo);
-            } catch (RemoteException e) {
-                System.out.println("Error notificando amistad aceptada a " + usuario + ": " + e);
-            }
+    public DespachadorNotificaciones getDespachador() {
+        return despachador;
+    }
+
+    // ====================
+    // ===== METRICAS =====
+    // ====================
+
+    @Override
+    public int getUsuariosRegistrados() {
+        return usuarios.getTamanio();
+    }
+
+    @Override
+    public int getUsuariosConectados() {
+        return conectados.getTotalConectados();
+    }
+
+    @Override
+    public int getSesiones() {
+        return vencimientos.size();
+    }
+
+    @Override
+    public int getCallbacks() {
+        return despachador.getCallbacks();
+    }
+
+    @Override
+    public long getSolicitudesPendientes() {
+        return solicitudesPendientes.getTotal();
+    }
+
+    @Override
+    public int getNotificacionesEnCola() {
+        return despachador.getProfundidadTotal();
+    }
+
+    @Override
+    public long getNotificacionesEnviadas() {
+        return despachador.getEnviadas();
+    }
+
+    @Override
+    public long getLotesNotificaciones() {
+        return despachador.getLotes();
+    }
+
+    @Override
+    public long getNotificacionesFusionadas() {
+        return despachador.getFusionadas();
+    }
+
+    @Override
+    public long getNotificacionesDescartadas() {
+        return despachador.getDescartadas();
+    }
+
+    @Override
+    public long getNotificacionesCaducadas() {
+        return despachador.getCaducadas();
+    }
+
+    @Override
+    public long getNotificacionesFallidas() {
+        return despachador.getFallidas();
+    }
+
+    @Override
+    public long getCallbacksCaidos() {
+        return despachador.getCaidos();
+    }
+
+    @Override
+    public long getTamanioDiario() {
+        return diario.getTamanio();
+    }
+
+    /*
+     * Devuelve el objeto remoto a registrar: con metricas, un proxy que mide cada metodo de
+     * IServidor (exportado en lugar del propio servidor), y el servidor como MBean de estado.
+     */
+    static IServidor publicar(Servidor servidor) throws RemoteException {
+        Instrumentacion.publicar("Servidor", servidor);
+        if (!Instrumentacion.ACTIVA) {
+            return servidor;
         }
+        IServidor medido = Instrumentacion.envolver(servidor, IServidor.class, "IServidor");
+        UnicastRemoteObject.unexportObject(servidor, true);
+        return (IServidor) UnicastRemoteObject.exportObject(medido, 0,
+                SocketsRmi.CONFIGURADOS, SocketsRmi.CONFIGURADOS);
+    }
+
+    /* Sirve el mismo servidor con ProtocoloBinario, con sus propias metricas (grupo IServidorBinario) */
+    static ServidorBinario publicarBinario(Servidor servidor, int puerto) throws IOException {
+        IServidor medido = Instrumentacion.envolver(servidor, IServidor.class, "IServidorBinario");
+        ServidorBinario binario = new ServidorBinario(medido, puerto, HILOS_BINARIO);
+        binario.iniciar();
+        return binario;
     }
 
     public static void main(String[] args) {
+        // El servidor registra en archivo salvo que se pida otra cosa con -Dchat.log.archivo
+        if (System.getProperty("chat.log.archivo") == null) {
+            System.setProperty("chat.log.archivo", LOG_FILE);
+        }
+        Log.info("servidor.registro", "archivo", System.getProperty("chat.log.archivo"));
+        // Plazo maximo de cada llamada a un callback (por defecto RMI espera indefinidamente)
+        if (System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null) {
+            System.setProperty("sun.rmi.transport.tcp.responseTimeout", String.valueOf(PLAZO_NOTIFICACION_MS));
+        }
         try {
             java.rmi.registry.LocateRegistry.createRegistry(RMI_PORT);
             Servidor servidor = new Servidor();
-            Naming.rebind("Servidor", servidor);
-            System.out.println("Servidor RMI listo en puerto " + RMI_PORT);
+            Naming.rebind("Servidor", publicar(servidor));
+            Log.info("servidor.listo", "puerto", RMI_PORT);
+            if (ServidorBinario.PUERTO > 0) {
+                publicarBinario(servidor, ServidorBinario.PUERTO);
+                Log.info("servidor.binario", "puerto", ServidorBinario.PUERTO);
+            }
         } catch (Exception e) {
-            System.out.println("Error iniciando servidor: " + e);
+            Log.error("servidor.iniciar", e);
         }
     }
 }
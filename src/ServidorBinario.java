@@ -0,0 +1,396 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Sirve IServidor con ProtocoloBinario en lugar de RMI, sobre el mismo objeto
+ * que el transporte RMI (la logica es la de Servidor en ambos casos).
+ *
+ * Un hilo con un Selector acepta conexiones, lee y separa las tramas; cada
+ * peticion se ejecuta en un hilo de trabajadores y su respuesta se escribe en
+ * cuanto esta lista, sin esperar a las anteriores de la misma conexion. Si el
+ * canal no admite mas datos la respuesta se queda en la cola de la conexion y
+ * la termina de escribir el selector.
+ *
+ * Los callbacks no viajan como objetos remotos: cada conexion tiene un
+ * IClienteCallback propio que manda los eventos como tramas EVENTOS por la
+ * misma conexion. Si la conexion se ha cerrado lanza ConnectException, como
+ * un callback RMI caido.
+ */
+public class ServidorBinario {
+
+    // Puerto del transporte binario, -Dchat.binario.puerto; 0 o negativo lo desactiva en el servidor
+    public static final int PUERTO = Integer.getInteger("chat.binario.puerto", 1100);
+
+    // Tramas pendientes de escribir a partir de las que se da por perdido al cliente
+    private static final int MAX_PENDIENTES = 4096;
+
+    private final IServidor servidor;
+    private final ServerSocketChannel aceptador;
+    private final Selector selector;
+    private final ExecutorService trabajadores;
+    // Conexiones con escrituras pendientes que aun no tienen OP_WRITE
+    private final Queue<Conexion> porEscribir = new ConcurrentLinkedQueue<>();
+
+    public ServidorBinario(IServidor servidor, int puerto, int hilos) throws IOException {
+        this.servidor = servidor;
+        this.selector = Selector.open();
+        this.aceptador = ServerSocketChannel.open();
+        aceptador.bind(new InetSocketAddress(puerto));
+        aceptador.configureBlocking(false);
+        aceptador.register(selector, SelectionKey.OP_ACCEPT);
+        this.trabajadores = Executors.newFixedThreadPool(hilos, r -> {
+            Thread t = new Thread(r, "binario-trabajador");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public int getPuerto() {
+        return aceptador.socket().getLocalPort();
+    }
+
+    public void iniciar() {
+        Thread t = new Thread(this::bucle, "binario-selector");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // ====================
+    // ===== SELECTOR =====
+    // ====================
+
+    private void bucle() {
+        while (aceptador.isOpen()) {
+            try {
+                selector.select();
+                Conexion c;
+                while ((c = porEscribir.poll()) != null) {
+                    if (c.clave.isValid()) {
+                        c.clave.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey clave = it.next();
+                    it.remove();
+                    if (!clave.isValid()) {
+                        continue;
+                    }
+                    if (clave.isAcceptable()) {
+                        aceptar();
+                        continue;
+                    }
+                    Conexion con = (Conexion) clave.attachment();
+                    try {
+                        if (clave.isReadable()) {
+                            con.leer();
+                        }
+                        if (clave.isValid() && clave.isWritable()) {
+                            con.escribirPendientes();
+                        }
+                    } catch (IOException e) {
+                        con.cerrar();
+                    }
+                }
+            } catch (IOException e) {
+                Log.error("binario.selector", e);
+            }
+        }
+    }
+
+    private void aceptar() throws IOException {
+        SocketChannel canal = aceptador.accept();
+        if (canal == null) {
+            return;
+        }
+        canal.configureBlocking(false);
+        canal.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Conexion con = new Conexion(canal);
+        con.clave = canal.register(selector, SelectionKey.OP_READ, con);
+        Log.depuracion("binario.conexion", "remoto", canal.getRemoteAddress());
+    }
+
+    public void cerrar() {
+        try {
+            aceptador.close();
+            selector.wakeup();
+        } catch (IOException e) {
+            Log.error("binario.cerrar", e);
+        }
+        trabajadores.shutdown();
+    }
+
+    // ====================
+    // ===== CONEXION =====
+    // ====================
+
+    private class Conexion {
+        final SocketChannel canal;
+        SelectionKey clave;
+        ByteBuffer entrada = ByteBuffer.allocate(16 * 1024);
+        // Protegidos por this
+        private final ArrayDeque<ByteBuffer> salida = new ArrayDeque<>();
+        private boolean cerrada = false;
+        final IClienteCallback callback = new CallbackBinario(this);
+
+        Conexion(SocketChannel canal) {
+            this.canal = canal;
+        }
+
+        /* Lee lo disponible y pasa a los trabajadores cada peticion completa */
+        void leer() throws IOException {
+            if (canal.read(entrada) < 0) {
+                cerrar();
+                return;
+            }
+            entrada.flip();
+            while (entrada.remaining() >= 4) {
+                int longitud = entrada.getInt(entrada.position());
+                if (longitud < ProtocoloBinario.CABECERA || longitud > ProtocoloBinario.MAX_TRAMA) {
+                    throw new IOException("Trama de longitud invalida: " + longitud);
+                }
+                if (entrada.remaining() < 4 + longitud) {
+                    break;
+                }
+                entrada.getInt();
+                byte tipo = entrada.get();
+                int id = entrada.getInt();
+                byte[] datos = new byte[longitud - ProtocoloBinario.CABECERA];
+                entrada.get(datos);
+                if (tipo == ProtocoloBinario.PETICION) {
+                    trabajadores.execute(() -> atender(this, id, datos));
+                }
+            }
+            entrada.compact();
+            // Que quepa la trama que esta a medias
+            if (entrada.position() >= 4 && !entrada.hasRemaining()) {
+                int necesario = 4 + entrada.getInt(0);
+                if (necesario > entrada.capacity()) {
+                    ByteBuffer mayor = ByteBuffer.allocate(necesario);
+                    entrada.flip();
+                    mayor.put(entrada);
+                    entrada = mayor;
+                }
+            }
+        }
+
+        /* Escribe ya si puede; lo que no quepa lo termina el selector */
+        boolean enviar(ByteBuffer trama) {
+            synchronized (this) {
+                if (cerrada) {
+                    return false;
+                }
+                try {
+                    if (salida.isEmpty()) {
+                        canal.write(trama);
+                        if (!trama.hasRemaining()) {
+                            return true;
+                        }
+                    }
+                } catch (IOException e) {
+                    cerrar();
+                    return false;
+                }
+                if (salida.size() >= MAX_PENDIENTES) {
+                    Log.aviso("binario.lento", "pendientes", salida.size());
+                    cerrar();
+                    return false;
+                }
+                salida.add(trama);
+                if (salida.size() > 1) {
+                    return true;
+                }
+            }
+            porEscribir.add(this);
+            selector.wakeup();
+            return true;
+        }
+
+        synchronized void escribirPendientes() throws IOException {
+            ByteBuffer b;
+            while ((b = salida.peek()) != null) {
+                canal.write(b);
+                if (b.hasRemaining()) {
+                    return;
+                }
+                salida.poll();
+            }
+            clave.interestOps(SelectionKey.OP_READ);
+        }
+
+        synchronized void cerrar() {
+            if (cerrada) {
+                return;
+            }
+            cerrada = true;
+            salida.clear();
+            try {
+                canal.close();
+            } catch (IOException e) {
+                // Ya estaba cerrada
+            }
+        }
+    }
+
+    // ======================
+    // ===== PETICIONES =====
+    // ======================
+
+    private void atender(Conexion con, int id, byte[] datos) {
+        ByteBuffer respuesta;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(datos));
+            ProtocoloBinario.Escritura resultado = ejecutar(ProtocoloBinario.Operacion.de(in.readByte()), in, con);
+            respuesta = ProtocoloBinario.trama(ProtocoloBinario.RESPUESTA, id, resultado);
+        } catch (Exception e) {
+            Log.error("binario.peticion", "id", id, e);
+            try {
+                String mensaje = e.toString();
+                respuesta = ProtocoloBinario.trama(ProtocoloBinario.ERROR, id,
+                        out -> ProtocoloBinario.escribirTexto(out, mensaje));
+            } catch (IOException e2) {
+                con.cerrar();
+                return;
+            }
+        }
+        con.enviar(respuesta);
+    }
+
+    /* Lee los argumentos, llama a servidor y devuelve como escribir el resultado */
+    private ProtocoloBinario.Escritura ejecutar(ProtocoloBinario.Operacion op, DataInputStream in, Conexion con)
+            throws IOException {
+        switch (op) {
+            case LOGIN: {
+                boolean ok = servidor.login(ProtocoloBinario.leerTexto(in), ProtocoloBinario.leerTexto(in),
+                        ProtocoloBinario.leerTexto(in));
+                return out -> out.writeBoolean(ok);
+            }
+            case INICIAR_SESION: {
+                SesionUsuario sesion = servidor.iniciarSesion(ProtocoloBinario.leerTexto(in),
+                        ProtocoloBinario.leerTexto(in), ProtocoloBinario.leerTexto(in), con.callback,
+                        ProtocoloBinario.leerBuzon(in));
+                return out -> ProtocoloBinario.escribirSesion(out, sesion);
+            }
+            case LOGOUT:
+                servidor.logout(ProtocoloBinario.leerTexto(in));
+                return out -> { };
+            case RENOVAR_SESION: {
+                boolean ok = servidor.renovarSesion(ProtocoloBinario.leerTexto(in));
+                return out -> out.writeBoolean(ok);
+            }
+            case REGISTRAR_USUARIO: {
+                boolean ok = servidor.registrarUsuario(ProtocoloBinario.leerTexto(in), ProtocoloBinario.leerTexto(in));
+                return out -> out.writeBoolean(ok);
+            }
+            case SOLICITAR_AMISTAD:
+                servidor.solicitarAmistad(ProtocoloBinario.leerTexto(in), ProtocoloBinario.leerTexto(in));
+                return out -> { };
+            case GET_SOLICITUDES_PENDIENTES: {
+                List<String> lista = servidor.getSolicitudesPendientes(ProtocoloBinario.leerTexto(in));
+                return out -> ProtocoloBinario.escribirTextos(out, lista);
+            }
+            case ACEPTAR_SOLICITUD: {
+                boolean ok = servidor.aceptarSolicitudAmistad(ProtocoloBinario.leerTexto(in),
+                        ProtocoloBinario.leerTexto(in));
+                return out -> out.writeBoolean(ok);
+            }
+            case RECHAZAR_SOLICITUD: {
+                boolean ok = servidor.rechazarSolicitudAmistad(ProtocoloBinario.leerTexto(in),
+                        ProtocoloBinario.leerTexto(in));
+                return out -> out.writeBoolean(ok);
+            }
+            case GET_AMIGOS: {
+                List<String> lista = servidor.getAmigos(ProtocoloBinario.leerTexto(in));
+                return out -> ProtocoloBinario.escribirTextos(out, lista);
+            }
+            case GET_AMIGOS_CONECTADOS: {
+                List<String> lista = servidor.getAmigosConectados(ProtocoloBinario.leerTexto(in));
+                return out -> ProtocoloBinario.escribirTextos(out, lista);
+            }
+            case GET_NUM_AMIGOS_CONECTADOS: {
+                int n = servidor.getNumAmigosConectados(ProtocoloBinario.leerTexto(in));
+                return out -> out.writeInt(n);
+            }
+            case GET_DIRECCION: {
+                String direccion = servidor.getDireccion(ProtocoloBinario.leerTexto(in));
+                return out -> ProtocoloBinario.escribirTexto(out, direccion);
+            }
+            case GET_BUZON: {
+                IBuzon buzon = servidor.getBuzon(ProtocoloBinario.leerTexto(in));
+                return out -> ProtocoloBinario.escribirBuzon(out, buzon);
+            }
+            case EXISTE_USUARIO: {
+                boolean ok = servidor.existeUsuario(ProtocoloBinario.leerTexto(in));
+                return out -> out.writeBoolean(ok);
+            }
+            case BUSCAR_USUARIOS: {
+                List<String> lista = servidor.buscarUsuarios(ProtocoloBinario.leerTexto(in), in.readInt(), in.readInt());
+                return out -> ProtocoloBinario.escribirTextos(out, lista);
+            }
+            case GET_CAMBIOS_DESDE: {
+                CambiosUsuario cambios = servidor.getCambiosDesde(ProtocoloBinario.leerTexto(in), in.readLong());
+                return out -> ProtocoloBinario.escribirCambios(out, cambios);
+            }
+            case REGISTRAR_CALLBACK:
+                servidor.registrarCallback(ProtocoloBinario.leerTexto(in), con.callback);
+                return out -> { };
+            case ELIMINAR_CALLBACK:
+                servidor.eliminarCallback(ProtocoloBinario.leerTexto(in));
+                return out -> { };
+            default:
+                throw new IOException("Operacion no soportada: " + op);
+        }
+    }
+
+    /* Callback de una conexion: los eventos van como tramas EVENTOS */
+    private static class CallbackBinario implements IClienteCallback {
+        private final Conexion con;
+
+        CallbackBinario(Conexion con) {
+            this.con = con;
+        }
+
+        @Override
+        public void notificarEventos(List<Evento> eventos) throws RemoteException {
+            ByteBuffer trama;
+            try {
+                trama = ProtocoloBinario.trama(ProtocoloBinario.EVENTOS, 0,
+                        out -> ProtocoloBinario.escribirEventos(out, eventos));
+            } catch (IOException e) {
+                throw new RemoteException("No se pudo codificar", e);
+            }
+            if (!con.enviar(trama)) {
+                throw new ConnectException("Conexion binaria cerrada");
+            }
+        }
+
+        @Override
+        public void notificarConexionAmigo(String amigo, String direccion, IBuzon buzon) throws RemoteException {
+            notificarEventos(List.of(new Evento(Evento.Tipo.AMIGO_CONECTADO, amigo, direccion, buzon)));
+        }
+
+        @Override
+        public void notificarDesconexionAmigo(String amigo) throws RemoteException {
+            notificarEventos(List.of(new Evento(Evento.Tipo.AMIGO_DESCONECTADO, amigo, null)));
+        }
+
+        @Override
+        public void notificarSolicitudAmistad(String deUsuario) throws RemoteException {
+            notificarEventos(List.of(new Evento(Evento.Tipo.SOLICITUD_AMISTAD, deUsuario, null)));
+        }
+
+        @Override
+        public void notificarAmistadAceptada(String amigo) throws RemoteException {
+            notificarEventos(List.of(new Evento(Evento.Tipo.AMISTAD_ACEPTADA, amigo, null)));
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * Indicadores del servidor publicados por JMX como "chat:type=Servidor".
+ */
+public interface ServidorMBean {
+    int getUsuariosRegistrados();
+
+    int getUsuariosConectados();
+
+    int getSesiones();
+
+    int getCallbacks();
+
+    long getSolicitudesPendientes();
+
+    int getNotificacionesEnCola();
+
+    long getNotificacionesEnviadas();
+
+    long getLotesNotificaciones();
+
+    long getNotificacionesFusionadas();
+
+    long getNotificacionesDescartadas();
+
+    long getNotificacionesCaducadas();
+
+    long getNotificacionesFallidas();
+
+    long getCallbacksCaidos();
+
+    long getTamanioDiario();
+}
@@ -0,0 +1,56 @@
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estado completo de la sesion que el servidor devuelve al iniciar sesion,
+ * para que el cliente no tenga que pedir cada lista por separado.
+ */
+public class SesionUsuario implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // Version de getCambiosDesde a partir de la cual pedir cambios
+    private final long version;
+    private final List<String> amigos;
+    // amigo conectado -> direccion
+    private final Map<String, String> amigosConectados;
+    // amigo conectado -> su Buzon, para enviarle sin buscarlo en ningun registro
+    private final Map<String, IBuzon> buzones;
+    private final List<String> solicitudesPendientes;
+    // Plazo de la sesion: el cliente debe llamar a renovarSesion antes de que pase
+    private final long leaseMs;
+
+    public SesionUsuario(long version, List<String> amigos, Map<String, String> amigosConectados,
+            Map<String, IBuzon> buzones, List<String> solicitudesPendientes, long leaseMs) {
+        this.version = version;
+        this.amigos = amigos;
+        this.amigosConectados = amigosConectados;
+        this.buzones = buzones;
+        this.solicitudesPendientes = solicitudesPendientes;
+        this.leaseMs = leaseMs;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<String> getAmigos() {
+        return amigos;
+    }
+
+    public Map<String, String> getAmigosConectados() {
+        return amigosConectados;
+    }
+
+    public Map<String, IBuzon> getBuzones() {
+        return buzones;
+    }
+
+    public List<String> getSolicitudesPendientes() {
+        return solicitudesPendientes;
+    }
+
+    public long getLeaseMs() {
+        return leaseMs;
+    }
+}
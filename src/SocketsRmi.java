@@ -0,0 +1,315 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Sockets para exportar los objetos remotos (Servidor, Cola, ClienteCallback)
+ * en lugar de los de RMI por defecto.
+ *
+ * Activan TCP_NODELAY (RMI hace muchas escrituras pequenas y Nagle las retrasa)
+ * y fijan los buffers de envio y recepcion. Opcionalmente comprimen: lo escrito
+ * se junta hasta cada flush y se manda como un bloque con cabecera; los
+ * bloques de al menos comprimirDesde bytes van con Deflater si asi ocupan menos,
+ * el resto tal cual, asi las llamadas pequenas no pagan la compresion. Si un
+ * bloque apenas se reduce (datos ya comprimidos o aleatorios) se deja de
+ * intentar durante unos cuantos bloques.
+ *
+ * Se elige con -Dchat.rmi.sockets:
+ *   defecto      sockets de RMI (CONFIGURADOS es null)
+ *   ajustados    TCP_NODELAY y buffers de -Dchat.rmi.bufferBytes
+ *   comprimidos  lo anterior y compresion desde -Dchat.rmi.comprimirDesde bytes
+ *
+ * La fabrica de cliente viaja con el stub, asi que quien llama usa la misma
+ * configuracion que quien exporto el objeto.
+ */
+public class SocketsRmi implements RMIClientSocketFactory, RMIServerSocketFactory, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int BLOQUE = 64 * 1024;
+    private static final int CRUDO = 0;
+    private static final int COMPRIMIDO = 1;
+    // Tras un bloque que no baja de 7/8 de su tamano, los siguientes van sin intentarlo
+    private static final int SALTAR_TRAS_FALLO = 16;
+
+    public static final SocketsRmi CONFIGURADOS = configurados();
+
+    private final int bufferBytes;
+    // Negativo: sin compresion
+    private final int comprimirDesde;
+
+    public SocketsRmi(int bufferBytes, int comprimirDesde) {
+        this.bufferBytes = bufferBytes;
+        this.comprimirDesde = comprimirDesde;
+    }
+
+    private static SocketsRmi configurados() {
+        String modo = System.getProperty("chat.rmi.sockets", "defecto");
+        int buffer = Integer.getInteger("chat.rmi.bufferBytes", 128 * 1024);
+        switch (modo) {
+            case "defecto":
+                return null;
+            case "ajustados":
+                return new SocketsRmi(buffer, -1);
+            case "comprimidos":
+                return new SocketsRmi(buffer, Integer.getInteger("chat.rmi.comprimirDesde", 8 * 1024));
+            default:
+                throw new IllegalArgumentException("chat.rmi.sockets desconocido: " + modo);
+        }
+    }
+
+    // ====================
+    // ===== FABRICAS =====
+    // ====================
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Conexion s = new Conexion();
+        // El buffer de recepcion antes de conectar, para que se anuncie la ventana TCP completa
+        s.setReceiveBufferSize(bufferBytes);
+        s.setSendBufferSize(bufferBytes);
+        s.setTcpNoDelay(true);
+        s.connect(new InetSocketAddress(host, port));
+        return s;
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port) throws IOException {
+        ServerSocket ss = new ServerSocket() {
+            @Override
+            public Socket accept() throws IOException {
+                Conexion s = new Conexion();
+                implAccept(s);
+                s.setSendBufferSize(bufferBytes);
+                s.setTcpNoDelay(true);
+                return s;
+            }
+        };
+        ss.setReceiveBufferSize(bufferBytes);
+        ss.bind(new InetSocketAddress(port));
+        return ss;
+    }
+
+    /* RMI reutiliza conexiones y puertos solo entre fabricas iguales */
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SocketsRmi)) {
+            return false;
+        }
+        SocketsRmi otra = (SocketsRmi) o;
+        return bufferBytes == otra.bufferBytes && comprimirDesde == otra.comprimirDesde;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * bufferBytes + comprimirDesde;
+    }
+
+    @Override
+    public String toString() {
+        return comprimirDesde < 0 ? "ajustados(" + bufferBytes + ")"
+                : "comprimidos(" + bufferBytes + ", desde " + comprimirDesde + ")";
+    }
+
+    // ====================
+    // ===== CONEXION =====
+    // ====================
+
+    private class Conexion extends Socket {
+        private InputStream entrada;
+        private OutputStream salida;
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (comprimirDesde < 0) {
+                return super.getInputStream();
+            }
+            if (entrada == null) {
+                entrada = new EntradaBloques(super.getInputStream());
+            }
+            return entrada;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (comprimirDesde < 0) {
+                return super.getOutputStream();
+            }
+            if (salida == null) {
+                salida = new SalidaBloques(super.getOutputStream(), comprimirDesde);
+            }
+            return salida;
+        }
+    }
+
+    /* Bloque: byte tipo, int longitud, [int longitud original si va comprimido], datos */
+    private static class SalidaBloques extends OutputStream {
+        private final DataOutputStream out;
+        private final int comprimirDesde;
+        private final byte[] buf = new byte[BLOQUE];
+        private final byte[] comprimido = new byte[BLOQUE];
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private int n = 0;
+        private int saltar = 0;
+
+        SalidaBloques(OutputStream out, int comprimirDesde) {
+            this.out = new DataOutputStream(new BufferedOutputStream(out, BLOQUE + 16));
+            this.comprimirDesde = comprimirDesde;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (n == buf.length) {
+                volcar();
+            }
+            buf[n++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (n == buf.length) {
+                    volcar();
+                }
+                int k = Math.min(len, buf.length - n);
+                System.arraycopy(b, off, buf, n, k);
+                n += k;
+                off += k;
+                len -= k;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            volcar();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                deflater.end();
+                out.close();
+            }
+        }
+
+        private void volcar() throws IOException {
+            if (n == 0) {
+                return;
+            }
+            int k = -1;
+            if (n >= comprimirDesde) {
+                if (saltar > 0) {
+                    saltar--;
+                } else {
+                    deflater.reset();
+                    deflater.setInput(buf, 0, n);
+                    deflater.finish();
+                    k = deflater.deflate(comprimido);
+                    if (!deflater.finished() || k > n - n / 8) {
+                        saltar = SALTAR_TRAS_FALLO;
+                        // Si no cabe en menos que el original no compensa
+                        if (!deflater.finished() || k >= n) {
+                            k = -1;
+                        }
+                    }
+                }
+            }
+            if (k < 0) {
+                out.writeByte(CRUDO);
+                out.writeInt(n);
+                out.write(buf, 0, n);
+            } else {
+                out.writeByte(COMPRIMIDO);
+                out.writeInt(k);
+                out.writeInt(n);
+                out.write(comprimido, 0, k);
+            }
+            n = 0;
+        }
+    }
+
+    private static class EntradaBloques extends InputStream {
+        private final DataInputStream in;
+        private final byte[] buf = new byte[BLOQUE];
+        private final byte[] comprimido = new byte[BLOQUE];
+        private final Inflater inflater = new Inflater();
+        private int pos = 0;
+        private int lim = 0;
+
+        EntradaBloques(InputStream in) {
+            this.in = new DataInputStream(new BufferedInputStream(in, BLOQUE + 16));
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == lim && !siguiente()) {
+                return -1;
+            }
+            return buf[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos == lim && !siguiente()) {
+                return -1;
+            }
+            int k = Math.min(len, lim - pos);
+            System.arraycopy(buf, pos, b, off, k);
+            pos += k;
+            return k;
+        }
+
+        @Override
+        public int available() {
+            return lim - pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            in.close();
+        }
+
+        /* Lee el siguiente bloque; false si la conexion se cerro entre bloques */
+        private boolean siguiente() throws IOException {
+            int tipo = in.read();
+            if (tipo < 0) {
+                return false;
+            }
+            int longitud = in.readInt();
+            if (longitud < 0 || longitud > BLOQUE) {
+                throw new IOException("Bloque corrupto: " + longitud + " bytes");
+            }
+            if (tipo == CRUDO) {
+                in.readFully(buf, 0, longitud);
+                lim = longitud;
+            } else {
+                int original = in.readInt();
+                if (original < 0 || original > BLOQUE) {
+                    throw new IOException("Bloque corrupto: " + original + " bytes");
+                }
+                in.readFully(comprimido, 0, longitud);
+                inflater.reset();
+                inflater.setInput(comprimido, 0, longitud);
+                try {
+                    lim = inflater.inflate(buf, 0, original);
+                } catch (DataFormatException e) {
+                    throw new IOException("Bloque comprimido corrupto", e);
+                }
+            }
+            pos = 0;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tabla de usuarios internados: a cada nombre se le asigna un id entero
+ * consecutivo (0, 1, 2...) y el resto del servidor trabaja con esos ids.
+ *
+ * Cada nombre se guarda una unica vez; las estructuras que necesiten el
+ * texto lo recuperan con getNombre(id).
+ *
+ * Para buscar por prefijo se usa un IndiceNombres. No se crea hasta la primera
+ * busqueda (o prepararBusqueda), para que cargar la tabla al arrancar siga
+ * siendo solo rellenar arrays.
+ */
+public class TablaUsuarios {
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final ArregloSegmentado<String> nombres = new ArregloSegmentado<>();
+    private final ArregloSegmentado<String> claves = new ArregloSegmentado<>();
+    private volatile IndiceNombres indice;
+    private volatile int tamanio = 0;
+
+    /* Devuelve el id nuevo, o -1 si el usuario ya existia */
+    public synchronized int registrar(String nombre, String clave) {
+        if (ids.containsKey(nombre)) {
+            return -1;
+        }
+        int id = tamanio;
+        nombres.set(id, nombre);
+        claves.set(id, clave);
+        // El id se publica al final: quien lo encuentre ya ve nombre y clave
+        ids.put(nombre, id);
+        if (indice != null) {
+            indice.agregar(nombre);
+        }
+        tamanio = id + 1;
+        return id;
+    }
+
+    /* -1 si no existe */
+    public int getId(String nombre) {
+        Integer id = ids.get(nombre);
+        return id == null ? -1 : id;
+    }
+
+    public boolean existe(String nombre) {
+        return ids.containsKey(nombre);
+    }
+
+    public String getNombre(int id) {
+        return nombres.get(id);
+    }
+
+    public String getClave(int id) {
+        return claves.get(id);
+    }
+
+    /* Nombres que empiezan por prefijo en orden alfabetico, saltando los offset primeros */
+    public List<String> buscar(String prefijo, int offset, int limite) {
+        IndiceNombres i = indice;
+        if (i == null) {
+            i = prepararBusqueda();
+        }
+        return i.buscar(prefijo, offset, limite);
+    }
+
+    /* Ordena los nombres registrados hasta ahora; los siguientes registros se añaden al indice */
+    public synchronized IndiceNombres prepararBusqueda() {
+        if (indice == null) {
+            String[] todos = new String[tamanio];
+            for (int id = 0; id < todos.length; id++) {
+                todos[id] = nombres.get(id);
+            }
+            indice = new IndiceNombres(todos);
+        }
+        return indice;
+    }
+
+    public int getTamanio() {
+        return tamanio;
+    }
+}